@@ -9,6 +9,8 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import de.siteof.resource.event.IResourceListener;
+import de.siteof.resource.event.MetaResourceLoaderEvent;
+import de.siteof.resource.event.NotModifiedResourceLoaderEvent;
 import de.siteof.resource.event.ResourceLoaderEvent;
 
 public class AlternativeResourceProxy extends ResourceProxy {
@@ -277,7 +279,9 @@ public class AlternativeResourceProxy extends ResourceProxy {
 			@Override
 			public void onResourceEvent(
 					ResourceLoaderEvent<InputStream> event) {
-				if (event.isComplete()) {
+				if (event instanceof NotModifiedResourceLoaderEvent) {
+					finalListener.onResourceEvent(event.cloneFor(AlternativeResourceProxy.this));
+				} else if (event.isComplete()) {
 					InputStream data	= event.getResult();
 					finalListener.onResourceEvent(new ResourceLoaderEvent<InputStream>(
 							AlternativeResourceProxy.this, data, true));
@@ -341,7 +345,9 @@ public class AlternativeResourceProxy extends ResourceProxy {
 			@Override
 			public void onResourceEvent(
 					ResourceLoaderEvent<byte[]> event) {
-				if (event.isComplete()) {
+				if (event instanceof NotModifiedResourceLoaderEvent) {
+					listener.onResourceEvent(event.cloneFor(AlternativeResourceProxy.this));
+				} else if (event.isComplete()) {
 					byte[] data	= event.getResult();
 					listener.onResourceEvent(new ResourceLoaderEvent<byte[]>(
 							AlternativeResourceProxy.this, data, true));
@@ -385,6 +391,8 @@ public class AlternativeResourceProxy extends ResourceProxy {
 				} else if (event.hasStatusMessage()) {
 					listener.onResourceEvent(new ResourceLoaderEvent<byte[]>(
 							AlternativeResourceProxy.this, event.getStatusMessage()));
+				} else if (event instanceof MetaResourceLoaderEvent) {
+					listener.onResourceEvent(event.cloneFor(AlternativeResourceProxy.this));
 				} else {
 					byte[] data = event.getResult();
 					if ((data != null) && (data.length > 0)) {
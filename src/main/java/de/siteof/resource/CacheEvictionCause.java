@@ -0,0 +1,28 @@
+package de.siteof.resource;
+
+/**
+ * The reason a cache entry was removed.
+ */
+public enum CacheEvictionCause {
+
+	/**
+	 * Removed to stay within the size or count limits of the cache.
+	 */
+	SIZE,
+
+	/**
+	 * Removed because it expired.
+	 */
+	EXPIRED,
+
+	/**
+	 * Removed on request, e.g. by {@link IResource#clearCache()}.
+	 */
+	EXPLICIT,
+
+	/**
+	 * Removed by the garbage collector (soft references).
+	 */
+	COLLECTED
+
+}
@@ -0,0 +1,119 @@
+package de.siteof.resource;
+
+import java.util.Arrays;
+
+/**
+ * Immutable snapshot of the statistics of a cache.
+ * Entry count and weight are -1 if the cache can't tell (e.g. soft references).
+ */
+public class CacheStatistics {
+
+	private final long hitCount;
+	private final long missCount;
+	private final long loadSuccessCount;
+	private final long loadFailureCount;
+	private final long totalLoadTime;
+	private final long hitBytes;
+	private final long[] evictionCounts;
+	private final long entryCount;
+	private final long weight;
+
+	public CacheStatistics(long hitCount, long missCount, long loadSuccessCount, long loadFailureCount,
+			long totalLoadTime, long hitBytes, long[] evictionCounts, long entryCount, long weight) {
+		this.hitCount = hitCount;
+		this.missCount = missCount;
+		this.loadSuccessCount = loadSuccessCount;
+		this.loadFailureCount = loadFailureCount;
+		this.totalLoadTime = totalLoadTime;
+		this.hitBytes = hitBytes;
+		this.evictionCounts = evictionCounts.clone();
+		this.entryCount = entryCount;
+		this.weight = weight;
+	}
+
+	@Override
+	public String toString() {
+		return "CacheStatistics [hitCount=" + hitCount + ", missCount=" + missCount +
+				", loadSuccessCount=" + loadSuccessCount + ", loadFailureCount=" + loadFailureCount +
+				", totalLoadTime=" + totalLoadTime + ", hitBytes=" + hitBytes +
+				", evictionCounts=" + Arrays.toString(evictionCounts) +
+				", entryCount=" + entryCount + ", weight=" + weight + "]";
+	}
+
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	public long getMissCount() {
+		return missCount;
+	}
+
+	public long getRequestCount() {
+		return hitCount + missCount;
+	}
+
+	/**
+	 * @return the ratio of requests served from the cache (1.0 if there were no requests)
+	 */
+	public double getHitRatio() {
+		long requestCount = getRequestCount();
+		return (requestCount == 0 ? 1.0 : (double) hitCount / requestCount);
+	}
+
+	public long getLoadSuccessCount() {
+		return loadSuccessCount;
+	}
+
+	public long getLoadFailureCount() {
+		return loadFailureCount;
+	}
+
+	/**
+	 * @return the total time spent loading from the parent in nanoseconds
+	 */
+	public long getTotalLoadTime() {
+		return totalLoadTime;
+	}
+
+	/**
+	 * @return the average time of a load from the parent in nanoseconds
+	 */
+	public double getAverageLoadTime() {
+		long loadCount = loadSuccessCount + loadFailureCount;
+		return (loadCount == 0 ? 0.0 : (double) totalLoadTime / loadCount);
+	}
+
+	/**
+	 * @return the number of bytes served from the cache
+	 */
+	public long getHitBytes() {
+		return hitBytes;
+	}
+
+	public long getEvictionCount() {
+		long result = 0;
+		for (long count: evictionCounts) {
+			result += count;
+		}
+		return result;
+	}
+
+	public long getEvictionCount(CacheEvictionCause cause) {
+		return evictionCounts[cause.ordinal()];
+	}
+
+	/**
+	 * @return the number of entries currently cached (-1 if unknown)
+	 */
+	public long getEntryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * @return the size of the entries currently cached in bytes (-1 if unknown)
+	 */
+	public long getWeight() {
+		return weight;
+	}
+
+}
@@ -0,0 +1,200 @@
+package de.siteof.resource;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import de.siteof.resource.util.CacheFileHeader;
+import de.siteof.resource.util.MappedFileReader;
+
+/**
+ * Stores every entry of the file cache in a file of its own, the key being the path relative to
+ * the cache directory (see {@link FileCacheLayout}).
+ */
+class FileCacheDirectoryStore implements IFileCacheStore {
+
+	private static final Log log	= LogFactory.getLog(FileCacheDirectoryStore.class);
+
+	private final File cacheDirectory;
+
+	public FileCacheDirectoryStore(File cacheDirectory) {
+		this.cacheDirectory	= cacheDirectory;
+	}
+
+	private File getFile(String key) {
+		return new File(cacheDirectory, key);
+	}
+
+	@Override
+	public boolean exists(String key) {
+		return getFile(key).exists();
+	}
+
+	@Override
+	public long getLastModified(String key) {
+		return getFile(key).lastModified();
+	}
+
+	@Override
+	public long getLength(String key) {
+		return getFile(key).length();
+	}
+
+	@Override
+	public InputStream openStream(String key, MappedFileReader mappedFileReader) throws IOException {
+		File file	= getFile(key);
+		if (mappedFileReader != null) {
+			return mappedFileReader.openStream(file);
+		}
+		return new BufferedInputStream(new FileInputStream(file));
+	}
+
+	/**
+	 * Writes to a hidden file next to the file of the entry (ignored by the garbage collector),
+	 * which is renamed on publishing.
+	 */
+	@Override
+	public IFileCacheOutput createOutput(String key) throws IOException {
+		File file	= getFile(key);
+		File directory	= file.getParentFile();
+		directory.mkdirs();
+		File tempFile	= File.createTempFile("." + file.getName() + "-", ".tmp", directory);
+		return new TempFileOutput(file, tempFile);
+	}
+
+	private static class TempFileOutput implements IFileCacheOutput {
+		private final File file;
+		private final File tempFile;
+		private final FileOutputStream fileOut;
+
+		public TempFileOutput(File file, File tempFile) throws IOException {
+			this.file	= file;
+			this.tempFile	= tempFile;
+			try {
+				this.fileOut	= new FileOutputStream(tempFile);
+			} catch (IOException e) {
+				tempFile.delete();
+				throw e;
+			}
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return fileOut;
+		}
+
+		@Override
+		public long getSize() throws IOException {
+			return fileOut.getChannel().size();
+		}
+
+		@Override
+		public void updateHeader(int length, int storedLength, int checksum) throws IOException {
+			CacheFileHeader.update(fileOut.getChannel(), length, storedLength, checksum);
+		}
+
+		/**
+		 * Syncs the file to disk and moves it over the previous cache file atomically, so that
+		 * readers either see the previous or the complete new file, even after a crash.
+		 */
+		@Override
+		public void publish() throws IOException {
+			try {
+				sync();
+				fileOut.close();
+			} catch (IOException e) {
+				discard();
+				throw e;
+			}
+			try {
+				Files.move(tempFile.toPath(), file.toPath(),
+						StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				tempFile.delete();
+				throw new IOException("cache file could not be replaced: " + file + " - " + e, e);
+			}
+		}
+
+		/**
+		 * Forces the content to disk, the writer may already have closed the stream.
+		 */
+		private void sync() throws IOException {
+			if (fileOut.getChannel().isOpen()) {
+				fileOut.getFD().sync();
+				return;
+			}
+			RandomAccessFile file	= new RandomAccessFile(tempFile, "rw");
+			try {
+				file.getFD().sync();
+			} finally {
+				file.close();
+			}
+		}
+
+		@Override
+		public void discard() {
+			try {
+				fileOut.close();
+			} catch (IOException e) {
+				log.debug("temporary cache file could not be closed - " + e);
+			}
+			tempFile.delete();
+		}
+	}
+
+	@Override
+	public boolean touch(String key) {
+		return getFile(key).setLastModified(System.currentTimeMillis());
+	}
+
+	@Override
+	public boolean delete(String key) {
+		return getFile(key).delete();
+	}
+
+	/**
+	 * @return the keys of the files in the subdirectories of the fan-out
+	 */
+	@Override
+	public List<String> getKeys() {
+		List<String> result	= new ArrayList<String>();
+		File[] directories	= cacheDirectory.listFiles();
+		if (directories == null) {
+			return result;
+		}
+		for (File directory: directories) {
+			if ((!directory.isDirectory()) || (!FileCacheLayout.isShardDirectoryName(directory.getName()))) {
+				continue;
+			}
+			File[] subDirectories	= directory.listFiles();
+			if (subDirectories == null) {
+				continue;
+			}
+			for (File subDirectory: subDirectories) {
+				File[] files	= subDirectory.listFiles();
+				if ((files == null) || (!FileCacheLayout.isShardDirectoryName(subDirectory.getName()))) {
+					continue;
+				}
+				for (File file: files) {
+					if ((file.isFile()) && (!FileCacheLayout.isInternalFileName(file.getName()))) {
+						result.add(directory.getName() + '/' + subDirectory.getName() + '/' + file.getName());
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+}
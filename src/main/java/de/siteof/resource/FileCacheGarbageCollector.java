@@ -0,0 +1,882 @@
+package de.siteof.resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import de.siteof.resource.util.CacheStatisticsCounter;
+
+/**
+ * Evicts the least recently used files once the cache directory exceeds the maximum total size
+ * or number of files. The files are kept in access order (reads and writes).
+ * The index is persisted in a journal, so that it is read sequentially on start-up. The cache
+ * directory is only scanned if there is no valid journal, the order is then initialised from the
+ * modification times of the files.
+ * Writers only account the files, files are evicted by a background (daemon) thread once the
+ * limits (high watermark) are exceeded, until the cache is below the low watermark. The same thread
+ * writes the checkpoints of the index.
+ * In shared mode several processes use the same cache directory: every change of the index is
+ * done while holding a {@link FileCacheLock}, after replaying the journal records of the other
+ * processes, so that all of them account and evict the same files. Accesses are only recorded with
+ * the next change, reads don't lock the cache directory. Files being written are marked in the
+ * journal, so that the other processes don't evict them. Cache files are published by renaming
+ * completely written temporary files, readers never see partial files.
+ */
+class FileCacheGarbageCollector implements ICacheGarbageCollector {
+
+	private static class FileInfo {
+		private final String name;
+		private final long size;
+		private final long timestamp;
+
+		public FileInfo(String name, File file) {
+			this.name	= name;
+			this.size	= file.length();
+			this.timestamp	= file.lastModified();
+		}
+	}
+
+	private static class FileInfoTimestampComparator implements Comparator<FileInfo> {
+
+		private static Comparator<FileInfo> comparator	= new FileInfoTimestampComparator();
+
+		public static Comparator<FileInfo> getInstance() {
+			return comparator;
+		}
+
+		@Override
+		public int compare(FileInfo fileInfo1, FileInfo fileInfo2) {
+			long diff	= fileInfo1.timestamp - fileInfo2.timestamp;
+			if (diff < 0) {
+				return -1;
+			} else if (diff > 0) {
+				return 1;
+			} else {
+				return 0;
+			}
+		}
+
+	}
+
+	private class Reclaimer implements Runnable {
+
+		@Override
+		public void run() {
+			while (true) {
+				boolean reclaim;
+				boolean checkpoint;
+				synchronized (FileCacheGarbageCollector.this) {
+					while ((!reclaimRequested) && (!checkpointRequested) &&
+							(reclaimerThread == Thread.currentThread())) {
+						try {
+							FileCacheGarbageCollector.this.wait();
+						} catch (InterruptedException e) {
+							reclaimerThread	= null;
+						}
+					}
+					if (reclaimerThread != Thread.currentThread()) {
+						return;
+					}
+					reclaim	= reclaimRequested;
+					checkpoint	= checkpointRequested;
+					reclaimRequested	= false;
+					checkpointRequested	= false;
+				}
+				try {
+					if (reclaim) {
+						reclaim();
+					}
+					if ((checkpoint) || (reclaim)) {
+						checkpointIfRequired();
+					}
+				} catch (RuntimeException e) {
+					log.error("cache files could not be evicted - " + e, e);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * The fraction of the limits the cache is reduced to once they were exceeded.
+	 */
+	public static final float LOW_WATERMARK_FACTOR	= 0.9f;
+
+	private static final int MIN_CHECKPOINT_RECORD_COUNT	= 1000;
+
+	/**
+	 * The time in milliseconds after a journal failure before the journal is started over.
+	 */
+	private static final long JOURNAL_RETRY_INTERVAL	= 60000;
+
+	/**
+	 * The time in milliseconds after a failure to lock the cache directory before locking is retried.
+	 */
+	private static final long LOCK_RETRY_INTERVAL	= 60000;
+
+	/**
+	 * The time in milliseconds after which a file another process started writing is evicted anyway
+	 * (e.g. because the process died).
+	 */
+	private static final long WRITE_TIMEOUT	= 10 * 60000;
+
+	private final String cacheDirectory;
+	private final long maxTotalSize;
+	private final int maxFileCount;
+	private final CacheStatisticsCounter statistics;
+	/**
+	 * The index entries by file name, the least recently used file first.
+	 */
+	private Map<String, FileCacheJournal.Entry> fileEntryByNameMap;
+	private FileCacheJournal journal;
+	/**
+	 * The time the journal failed, it is reopened by a new checkpoint after the retry interval.
+	 */
+	private long journalFailedTime;
+	private long totalSize;
+	/**
+	 * The files between triggerBeforeWrite and triggerAfterWrite, they are not evicted.
+	 */
+	private final Set<String> writingNames	= new HashSet<String>();
+	/**
+	 * The files removed from the index which the reclaimer is deleting (without holding the monitor),
+	 * they are only written again once deleted.
+	 */
+	private final Set<String> deletingNames	= new HashSet<String>();
+	private Thread reclaimerThread;
+	private boolean reclaimRequested;
+	private boolean checkpointRequested;
+	/**
+	 * Incremented by every checkpoint written, a checkpoint based on an older index isn't committed.
+	 */
+	private int checkpointCount;
+	/**
+	 * The lock of the cache directory in shared mode, otherwise null.
+	 */
+	private FileCacheLock lock;
+	/**
+	 * True while the cache directory is locked (between initialise and release).
+	 */
+	private boolean locked;
+	/**
+	 * The time locking the cache directory failed, it isn't shared until the retry interval passed.
+	 */
+	private long lockFailedTime;
+	/**
+	 * The accesses not recorded in the journal yet by name (shared mode).
+	 */
+	private final Map<String, Long> pendingAccessTimes	= new LinkedHashMap<String, Long>();
+	/**
+	 * The generation of the index last read or written (shared mode only).
+	 */
+	private long generation;
+
+	private static final Log log	= LogFactory.getLog(FileCacheGarbageCollector.class);
+
+	public FileCacheGarbageCollector(String cacheDirectory, long maxTotalSize, int maxFileCount,
+			CacheStatisticsCounter statistics) {
+		this.cacheDirectory	= cacheDirectory;
+		this.maxTotalSize		= maxTotalSize;
+		this.maxFileCount		= maxFileCount;
+		this.statistics		= statistics;
+	}
+
+	/**
+	 * Shares the cache directory with other processes (using the same setting), must be set before
+	 * the cache is used. Only one instance per cache directory may be used within a process.
+	 */
+	public void setShared(boolean shared) {
+		synchronized (this) {
+			if (fileEntryByNameMap != null) {
+				throw new IllegalStateException("the cache index was read already");
+			}
+			if ((shared) && (lock == null)) {
+				lock	= new FileCacheLock(new File(cacheDirectory));
+			} else if ((!shared) && (lock != null)) {
+				lock.close();
+				lock	= null;
+			}
+		}
+	}
+
+	public boolean isShared() {
+		synchronized (this) {
+			return (lock != null);
+		}
+	}
+
+	/**
+	 * Reads the index from the journal, or from the cache directory if there is no valid journal (once).
+	 * In shared mode the cache directory is locked and the changes of the other processes are read,
+	 * the caller has to call {@link #release()} afterwards (also if false was returned).
+	 *
+	 * @return false if the cache directory doesn't exist (yet)
+	 */
+	private boolean initialise() {
+		File cacheDirectory	= new File(this.cacheDirectory);
+		if ((fileEntryByNameMap == null) && (!cacheDirectory.exists())) {
+			return false;
+		}
+		if ((lock != null) && (!lock())) {
+			// the files are only accounted by this process until the cache directory is locked again
+			if (fileEntryByNameMap == null) {
+				fileEntryByNameMap	= new LinkedHashMap<String, FileCacheJournal.Entry>(16, 0.75f, true);
+				scanCacheDirectory(cacheDirectory);
+				updateTotalSize();
+			}
+			return true;
+		}
+		if (fileEntryByNameMap == null) {
+			loadIndex(cacheDirectory);
+		} else if (journal == null) {
+			reopenJournalIfDue();
+		} else if (lock != null) {
+			synchronise();
+		}
+		if (lock != null) {
+			recordPendingAccesses();
+		}
+		return true;
+	}
+
+	/**
+	 * Locks the cache directory (shared mode), unless locking failed within the retry interval.
+	 * Once locked again after a failure, the index is recovered from the cache directory, as the
+	 * changes of this process weren't recorded in the meantime.
+	 *
+	 * @return true if the cache directory is locked
+	 */
+	private boolean lock() {
+		if ((lockFailedTime != 0) && (System.currentTimeMillis() - lockFailedTime < LOCK_RETRY_INTERVAL)) {
+			return false;
+		}
+		try {
+			lock.lock();
+		} catch (IOException e) {
+			onLockFailed(e);
+			return false;
+		}
+		locked	= true;
+		if (lockFailedTime != 0) {
+			lockFailedTime	= 0;
+			if (fileEntryByNameMap != null) {
+				log.info("cache directory locked again, recovering the shared cache index");
+				File cacheDirectory	= new File(this.cacheDirectory);
+				fileEntryByNameMap.clear();
+				journal	= new FileCacheJournal(cacheDirectory);
+				scanCacheDirectory(cacheDirectory);
+				updateTotalSize();
+				writeCheckpoint();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Starts the journal over after it failed: the index is complete, it is written as a new
+	 * checkpoint. In shared mode the other processes may have changed the directory in the
+	 * meantime, the index is read again instead.
+	 */
+	private void reopenJournalIfDue() {
+		if (System.currentTimeMillis() - journalFailedTime < JOURNAL_RETRY_INTERVAL) {
+			return;
+		}
+		File cacheDirectory	= new File(this.cacheDirectory);
+		if (lock != null) {
+			log.info("reloading the cache index after a journal failure");
+			loadIndex(cacheDirectory);
+		} else {
+			log.info("starting the cache index journal over after a failure");
+			journal	= new FileCacheJournal(cacheDirectory);
+			writeCheckpoint();
+		}
+	}
+
+	private void loadIndex(File cacheDirectory) {
+		log.debug("initialising file cache garbage collector");
+		fileEntryByNameMap	= new LinkedHashMap<String, FileCacheJournal.Entry>(16, 0.75f, true);
+		journal	= new FileCacheJournal(cacheDirectory);
+		boolean loaded	= false;
+		try {
+			if (lock != null) {
+				generation	= lock.getGeneration();
+			}
+			loaded	= journal.load(fileEntryByNameMap);
+		} catch (IOException e) {
+			log.warn("cache index journal could not be read, index will be recovered - " + e, e);
+			fileEntryByNameMap.clear();
+		}
+		if (!loaded) {
+			scanCacheDirectory(cacheDirectory);
+		}
+		updateTotalSize();
+		if ((!loaded) || (journal.isCheckpointRequired())) {
+			writeCheckpoint();
+		}
+	}
+
+	private void updateTotalSize() {
+		totalSize		= 0;
+		for (FileCacheJournal.Entry entry: fileEntryByNameMap.values()) {
+			totalSize	+= entry.size;
+		}
+	}
+
+	/**
+	 * Applies the changes of the other processes to the index (shared mode, while locked).
+	 * The index is read again if another process started the journal over.
+	 */
+	private void synchronise() {
+		if (journal == null) {
+			return;
+		}
+		try {
+			if (lock.getGeneration() != generation) {
+				journal.close();
+				loadIndex(new File(cacheDirectory));
+				return;
+			}
+			int recordCount	= journal.getRecordCount();
+			journal.update(fileEntryByNameMap);
+			if (journal.getRecordCount() != recordCount) {
+				updateTotalSize();
+			}
+			if (journal.isCheckpointRequired()) {
+				writeCheckpoint();
+			}
+		} catch (IOException e) {
+			onJournalFailed(e);
+		}
+	}
+
+	/**
+	 * Writes the records of this process and unlocks the cache directory (shared mode).
+	 */
+	private void release() {
+		if (locked) {
+			locked	= false;
+			if (journal != null) {
+				try {
+					journal.flush();
+				} catch (IOException e) {
+					onJournalFailed(e);
+				}
+			}
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops sharing the index after the cache directory couldn't be locked (e.g. on a file system
+	 * without locking) until the retry interval passed, the files are then only accounted by this
+	 * process. The shared journal isn't written meanwhile.
+	 */
+	private void onLockFailed(IOException e) {
+		log.error("cache directory could not be locked, the cache index is not shared for the next " +
+				LOCK_RETRY_INTERVAL + " ms - " + e, e);
+		lockFailedTime	= System.currentTimeMillis();
+		lock.close();
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException closeException) {
+				log.debug("cache index journal could not be closed - " + closeException);
+			}
+			journal	= null;
+		}
+	}
+
+	private void scanCacheDirectory(File cacheDirectory) {
+		log.info("scanning file cache directory to recover the index: " + cacheDirectory);
+		List<FileInfo> list	= new ArrayList<FileInfo>();
+		scanDirectory(cacheDirectory, "", 0, list);
+		Collections.sort(list, FileInfoTimestampComparator.getInstance());
+		for (FileInfo fileInfo: list) {
+			fileEntryByNameMap.put(fileInfo.name, new FileCacheJournal.Entry(fileInfo.size, fileInfo.timestamp));
+		}
+	}
+
+	/**
+	 * Collects the files of the directory and of the subdirectories of the fan-out.
+	 * Files in the cache directory itself are left over from the flat layout.
+	 */
+	private void scanDirectory(File directory, String prefix, int depth, List<FileInfo> list) {
+		File[] files	= directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (int i = 0; i < files.length; i++) {
+			String name	= files[i].getName();
+			if (files[i].isFile()) {
+				if (!FileCacheLayout.isInternalFileName(name)) {
+					list.add(new FileInfo(prefix + name, files[i]));
+				}
+			} else if ((depth < 2) && (FileCacheLayout.isShardDirectoryName(name))) {
+				scanDirectory(files[i], prefix + name + '/', depth + 1, list);
+			}
+		}
+	}
+
+	private void writeCheckpoint() {
+		if (journal == null) {
+			return;
+		}
+		try {
+			journal.writeCheckpoint(fileEntryByNameMap);
+			checkpointCount++;
+			if (locked) {
+				// the other processes have to read the new checkpoint
+				generation	= lock.getGeneration() + 1;
+				lock.setGeneration(generation);
+			}
+		} catch (IOException e) {
+			onJournalFailed(e);
+		}
+	}
+
+	/**
+	 * Stops persisting the index after a failure until the journal is started over (see
+	 * {@link #reopenJournalIfDue()}), until then it would be recovered from the directory on start.
+	 */
+	private void onJournalFailed(IOException e) {
+		log.warn("cache index journal could not be written, disabling it for " +
+				JOURNAL_RETRY_INTERVAL + " ms - " + e, e);
+		journal.delete();
+		journal	= null;
+		journalFailedTime	= System.currentTimeMillis();
+		if (locked) {
+			try {
+				lock.setGeneration(generation + 1);
+			} catch (IOException generationException) {
+				log.debug("cache index generation could not be written - " + generationException);
+			}
+		}
+	}
+
+	private boolean isCheckpointDue() {
+		return ((journal != null) &&
+				(journal.getRecordCount() > Math.max(MIN_CHECKPOINT_RECORD_COUNT, fileEntryByNameMap.size())));
+	}
+
+	/**
+	 * Lets the reclaimer write a checkpoint once the journal grew large enough (the caller holds the monitor).
+	 */
+	private void requestCheckpointIfDue() {
+		if ((!checkpointRequested) && (isCheckpointDue())) {
+			checkpointRequested	= true;
+			startReclaimer();
+		}
+	}
+
+	/**
+	 * Writes a checkpoint if the journal grew large enough (reclaimer thread).
+	 * The checkpoint file is written without holding the monitor, the records appended meanwhile are
+	 * kept in the journal. In shared mode the cache directory remains locked instead, as the other
+	 * processes may append to the journal as well.
+	 */
+	void checkpointIfRequired() {
+		Map<String, FileCacheJournal.Entry> entries;
+		FileCacheJournal journal;
+		long position;
+		int recordCount;
+		int checkpointCount;
+		synchronized (this) {
+			try {
+				if ((!initialise()) || (!isCheckpointDue())) {
+					return;
+				}
+				if (lock != null) {
+					writeCheckpoint();
+					return;
+				}
+				entries	= new LinkedHashMap<String, FileCacheJournal.Entry>(fileEntryByNameMap.size() * 2);
+				for (Map.Entry<String, FileCacheJournal.Entry> mapEntry: fileEntryByNameMap.entrySet()) {
+					FileCacheJournal.Entry entry	= mapEntry.getValue();
+					FileCacheJournal.Entry copy	= new FileCacheJournal.Entry(entry.size, entry.lastAccess);
+					copy.writingSince	= entry.writingSince;
+					entries.put(mapEntry.getKey(), copy);
+				}
+				journal	= this.journal;
+				position	= journal.getPosition();
+				recordCount	= journal.getRecordCount();
+				checkpointCount	= this.checkpointCount;
+			} finally {
+				release();
+			}
+		}
+		File tempFile;
+		try {
+			tempFile	= journal.writeCheckpointFile(entries);
+		} catch (IOException e) {
+			synchronized (this) {
+				if (this.journal == journal) {
+					onJournalFailed(e);
+				}
+			}
+			return;
+		}
+		synchronized (this) {
+			if ((this.journal != journal) || (this.checkpointCount != checkpointCount)) {
+				// the journal failed or was started over meanwhile
+				tempFile.delete();
+				return;
+			}
+			try {
+				journal.commitCheckpoint(tempFile, position, recordCount);
+				this.checkpointCount++;
+			} catch (IOException e) {
+				onJournalFailed(e);
+			}
+		}
+	}
+
+	/**
+	 * @param writing true if the file is about to be written (marked for the other processes)
+	 */
+	private void updateFileSize(String name, long size, boolean writing) {
+		long now	= System.currentTimeMillis();
+		FileCacheJournal.Entry previousEntry	= fileEntryByNameMap.remove(name);
+		if (previousEntry != null) {
+			totalSize	-= previousEntry.size;
+		}
+		FileCacheJournal.Entry entry	= new FileCacheJournal.Entry(size, now);
+		if (writing) {
+			entry.writingSince	= now;
+		}
+		fileEntryByNameMap.put(name, entry);
+		totalSize	+= size;
+		if (journal != null) {
+			try {
+				if (writing) {
+					journal.recordWrite(name, size, now);
+				} else {
+					journal.recordPut(name, size, now);
+				}
+			} catch (IOException e) {
+				onJournalFailed(e);
+			}
+		}
+	}
+
+	/**
+	 * Records the accesses since the cache directory was last locked (shared mode, while locked),
+	 * after the records of the other processes were replayed.
+	 */
+	private void recordPendingAccesses() {
+		for (Map.Entry<String, Long> mapEntry: pendingAccessTimes.entrySet()) {
+			// moves the entry to the end of the access order
+			FileCacheJournal.Entry entry	= fileEntryByNameMap.get(mapEntry.getKey());
+			if (entry != null) {
+				entry.lastAccess	= Math.max(entry.lastAccess, mapEntry.getValue().longValue());
+				if (journal != null) {
+					try {
+						journal.recordAccess(mapEntry.getKey(), entry.lastAccess);
+					} catch (IOException e) {
+						onJournalFailed(e);
+					}
+				}
+			}
+		}
+		pendingAccessTimes.clear();
+	}
+
+	/**
+	 * @return true if another process is writing the file (shared mode)
+	 */
+	private boolean isWrittenElsewhere(FileCacheJournal.Entry entry, long now) {
+		return ((entry.writingSince != 0) && (now - entry.writingSince < WRITE_TIMEOUT));
+	}
+
+	private void removeFileEntry(String name) {
+		FileCacheJournal.Entry entry	= fileEntryByNameMap.remove(name);
+		if (entry != null) {
+			totalSize	-= entry.size;
+			if (journal != null) {
+				try {
+					journal.recordRemove(name);
+				} catch (IOException e) {
+					onJournalFailed(e);
+				}
+			}
+		}
+	}
+
+	private boolean isOverLimit(double factor) {
+		return (((maxTotalSize > 0) && (totalSize > maxTotalSize * factor)) ||
+				((maxFileCount > 0) && (fileEntryByNameMap.size() > maxFileCount * factor)));
+	}
+
+	/**
+	 * Lets the reclaimer evict files (the caller holds the monitor).
+	 */
+	private void signalReclaimer() {
+		reclaimRequested	= true;
+		startReclaimer();
+	}
+
+	/**
+	 * Wakes up the reclaimer, starting it if required (the caller holds the monitor).
+	 */
+	private void startReclaimer() {
+		if (reclaimerThread == null) {
+			Thread thread	= new Thread(new Reclaimer(), "file-cache-reclaimer");
+			thread.setDaemon(true);
+			reclaimerThread	= thread;
+			thread.start();
+		} else {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Evicts the least recently used files until the cache is below the low watermark.
+	 * The files are removed from the index first, and deleted as a batch without holding the monitor;
+	 * writers of these files wait until they were deleted (see {@link #waitForDeletion(String)}).
+	 * In shared mode they are deleted while the cache directory is locked instead, so that no other
+	 * process can write one of them again in between.
+	 */
+	void reclaim() {
+		List<String> names	= new ArrayList<String>();
+		int count	= 0;
+		synchronized (this) {
+			try {
+				if (!initialise()) {
+					return;
+				}
+				long now	= System.currentTimeMillis();
+				Iterator<Map.Entry<String, FileCacheJournal.Entry>> it	= fileEntryByNameMap.entrySet().iterator();
+				while ((isOverLimit(LOW_WATERMARK_FACTOR)) && (it.hasNext())) {
+					Map.Entry<String, FileCacheJournal.Entry> mapEntry	= it.next();
+					String name	= mapEntry.getKey();
+					if ((writingNames.contains(name)) || (isWrittenElsewhere(mapEntry.getValue(), now))) {
+						continue;
+					}
+					it.remove();
+					totalSize	-= mapEntry.getValue().size;
+					if (journal != null) {
+						try {
+							journal.recordRemove(name);
+						} catch (IOException e) {
+							onJournalFailed(e);
+						}
+					}
+					names.add(name);
+				}
+				if (locked) {
+					for (String name: names) {
+						if (deleteFile(name)) {
+							count++;
+						}
+					}
+					names.clear();
+				}
+				deletingNames.addAll(names);
+			} finally {
+				release();
+			}
+		}
+		for (String name: names) {
+			try {
+				if (deleteFile(name)) {
+					count++;
+				}
+			} finally {
+				synchronized (this) {
+					deletingNames.remove(name);
+					notifyAll();
+				}
+			}
+		}
+		if ((count > 0) && (log.isDebugEnabled())) {
+			log.debug("evicted " + count + " files from the cache");
+		}
+	}
+
+	/**
+	 * Waits while the reclaimer deletes the file, so that it doesn't delete it after it was written
+	 * again (the caller holds the monitor).
+	 */
+	private void waitForDeletion(String name) {
+		boolean interrupted	= false;
+		while (deletingNames.contains(name)) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted	= true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private boolean deleteFile(String name) {
+		if (new File(cacheDirectory, name).delete()) {
+			statistics.recordEviction(CacheEvictionCause.SIZE);
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void triggerBeforeWrite(Object key, long size) {
+		synchronized (this) {
+			String thisCacheFileName	= (String) key;
+			waitForDeletion(thisCacheFileName);
+			try {
+				if (!initialise()) {
+					return;
+				}
+
+				// account the file about to be written, it is the most recently used one now
+				updateFileSize(thisCacheFileName, size, locked);
+				writingNames.add(thisCacheFileName);
+
+				if (isOverLimit(1)) {
+					signalReclaimer();
+				}
+				requestCheckpointIfDue();
+			} finally {
+				release();
+			}
+		}
+	}
+
+	@Override
+	public void triggerAfterWrite(Object key, long size) {
+		synchronized (this) {
+			writingNames.remove(key);
+			try {
+				if (initialise()) {
+					FileCacheJournal.Entry entry	= fileEntryByNameMap.get(key);
+					if ((entry == null) || (entry.size != size) || (entry.writingSince != 0)) {
+						updateFileSize((String) key, size, false);
+					}
+				}
+			} finally {
+				release();
+			}
+		}
+	}
+
+	@Override
+	public void triggerAccess(Object key) {
+		synchronized (this) {
+			if ((lock != null) && (fileEntryByNameMap != null)) {
+				// recorded with the next change of the index, without locking the cache directory
+				FileCacheJournal.Entry entry	= fileEntryByNameMap.get(key);
+				if (entry != null) {
+					entry.lastAccess	= System.currentTimeMillis();
+					pendingAccessTimes.remove(key);
+					pendingAccessTimes.put((String) key, Long.valueOf(entry.lastAccess));
+				}
+				return;
+			}
+			try {
+				if (initialise()) {
+					// moves the entry to the end of the access order
+					FileCacheJournal.Entry entry	= fileEntryByNameMap.get(key);
+					if (entry != null) {
+						entry.lastAccess	= System.currentTimeMillis();
+						if (journal != null) {
+							try {
+								journal.recordAccess((String) key, entry.lastAccess);
+							} catch (IOException e) {
+								onJournalFailed(e);
+							}
+						}
+						requestCheckpointIfDue();
+					}
+				}
+			} finally {
+				release();
+			}
+		}
+	}
+
+	@Override
+	public void triggerRemove(Object key) {
+		synchronized (this) {
+			writingNames.remove(key);
+			try {
+				if (initialise()) {
+					removeFileEntry((String) key);
+				}
+			} finally {
+				release();
+			}
+		}
+	}
+
+	@Override
+	public int getEntryCount() {
+		synchronized (this) {
+			try {
+				return (initialise() ? fileEntryByNameMap.size() : 0);
+			} finally {
+				release();
+			}
+		}
+	}
+
+	@Override
+	public long getTotalSize() {
+		synchronized (this) {
+			try {
+				return (initialise() ? totalSize : 0);
+			} finally {
+				release();
+			}
+		}
+	}
+
+	/**
+	 * Stops the reclaimer, writes a checkpoint of the index and closes the journal.
+	 * Waits for the reclaimer to finish the files it is deleting, so that none is deleted afterwards.
+	 * In shared mode the other processes may still use the journal, no checkpoint is written.
+	 */
+	@Override
+	public void close() {
+		Thread thread;
+		synchronized (this) {
+			thread	= reclaimerThread;
+			reclaimerThread	= null;
+			notifyAll();
+		}
+		if ((thread != null) && (thread != Thread.currentThread())) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			if (journal != null) {
+				if (lock == null) {
+					writeCheckpoint();
+				}
+				if (journal != null) {
+					try {
+						journal.close();
+					} catch (IOException e) {
+						log.warn("cache index journal could not be closed - " + e, e);
+					}
+				}
+			}
+			if (lock != null) {
+				lock.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,433 @@
+package de.siteof.resource;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Persists the index of the file cache, so that it doesn't have to be rebuilt by scanning the
+ * cache directory. The index is written as a checkpoint, changes since the checkpoint are appended
+ * to a journal. Every journal record carries a checksum, a truncated or corrupt tail of the journal
+ * (e.g. after a crash) is ignored. Once the journal grew large enough a new checkpoint is written
+ * and the journal is started over.
+ * If the cache directory is shared by several processes, all of them append to the same journal
+ * while holding the {@link FileCacheLock}, and replay the records of the others by
+ * {@link #update(Map)} before changing the index.
+ */
+class FileCacheJournal {
+
+	/**
+	 * Index entry of a cache file.
+	 */
+	static class Entry {
+		long size;
+		long lastAccess;
+		/**
+		 * The time a process started writing the file, 0 once it was written completely.
+		 */
+		long writingSince;
+
+		public Entry(long size, long lastAccess) {
+			this.size	= size;
+			this.lastAccess	= lastAccess;
+		}
+	}
+
+	static final String CHECKPOINT_FILE_NAME	= ".index";
+	static final String JOURNAL_FILE_NAME	= ".journal";
+
+	private static final int CHECKPOINT_MAGIC	= 0x53524349;	// "SRCI"
+	private static final int CHECKPOINT_VERSION	= 2;
+
+	private static final byte RECORD_PUT	= 1;
+	private static final byte RECORD_ACCESS	= 2;
+	private static final byte RECORD_REMOVE	= 3;
+	private static final byte RECORD_WRITE	= 4;
+
+	private static final Log log	= LogFactory.getLog(FileCacheJournal.class);
+
+	private final File directory;
+	private DataOutputStream journalOut;
+	/**
+	 * The length of the journal read or written so far.
+	 */
+	private long journalPosition;
+	private int recordCount;
+	private boolean checkpointRequired;
+
+	public FileCacheJournal(File directory) {
+		this.directory	= directory;
+	}
+
+	/**
+	 * Reads the last checkpoint and replays the journal.
+	 *
+	 * @param entries receives the entries, the least recently used first
+	 * @return false if there is no valid checkpoint and the index has to be recovered otherwise
+	 */
+	public boolean load(Map<String, Entry> entries) throws IOException {
+		File checkpointFile	= new File(directory, CHECKPOINT_FILE_NAME);
+		if (!checkpointFile.exists()) {
+			return false;
+		}
+		CRC32 checksum	= new CRC32();
+		DataInputStream in	= new DataInputStream(new CheckedInputStream(
+				new BufferedInputStream(new FileInputStream(checkpointFile)), checksum));
+		try {
+			int magic	= in.readInt();
+			int version	= in.readInt();
+			if ((magic != CHECKPOINT_MAGIC) || (version < 1) || (version > CHECKPOINT_VERSION)) {
+				log.warn("unsupported cache index checkpoint, index will be recovered");
+				return false;
+			}
+			int count	= in.readInt();
+			for (int i = 0; i < count; i++) {
+				String name	= in.readUTF();
+				long size	= in.readLong();
+				long lastAccess	= in.readLong();
+				Entry entry	= new Entry(size, lastAccess);
+				if (version >= 2) {
+					entry.writingSince	= in.readLong();
+				}
+				entries.put(name, entry);
+			}
+			long expectedChecksum	= checksum.getValue();
+			if (in.readLong() != expectedChecksum) {
+				log.warn("cache index checkpoint corrupt, index will be recovered");
+				entries.clear();
+				return false;
+			}
+		} catch (EOFException e) {
+			log.warn("cache index checkpoint truncated, index will be recovered");
+			entries.clear();
+			return false;
+		} finally {
+			in.close();
+		}
+		replay(entries);
+		return true;
+	}
+
+	/**
+	 * Replays the records appended to the journal by other processes since it was last read or
+	 * written by this one (the caller holds the {@link FileCacheLock}).
+	 *
+	 * @param entries the entries, the least recently used first
+	 */
+	public void update(Map<String, Entry> entries) throws IOException {
+		replay(entries);
+	}
+
+	private void replay(Map<String, Entry> entries) throws IOException {
+		InputStream journalIn;
+		try {
+			journalIn	= new BufferedInputStream(new FileInputStream(new File(directory, JOURNAL_FILE_NAME)));
+		} catch (FileNotFoundException e) {
+			journalPosition	= 0;
+			return;
+		}
+		DataInputStream in	= new DataInputStream(journalIn);
+		try {
+			if (in.skip(journalPosition) < journalPosition) {
+				throw new IOException("journal shorter than expected, expected " + journalPosition + " bytes");
+			}
+			while (true) {
+				int first	= in.read();
+				if (first < 0) {
+					// regular end of the journal
+					break;
+				}
+				byte[] record;
+				long expectedChecksum;
+				try {
+					int length	= (first << 24) | (in.readUnsignedByte() << 16) |
+							(in.readUnsignedByte() << 8) | in.readUnsignedByte();
+					if ((length <= 0) || (length > 0x10000)) {
+						throw new IOException("invalid record length: " + length);
+					}
+					record	= new byte[length];
+					in.readFully(record);
+					expectedChecksum	= in.readInt() & 0xffffffffL;
+				} catch (EOFException e) {
+					log.warn("cache index journal truncated, ignoring the incomplete record");
+					checkpointRequired	= true;
+					break;
+				}
+				CRC32 checksum	= new CRC32();
+				checksum.update(record);
+				if (checksum.getValue() != expectedChecksum) {
+					log.warn("cache index journal corrupt, ignoring the remaining records");
+					checkpointRequired	= true;
+					break;
+				}
+				applyRecord(record, entries);
+				journalPosition	+= record.length + 8;
+				recordCount++;
+			}
+		} catch (IOException e) {
+			log.warn("cache index journal could not be read completely - " + e);
+			checkpointRequired	= true;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void applyRecord(byte[] record, Map<String, Entry> entries) throws IOException {
+		DataInputStream in	= new DataInputStream(new ByteArrayInputStream(record));
+		byte type	= in.readByte();
+		String name	= in.readUTF();
+		if ((type == RECORD_PUT) || (type == RECORD_WRITE)) {
+			long size	= in.readLong();
+			long time	= in.readLong();
+			Entry entry	= new Entry(size, time);
+			if (type == RECORD_WRITE) {
+				entry.writingSince	= time;
+			}
+			entries.remove(name);
+			entries.put(name, entry);
+		} else if (type == RECORD_ACCESS) {
+			long time	= in.readLong();
+			Entry entry	= entries.get(name);
+			if (entry != null) {
+				entry.lastAccess	= time;
+			}
+		} else if (type == RECORD_REMOVE) {
+			entries.remove(name);
+		} else {
+			throw new IOException("unknown record type: " + type);
+		}
+	}
+
+	/**
+	 * @return true if the journal should be replaced by a new checkpoint (e.g. because its tail was corrupt)
+	 */
+	public boolean isCheckpointRequired() {
+		return checkpointRequired;
+	}
+
+	/**
+	 * @return the number of records in the journal since the last checkpoint
+	 */
+	public int getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * @return the length of the journal read or written so far
+	 */
+	public long getPosition() {
+		return journalPosition;
+	}
+
+	/**
+	 * Writes all entries as a new checkpoint and starts a new journal.
+	 *
+	 * @param entries the entries, the least recently used first
+	 */
+	public void writeCheckpoint(Map<String, Entry> entries) throws IOException {
+		commitCheckpoint(writeCheckpointFile(entries), journalPosition, recordCount);
+	}
+
+	/**
+	 * Writes the entries to a temporary checkpoint file, to be committed by
+	 * {@link #commitCheckpoint(File, long, int)}. The journal isn't accessed, records may be
+	 * appended to it meanwhile.
+	 *
+	 * @param entries the entries, the least recently used first
+	 * @return the temporary file
+	 */
+	public File writeCheckpointFile(Map<String, Entry> entries) throws IOException {
+		File tempFile	= File.createTempFile(CHECKPOINT_FILE_NAME + "-", ".tmp", directory);
+		CRC32 checksum	= new CRC32();
+		FileOutputStream fileOut	= new FileOutputStream(tempFile);
+		DataOutputStream out	= new DataOutputStream(new CheckedOutputStream(
+				new BufferedOutputStream(fileOut), checksum));
+		try {
+			out.writeInt(CHECKPOINT_MAGIC);
+			out.writeInt(CHECKPOINT_VERSION);
+			out.writeInt(entries.size());
+			for (Map.Entry<String, Entry> mapEntry: entries.entrySet()) {
+				out.writeUTF(mapEntry.getKey());
+				out.writeLong(mapEntry.getValue().size);
+				out.writeLong(mapEntry.getValue().lastAccess);
+				out.writeLong(mapEntry.getValue().writingSince);
+			}
+			out.flush();
+			out.writeLong(checksum.getValue());
+			out.flush();
+			// on disk before it replaces the previous checkpoint
+			fileOut.getFD().sync();
+		} catch (IOException e) {
+			out.close();
+			tempFile.delete();
+			throw e;
+		}
+		out.close();
+		return tempFile;
+	}
+
+	/**
+	 * Replaces the checkpoint by the temporary checkpoint file and starts a new journal, keeping the
+	 * records appended since the entries of the checkpoint were taken.
+	 *
+	 * @param position the position of the journal when the entries were taken
+	 * @param recordCount the number of records of the journal when the entries were taken
+	 */
+	public void commitCheckpoint(File tempFile, long position, int recordCount) throws IOException {
+		byte[] tail	= new byte[0];
+		try {
+			flush();
+			if (journalPosition > position) {
+				tail	= new byte[(int) (journalPosition - position)];
+				RandomAccessFile journalFile	= new RandomAccessFile(new File(directory, JOURNAL_FILE_NAME), "r");
+				try {
+					journalFile.seek(position);
+					journalFile.readFully(tail);
+				} finally {
+					journalFile.close();
+				}
+			}
+			closeJournal();
+		} catch (IOException e) {
+			tempFile.delete();
+			throw e;
+		}
+		File checkpointFile	= new File(directory, CHECKPOINT_FILE_NAME);
+		try {
+			// the previous checkpoint stays valid until it was replaced
+			Files.move(tempFile.toPath(), checkpointFile.toPath(),
+					StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			tempFile.delete();
+			throw new IOException("checkpoint could not be renamed to " + checkpointFile + " - " + e, e);
+		}
+		// truncated in place, the journal is always appended to (possibly by other processes)
+		OutputStream journalOut	= new FileOutputStream(new File(directory, JOURNAL_FILE_NAME), false);
+		try {
+			journalOut.write(tail);
+		} finally {
+			journalOut.close();
+		}
+		journalPosition	= tail.length;
+		this.recordCount	-= recordCount;
+		checkpointRequired	= false;
+	}
+
+	public void recordPut(String name, long size, long time) throws IOException {
+		recordPut(RECORD_PUT, name, size, time);
+	}
+
+	/**
+	 * Accounts a file which is about to be written, it isn't evicted by the other processes until
+	 * it was put (see {@link Entry#writingSince}).
+	 */
+	public void recordWrite(String name, long size, long time) throws IOException {
+		recordPut(RECORD_WRITE, name, size, time);
+	}
+
+	private void recordPut(byte type, String name, long size, long time) throws IOException {
+		ByteArrayOutputStream record	= new ByteArrayOutputStream();
+		DataOutputStream out	= new DataOutputStream(record);
+		out.writeByte(type);
+		out.writeUTF(name);
+		out.writeLong(size);
+		out.writeLong(time);
+		appendRecord(record.toByteArray(), true);
+	}
+
+	/**
+	 * Access records are buffered, losing some of them only affects the eviction order.
+	 */
+	public void recordAccess(String name, long time) throws IOException {
+		ByteArrayOutputStream record	= new ByteArrayOutputStream();
+		DataOutputStream out	= new DataOutputStream(record);
+		out.writeByte(RECORD_ACCESS);
+		out.writeUTF(name);
+		out.writeLong(time);
+		appendRecord(record.toByteArray(), false);
+	}
+
+	public void recordRemove(String name) throws IOException {
+		ByteArrayOutputStream record	= new ByteArrayOutputStream();
+		DataOutputStream out	= new DataOutputStream(record);
+		out.writeByte(RECORD_REMOVE);
+		out.writeUTF(name);
+		appendRecord(record.toByteArray(), true);
+	}
+
+	private void appendRecord(byte[] record, boolean flush) throws IOException {
+		if (journalOut == null) {
+			journalOut	= new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(new File(directory, JOURNAL_FILE_NAME), true)));
+		}
+		CRC32 checksum	= new CRC32();
+		checksum.update(record);
+		journalOut.writeInt(record.length);
+		journalOut.write(record);
+		journalOut.writeInt((int) checksum.getValue());
+		if (flush) {
+			journalOut.flush();
+		}
+		journalPosition	+= record.length + 8;
+		recordCount++;
+	}
+
+	/**
+	 * Writes buffered records, e.g. before releasing the {@link FileCacheLock}.
+	 */
+	public void flush() throws IOException {
+		if (journalOut != null) {
+			journalOut.flush();
+		}
+	}
+
+	private void closeJournal() throws IOException {
+		if (journalOut != null) {
+			DataOutputStream out	= journalOut;
+			journalOut	= null;
+			out.close();
+		}
+	}
+
+	/**
+	 * Flushes buffered records and closes the journal.
+	 */
+	public void close() throws IOException {
+		closeJournal();
+	}
+
+	/**
+	 * Deletes checkpoint and journal, so that the index is recovered on the next start.
+	 */
+	public void delete() {
+		try {
+			closeJournal();
+		} catch (IOException e) {
+			log.debug("journal could not be closed - " + e);
+		}
+		new File(directory, CHECKPOINT_FILE_NAME).delete();
+		new File(directory, JOURNAL_FILE_NAME).delete();
+	}
+
+}
@@ -0,0 +1,103 @@
+package de.siteof.resource;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Maps resource names to the files of the file cache. Files are named by the SHA-1 hash of the
+ * resource name and spread over two levels of subdirectories named by the first two bytes of
+ * the hash (e.g. "3f/a2/3fa2..."), so that file names have a fixed length and no directory holds
+ * more than a fraction of the files.
+ * Older versions stored the URL-encoded resource name in the cache directory itself
+ * (the flat layout), those names can still be mapped for the migration.
+ */
+class FileCacheLayout {
+
+	private static final String HASH_ALGORITHM	= "SHA-1";
+	private static final String FILENAME_CHARSET_NAME	= "UTF-8";
+	private static final char[] HEX_DIGITS	= "0123456789abcdef".toCharArray();
+
+	private static final Log log	= LogFactory.getLog(FileCacheLayout.class);
+
+	private FileCacheLayout() {
+	}
+
+	/**
+	 * @return the path of the cache file relative to the cache directory, using '/' as separator
+	 */
+	public static String getFileName(String resourceName) {
+		String hash	= getHash(resourceName);
+		return hash.substring(0, 2) + '/' + hash.substring(2, 4) + '/' + hash;
+	}
+
+	private static String getHash(String resourceName) {
+		MessageDigest digest;
+		try {
+			digest	= MessageDigest.getInstance(HASH_ALGORITHM);
+			byte[] hash	= digest.digest(resourceName.getBytes(FILENAME_CHARSET_NAME));
+			StringBuilder sb	= new StringBuilder(hash.length * 2);
+			for (byte b: hash) {
+				sb.append(HEX_DIGITS[(b >> 4) & 0x0f]);
+				sb.append(HEX_DIGITS[b & 0x0f]);
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(HASH_ALGORITHM + " not available - " + e, e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(FILENAME_CHARSET_NAME + " not available - " + e, e);
+		}
+	}
+
+	/**
+	 * @return true for the name of a subdirectory of the fan-out
+	 */
+	public static boolean isShardDirectoryName(String name) {
+		return ((name.length() == 2) && (Character.digit(name.charAt(0), 16) >= 0) &&
+				(Character.digit(name.charAt(1), 16) >= 0));
+	}
+
+	/**
+	 * Files in the cache directory which aren't cache entries are hidden: the index checkpoint and
+	 * journal, the lock of a shared cache directory and temporary files still being written.
+	 *
+	 * @return true for the name of a file which isn't a cache entry
+	 */
+	public static boolean isInternalFileName(String name) {
+		return name.startsWith(".");
+	}
+
+	/**
+	 * @return the name of the cache file in the flat layout
+	 */
+	public static String getFlatFileName(String resourceName) {
+		String result;
+		try {
+			result = URLEncoder.encode(resourceName, FILENAME_CHARSET_NAME);
+		} catch (UnsupportedEncodingException e) {
+			log.warn("Failed to convert to filename - " + e, e);
+			result = resourceName;
+		}
+		return result;
+	}
+
+	/**
+	 * @return the resource name of a cache file in the flat layout, or null if it can't be decoded
+	 */
+	public static String getResourceNameByFlatFileName(String fileName) {
+		try {
+			return URLDecoder.decode(fileName, FILENAME_CHARSET_NAME);
+		} catch (UnsupportedEncodingException e) {
+			log.warn("Failed to convert filename - " + e, e);
+		} catch (IllegalArgumentException e) {
+			log.debug("not a flat cache file name: " + fileName);
+		}
+		return null;
+	}
+
+}
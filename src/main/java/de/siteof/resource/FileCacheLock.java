@@ -0,0 +1,95 @@
+package de.siteof.resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Exclusive lock on a cache directory shared by several processes, held while the index is read
+ * or changed. The lock file also holds the generation of the index, which is incremented whenever
+ * the journal is started over, so that the other processes know to reload the index instead of
+ * replaying the records appended since they last held the lock.
+ * File locks are held on behalf of the whole JVM, the caller has to make sure only one thread
+ * (and only one lock instance per directory) locks at a time.
+ */
+class FileCacheLock {
+
+	static final String LOCK_FILE_NAME	= ".lock";
+
+	private static final Log log	= LogFactory.getLog(FileCacheLock.class);
+
+	private final File file;
+	private RandomAccessFile randomAccessFile;
+	private FileLock lock;
+
+	public FileCacheLock(File directory) {
+		this.file	= new File(directory, LOCK_FILE_NAME);
+	}
+
+	/**
+	 * Waits until no other process holds the lock.
+	 */
+	public void lock() throws IOException {
+		if ((randomAccessFile == null) || (!randomAccessFile.getChannel().isOpen())) {
+			// the channel is closed if a thread was interrupted while waiting
+			randomAccessFile	= new RandomAccessFile(file, "rw");
+		}
+		lock	= randomAccessFile.getChannel().lock();
+	}
+
+	public void unlock() {
+		if (lock != null) {
+			FileLock lock	= this.lock;
+			this.lock	= null;
+			try {
+				lock.release();
+			} catch (IOException e) {
+				log.warn("cache directory lock could not be released - " + e, e);
+			}
+		}
+	}
+
+	/**
+	 * @return the generation of the index (0 if none was written yet), only valid while locked
+	 */
+	public long getGeneration() throws IOException {
+		FileChannel channel	= randomAccessFile.getChannel();
+		ByteBuffer buffer	= ByteBuffer.allocate(8);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, buffer.position()) < 0) {
+				return 0;
+			}
+		}
+		buffer.flip();
+		return buffer.getLong();
+	}
+
+	public void setGeneration(long generation) throws IOException {
+		FileChannel channel	= randomAccessFile.getChannel();
+		ByteBuffer buffer	= ByteBuffer.allocate(8);
+		buffer.putLong(generation);
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, buffer.position());
+		}
+	}
+
+	public void close() {
+		unlock();
+		if (randomAccessFile != null) {
+			try {
+				randomAccessFile.close();
+			} catch (IOException e) {
+				log.debug("cache directory lock file could not be closed - " + e);
+			}
+			randomAccessFile	= null;
+		}
+	}
+
+}
@@ -0,0 +1,824 @@
+package de.siteof.resource;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import de.siteof.resource.util.ByteBufferInputStream;
+import de.siteof.resource.util.CacheFileHeader;
+import de.siteof.resource.util.CacheStatisticsCounter;
+import de.siteof.resource.util.MappedFileReader;
+
+/**
+ * Stores the entries of the file cache as records appended to large segment files, with an index of
+ * the record offsets held in memory. Writes are sequential and small entries are packed densely.
+ * Removing an entry appends a tombstone record. Once the limits are exceeded, the oldest segment is
+ * compacted: entries accessed since they were written are copied to the current segment (second
+ * chance), the others are evicted, and the segment file is deleted as a whole.
+ * The index is rebuilt on start-up by reading the record headers of the segments, the records of
+ * the last segment are verified completely, as only its tail may have been torn by a crash.
+ * The records of older segments are verified when they are copied by a compaction.
+ * Lookups only hold the monitor of the store while accessing the index, appending and compacting
+ * hold a separate write lock, so that lookups don't wait for a segment to be copied.
+ * Serves as the garbage collector of the cache as well.
+ */
+class FileCacheSegmentStore implements IFileCacheStore, ICacheGarbageCollector {
+
+	/**
+	 * Content up to this length is collected in memory and written to the segment directly,
+	 * larger content is written to a temporary file first.
+	 */
+	private static final int MAX_BUFFERED_LENGTH	= 1024 * 1024;
+	private static final String SEGMENT_FILE_SUFFIX	= ".seg";
+	private static final int RECORD_MAGIC	= 0x53524352;	// "SRCR"
+	private static final byte RECORD_PUT	= 1;
+	private static final byte RECORD_REMOVE	= 2;
+
+	private static class Segment {
+		private final long id;
+		private final File file;
+		private long size;
+		private RandomAccessFile reader;
+		private boolean deleted;
+		private boolean closed;
+
+		public Segment(long id, File file) {
+			this.id	= id;
+			this.file	= file;
+		}
+
+		/**
+		 * @throws ClosedChannelException if the segment was deleted or closed meanwhile
+		 */
+		public synchronized FileChannel getChannel() throws IOException {
+			if ((deleted) || (closed)) {
+				throw new ClosedChannelException();
+			}
+			if (reader == null) {
+				reader	= new RandomAccessFile(file, "r");
+			}
+			return reader.getChannel();
+		}
+
+		/**
+		 * Closes the reader for good, as the store was closed.
+		 */
+		public synchronized void close() {
+			closed	= true;
+			closeReader();
+		}
+
+		private void closeReader() {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					log.debug("segment could not be closed: " + file + " - " + e);
+				}
+				reader	= null;
+			}
+		}
+
+		public synchronized void delete() {
+			deleted	= true;
+			closeReader();
+			file.delete();
+		}
+	}
+
+	private static class Entry {
+		private final Segment segment;
+		private final long offset;
+		private final int length;
+		private final int recordLength;
+		private long time;
+		private boolean accessed;
+
+		public Entry(Segment segment, long offset, int length, int recordLength, long time) {
+			this.segment	= segment;
+			this.offset	= offset;
+			this.length	= length;
+			this.recordLength	= recordLength;
+			this.time	= time;
+		}
+	}
+
+	private static final Log log	= LogFactory.getLog(FileCacheSegmentStore.class);
+
+	private final File directory;
+	private final long segmentSize;
+	private final long maxTotalSize;
+	private final int maxEntryCount;
+	private final CacheStatisticsCounter statistics;
+	/**
+	 * Held while appending to the active segment or compacting (before the monitor, if both are needed).
+	 */
+	private final Object writeLock	= new Object();
+	private final Map<String, Entry> entries	= new HashMap<String, Entry>();
+	/**
+	 * The segments, the oldest first. The last one is the one appended to (guarded by the write lock).
+	 */
+	private final LinkedList<Segment> segments	= new LinkedList<Segment>();
+	private FileOutputStream activeFileOut;
+	private DataOutputStream activeOut;
+	private long totalSize;
+	private volatile boolean initialised;
+	private volatile boolean closed;
+
+	/**
+	 * @param segmentSize the size at which a new segment is started
+	 * @param maxTotalSize the maximum total size of the segments (0 for no limit)
+	 * @param maxEntryCount the maximum number of entries (0 for no limit)
+	 */
+	public FileCacheSegmentStore(File directory, long segmentSize, long maxTotalSize, int maxEntryCount,
+			CacheStatisticsCounter statistics) {
+		if (segmentSize <= 0) {
+			throw new IllegalArgumentException("invalid segment size: " + segmentSize);
+		}
+		this.directory	= directory;
+		this.segmentSize	= segmentSize;
+		this.maxTotalSize	= maxTotalSize;
+		this.maxEntryCount	= maxEntryCount;
+		this.statistics	= statistics;
+	}
+
+	/**
+	 * Rebuilds the index from the segment files (once), the write lock has to be held.
+	 */
+	private void initialise() throws IOException {
+		checkOpen();
+		if (initialised) {
+			return;
+		}
+		synchronized (this) {
+			initialiseIndex();
+		}
+		initialised	= true;
+		if (log.isDebugEnabled()) {
+			log.debug("segment store initialised, segments=" + segments.size() + ", entries=" + getEntryCount());
+		}
+	}
+
+	private void initialiseIndex() throws IOException {
+		directory.mkdirs();
+		File[] files	= directory.listFiles();
+		List<Long> ids	= new ArrayList<Long>();
+		if (files != null) {
+			for (File file: files) {
+				String name	= file.getName();
+				if ((file.isFile()) && (name.endsWith(SEGMENT_FILE_SUFFIX))) {
+					try {
+						ids.add(Long.valueOf(name.substring(0, name.length() - SEGMENT_FILE_SUFFIX.length())));
+					} catch (NumberFormatException e) {
+						log.debug("ignoring file in segment directory: " + name);
+					}
+				}
+			}
+		}
+		Long[] sortedIds	= ids.toArray(new Long[ids.size()]);
+		Arrays.sort(sortedIds);
+		for (int i = 0; i < sortedIds.length; i++) {
+			Segment segment	= new Segment(sortedIds[i].longValue(), getSegmentFile(sortedIds[i].longValue()));
+			readSegment(segment, (i == sortedIds.length - 1));
+			segments.add(segment);
+			totalSize	+= segment.size;
+		}
+		if (segments.isEmpty()) {
+			segments.add(new Segment(1, getSegmentFile(1)));
+		}
+		openActiveSegment();
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("segment store is closed: " + directory);
+		}
+	}
+
+	private File getSegmentFile(long id) {
+		return new File(directory, String.format("%08d", Long.valueOf(id)) + SEGMENT_FILE_SUFFIX);
+	}
+
+	/**
+	 * Adds the records of the segment to the index.
+	 *
+	 * @param verify true to verify the checksums and truncate a torn tail (the last segment)
+	 */
+	private void readSegment(Segment segment, boolean verify) throws IOException {
+		long fileLength	= segment.file.length();
+		long offset	= 0;
+		DataInputStream in	= new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+		try {
+			while (offset < fileLength) {
+				int headerLength;
+				byte type;
+				String key;
+				long time;
+				int length;
+				CRC32 checksum	= new CRC32();
+				try {
+					if (in.readInt() != RECORD_MAGIC) {
+						break;
+					}
+					type	= in.readByte();
+					key	= in.readUTF();
+					time	= in.readLong();
+					length	= in.readInt();
+					byte[] header	= getRecordHeader(type, key, time, length);
+					headerLength	= header.length;
+					if ((length < 0) || (offset + headerLength + length + 4 > fileLength)) {
+						break;
+					}
+					if (verify) {
+						checksum.update(header);
+						byte[] buffer	= new byte[8192];
+						int remaining	= length;
+						while (remaining > 0) {
+							int count	= in.read(buffer, 0, Math.min(remaining, buffer.length));
+							if (count < 0) {
+								throw new EOFException();
+							}
+							checksum.update(buffer, 0, count);
+							remaining	-= count;
+						}
+						if (in.readInt() != (int) checksum.getValue()) {
+							break;
+						}
+					} else {
+						skipFully(in, length + 4);
+					}
+				} catch (EOFException e) {
+					break;
+				}
+				int recordLength	= headerLength + length + 4;
+				if (type == RECORD_PUT) {
+					Entry previous	= entries.put(key, new Entry(segment, offset + headerLength, length, recordLength, time));
+					if ((previous != null) && (log.isDebugEnabled())) {
+						log.debug("superseded cache entry: " + key);
+					}
+				} else {
+					entries.remove(key);
+				}
+				offset	+= recordLength;
+			}
+		} finally {
+			in.close();
+		}
+		if (offset < fileLength) {
+			log.warn("segment " + segment.file + " has an invalid tail at " + offset + ", length=" + fileLength);
+			if (verify) {
+				RandomAccessFile file	= new RandomAccessFile(segment.file, "rw");
+				try {
+					file.setLength(offset);
+				} finally {
+					file.close();
+				}
+				fileLength	= offset;
+			}
+		}
+		segment.size	= fileLength;
+	}
+
+	private static void skipFully(InputStream in, long count) throws IOException {
+		while (count > 0) {
+			long skipped	= in.skip(count);
+			if (skipped <= 0) {
+				if (in.read() < 0) {
+					throw new EOFException();
+				}
+				skipped	= 1;
+			}
+			count	-= skipped;
+		}
+	}
+
+	private static byte[] getRecordHeader(byte type, String key, long time, int length) throws IOException {
+		ByteArrayOutputStream buffer	= new ByteArrayOutputStream(64);
+		DataOutputStream out	= new DataOutputStream(buffer);
+		out.writeInt(RECORD_MAGIC);
+		out.writeByte(type);
+		out.writeUTF(key);
+		out.writeLong(time);
+		out.writeInt(length);
+		return buffer.toByteArray();
+	}
+
+	private void openActiveSegment() throws IOException {
+		Segment segment	= segments.getLast();
+		activeFileOut	= new FileOutputStream(segment.file, true);
+		activeOut	= new DataOutputStream(new BufferedOutputStream(activeFileOut));
+	}
+
+	private void closeActiveSegment() throws IOException {
+		if (activeOut != null) {
+			DataOutputStream out	= activeOut;
+			activeOut	= null;
+			activeFileOut	= null;
+			out.close();
+		}
+	}
+
+	/**
+	 * Appends a record to the active segment, starting a new segment if it would grow too large.
+	 * The write lock has to be held.
+	 *
+	 * @param data the content, or null for a tombstone
+	 * @return the entry of the record (not yet indexed)
+	 */
+	private Entry appendRecord(byte type, String key, long time, InputStream data, int length) throws IOException {
+		byte[] header	= getRecordHeader(type, key, time, length);
+		int recordLength	= header.length + length + 4;
+		Segment segment	= segments.getLast();
+		if ((segment.size > 0) && (segment.size + recordLength > segmentSize)) {
+			closeActiveSegment();
+			segment	= new Segment(segment.id + 1, getSegmentFile(segment.id + 1));
+			segments.add(segment);
+			openActiveSegment();
+		}
+		try {
+			CRC32 checksum	= new CRC32();
+			checksum.update(header);
+			activeOut.write(header);
+			if (data != null) {
+				byte[] buffer	= new byte[8192];
+				int remaining	= length;
+				while (remaining > 0) {
+					int count	= data.read(buffer, 0, Math.min(remaining, buffer.length));
+					if (count < 0) {
+						throw new EOFException("content shorter than expected, key=" + key);
+					}
+					checksum.update(buffer, 0, count);
+					activeOut.write(buffer, 0, count);
+					remaining	-= count;
+				}
+			}
+			activeOut.writeInt((int) checksum.getValue());
+			activeOut.flush();
+		} catch (IOException e) {
+			// don't leave a partial record in front of the following ones
+			closeActiveSegment();
+			RandomAccessFile file	= new RandomAccessFile(segment.file, "rw");
+			try {
+				file.setLength(segment.size);
+			} finally {
+				file.close();
+			}
+			openActiveSegment();
+			throw e;
+		}
+		Entry entry	= new Entry(segment, segment.size + header.length, length, recordLength, time);
+		segment.size	+= recordLength;
+		synchronized (this) {
+			totalSize	+= recordLength;
+		}
+		return entry;
+	}
+
+	@Override
+	public boolean exists(String key) {
+		return (getEntry(key) != null);
+	}
+
+	/**
+	 * @return false if the store couldn't be initialised or was closed
+	 */
+	private boolean tryInitialise() {
+		if (closed) {
+			return false;
+		}
+		if (initialised) {
+			return true;
+		}
+		try {
+			synchronized (writeLock) {
+				initialise();
+			}
+			return true;
+		} catch (IOException e) {
+			log.warn("segment store could not be initialised - " + e, e);
+			return false;
+		}
+	}
+
+	/**
+	 * @return the entry, or null if there is none (or the store couldn't be initialised)
+	 */
+	private Entry getEntry(String key) {
+		if (!tryInitialise()) {
+			return null;
+		}
+		synchronized (this) {
+			return entries.get(key);
+		}
+	}
+
+	@Override
+	public long getLastModified(String key) {
+		Entry entry	= getEntry(key);
+		if (entry == null) {
+			return 0;
+		}
+		synchronized (this) {
+			return entry.time;
+		}
+	}
+
+	@Override
+	public long getLength(String key) {
+		Entry entry	= getEntry(key);
+		return (entry != null ? entry.length : 0);
+	}
+
+	@Override
+	public InputStream openStream(String key, MappedFileReader mappedFileReader) throws IOException {
+		checkOpen();
+		boolean retried	= false;
+		while (true) {
+			Entry entry	= getEntry(key);
+			if (entry == null) {
+				throw new FileNotFoundException("no cache entry: " + key);
+			}
+			try {
+				return readEntry(entry, mappedFileReader);
+			} catch (ClosedChannelException e) {
+				// the segment was compacted meanwhile, the entry may have been copied
+				if (retried) {
+					throw e;
+				}
+				retried	= true;
+			}
+		}
+	}
+
+	/**
+	 * Reads the complete record of the entry and verifies its checksum.
+	 *
+	 * @return the content of the entry, or null if the record is corrupt
+	 */
+	private InputStream readVerifiedEntry(Entry entry) throws IOException {
+		int headerLength	= entry.recordLength - entry.length - 4;
+		byte[] record	= new byte[entry.recordLength];
+		ByteBuffer buffer	= ByteBuffer.wrap(record);
+		FileChannel channel	= entry.segment.getChannel();
+		long position	= entry.offset - headerLength;
+		while (buffer.hasRemaining()) {
+			int count	= channel.read(buffer, position);
+			if (count < 0) {
+				throw new EOFException("segment truncated: " + entry.segment.file);
+			}
+			position	+= count;
+		}
+		CRC32 checksum	= new CRC32();
+		checksum.update(record, 0, record.length - 4);
+		if (ByteBuffer.wrap(record, record.length - 4, 4).getInt() != (int) checksum.getValue()) {
+			return null;
+		}
+		return new ByteArrayInputStream(record, headerLength, entry.length);
+	}
+
+	private InputStream readEntry(Entry entry, MappedFileReader mappedFileReader) throws IOException {
+		FileChannel channel	= entry.segment.getChannel();
+		if ((mappedFileReader != null) && (entry.length >= mappedFileReader.getMapThreshold())) {
+			return new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, entry.offset, entry.length));
+		}
+		byte[] data	= new byte[entry.length];
+		ByteBuffer buffer	= ByteBuffer.wrap(data);
+		long position	= entry.offset;
+		while (buffer.hasRemaining()) {
+			int count	= channel.read(buffer, position);
+			if (count < 0) {
+				throw new EOFException("segment truncated: " + entry.segment.file);
+			}
+			position	+= count;
+		}
+		return new ByteArrayInputStream(data);
+	}
+
+	@Override
+	public IFileCacheOutput createOutput(String key) throws IOException {
+		checkOpen();
+		return new SegmentOutput(key);
+	}
+
+	/**
+	 * Collects the content of an entry, which is appended to the active segment on publishing.
+	 */
+	private class SegmentOutput extends OutputStream implements IFileCacheOutput {
+		private final String key;
+		private byte[] buffer	= new byte[8192];
+		private long size;
+		private File tempFile;
+		private FileOutputStream fileOut;
+
+		public SegmentOutput(String key) {
+			this.key	= key;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return this;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] data, int offset, int length) throws IOException {
+			if ((fileOut == null) && (size + length > MAX_BUFFERED_LENGTH)) {
+				directory.mkdirs();
+				tempFile	= File.createTempFile(".segment-", ".tmp", directory);
+				fileOut	= new FileOutputStream(tempFile);
+				fileOut.write(buffer, 0, (int) size);
+				buffer	= null;
+			}
+			if (fileOut != null) {
+				fileOut.write(data, offset, length);
+			} else {
+				if (size + length > buffer.length) {
+					buffer	= Arrays.copyOf(buffer, (int) Math.min(
+							Math.max(buffer.length * 2, size + length), MAX_BUFFERED_LENGTH));
+				}
+				System.arraycopy(data, offset, buffer, (int) size, length);
+			}
+			size	+= length;
+		}
+
+		@Override
+		public long getSize() {
+			return size;
+		}
+
+		@Override
+		public void updateHeader(int length, int storedLength, int checksum) throws IOException {
+			if (fileOut != null) {
+				CacheFileHeader.update(fileOut.getChannel(), length, storedLength, checksum);
+			} else {
+				CacheFileHeader.update(buffer, length, storedLength, checksum);
+			}
+		}
+
+		@Override
+		public void publish() throws IOException {
+			try {
+				if (size > Integer.MAX_VALUE) {
+					throw new IOException("cache entry too large for a segment, length=" + size);
+				}
+				InputStream in;
+				if (fileOut != null) {
+					fileOut.close();
+					in	= new BufferedInputStream(new FileInputStream(tempFile));
+				} else {
+					in	= new ByteArrayInputStream(buffer, 0, (int) size);
+				}
+				try {
+					append(key, in, (int) size);
+				} finally {
+					in.close();
+				}
+			} finally {
+				discard();
+			}
+		}
+
+		@Override
+		public void discard() {
+			buffer	= null;
+			if (fileOut != null) {
+				try {
+					fileOut.close();
+				} catch (IOException e) {
+					log.debug("temporary segment file could not be closed - " + e);
+				}
+				tempFile.delete();
+			}
+		}
+	}
+
+	private void append(String key, InputStream in, int length) throws IOException {
+		synchronized (writeLock) {
+			initialise();
+			Entry entry	= appendRecord(RECORD_PUT, key, System.currentTimeMillis(), in, length);
+			synchronized (this) {
+				entries.put(key, entry);
+			}
+			evictIfRequired();
+		}
+	}
+
+	/**
+	 * Only changes the time in the index, it reverts to the time of the record after a restart.
+	 */
+	@Override
+	public boolean touch(String key) {
+		Entry entry	= getEntry(key);
+		if (entry == null) {
+			return false;
+		}
+		synchronized (this) {
+			entry.time	= System.currentTimeMillis();
+		}
+		return true;
+	}
+
+	@Override
+	public boolean delete(String key) {
+		if (!tryInitialise()) {
+			return false;
+		}
+		synchronized (writeLock) {
+			synchronized (this) {
+				if (entries.remove(key) == null) {
+					return false;
+				}
+			}
+			try {
+				appendRecord(RECORD_REMOVE, key, System.currentTimeMillis(), null, 0);
+			} catch (IOException e) {
+				log.warn("tombstone could not be written, the entry may reappear after a restart, key=" + key +
+						" - " + e, e);
+			}
+			return true;
+		}
+	}
+
+	@Override
+	public List<String> getKeys() {
+		tryInitialise();
+		synchronized (this) {
+			return new ArrayList<String>(entries.keySet());
+		}
+	}
+
+	private synchronized boolean isOverLimit() {
+		return (((maxTotalSize > 0) && (totalSize > maxTotalSize)) ||
+				((maxEntryCount > 0) && (entries.size() > maxEntryCount)));
+	}
+
+	/**
+	 * The write lock has to be held.
+	 */
+	private void evictIfRequired() throws IOException {
+		// every entry gets one second chance at most, so the number of compactions is bounded
+		int maxCompactionCount	= segments.size() * 2;
+		while ((isOverLimit()) && (segments.size() > 1) && (maxCompactionCount-- > 0)) {
+			compact(segments.getFirst());
+		}
+	}
+
+	/**
+	 * Copies the entries of the segment which were accessed since they were written to the active
+	 * segment, evicts the other entries and deletes the segment. Tombstones are dropped, as there is
+	 * no older segment they could apply to.
+	 * The write lock has to be held, so the entries of the segment can only be looked up meanwhile;
+	 * the monitor is only held to update the index.
+	 */
+	private void compact(Segment segment) throws IOException {
+		int evictedCount	= 0;
+		Map<String, Entry> copiedEntries	= new LinkedHashMap<String, Entry>();
+		synchronized (this) {
+			boolean overCount	= ((maxEntryCount > 0) && (entries.size() > maxEntryCount));
+			Iterator<Map.Entry<String, Entry>> iterator	= entries.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<String, Entry> mapEntry	= iterator.next();
+				Entry entry	= mapEntry.getValue();
+				if (entry.segment != segment) {
+					continue;
+				}
+				if ((entry.accessed) && (!overCount)) {
+					copiedEntries.put(mapEntry.getKey(), entry);
+				} else {
+					iterator.remove();
+					statistics.recordEviction(CacheEvictionCause.SIZE);
+					evictedCount++;
+				}
+			}
+		}
+		for (Map.Entry<String, Entry> mapEntry: copiedEntries.entrySet()) {
+			Entry entry	= mapEntry.getValue();
+			// verified, as the copy gets a new checksum
+			InputStream in	= readVerifiedEntry(entry);
+			if (in == null) {
+				log.warn("dropping corrupt cache entry while compacting " + segment.file + ": " + mapEntry.getKey());
+				synchronized (this) {
+					entries.remove(mapEntry.getKey());
+				}
+				evictedCount++;
+				continue;
+			}
+			Entry copy	= appendRecord(RECORD_PUT, mapEntry.getKey(), entry.time, in, entry.length);
+			synchronized (this) {
+				// the entry may have been touched meanwhile
+				copy.time	= entry.time;
+				entries.put(mapEntry.getKey(), copy);
+			}
+		}
+		segments.remove(segment);
+		synchronized (this) {
+			totalSize	-= segment.size;
+		}
+		segment.delete();
+		if (log.isDebugEnabled()) {
+			log.debug("compacted segment " + segment.file + ", copied=" + copiedEntries.size() +
+					", evicted=" + evictedCount);
+		}
+	}
+
+	@Override
+	public void triggerBeforeWrite(Object key, long size) {
+		// the limits are enforced when the entry is appended
+	}
+
+	@Override
+	public void triggerAfterWrite(Object key, long size) {
+	}
+
+	@Override
+	public void triggerAccess(Object key) {
+		Entry entry	= getEntry((String) key);
+		if (entry != null) {
+			synchronized (this) {
+				entry.accessed	= true;
+			}
+		}
+	}
+
+	@Override
+	public void triggerRemove(Object key) {
+		// removed by delete
+	}
+
+	@Override
+	public int getEntryCount() {
+		tryInitialise();
+		synchronized (this) {
+			return entries.size();
+		}
+	}
+
+	@Override
+	public long getTotalSize() {
+		tryInitialise();
+		synchronized (this) {
+			return totalSize;
+		}
+	}
+
+	/**
+	 * Forces the active segment to disk and closes the segment files. The store can't be used afterwards.
+	 */
+	@Override
+	public void close() {
+		synchronized (writeLock) {
+			if (closed) {
+				return;
+			}
+			closed	= true;
+			if (activeOut != null) {
+				try {
+					activeOut.flush();
+					activeFileOut.getFD().sync();
+				} catch (IOException e) {
+					log.warn("segment could not be synchronised - " + e, e);
+				}
+				try {
+					closeActiveSegment();
+				} catch (IOException e) {
+					log.warn("segment could not be closed - " + e, e);
+				}
+			}
+			for (Segment segment: segments) {
+				segment.close();
+			}
+		}
+	}
+
+}
@@ -1,316 +1,900 @@
 package de.siteof.resource;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.DeflaterOutputStream;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import de.siteof.cache.IObjectCache;
-import de.siteof.cache.ObjectCache;
 import de.siteof.resource.event.IResourceListener;
+import de.siteof.resource.event.MetaResourceLoaderEvent;
+import de.siteof.resource.event.NotModifiedResourceLoaderEvent;
 import de.siteof.resource.event.ResourceLoaderEvent;
+import de.siteof.resource.util.BoundedTaskDispatcher;
+import de.siteof.resource.util.CacheFileHeader;
+import de.siteof.resource.util.CacheStatisticsCounter;
+import de.siteof.resource.util.CacheWarmUp;
+import de.siteof.resource.util.ExpiryPolicy;
 import de.siteof.resource.util.IOUtil;
+import de.siteof.resource.util.IResourceBytesSink;
+import de.siteof.resource.util.MappedFileReader;
+import de.siteof.resource.util.NegativeResultCache;
+import de.siteof.resource.util.ObjectHolder;
+import de.siteof.resource.util.ResourceCompressor;
+import de.siteof.resource.util.ResourceHandleMap;
+import de.siteof.resource.util.TeeResourceBytesListener;
+import de.siteof.task.AbstractTask;
+import de.siteof.task.ITask;
 import de.siteof.task.ITaskManager;
 
-public class FileCachedResourceLoader extends AbstractResourceLoader {
+/**
+ * Caches the resources of the parent loader in files of a cache directory.
+ * Resources larger than 2 GB are served but not cached, the cache file header stores their length as int.
+ */
+public class FileCachedResourceLoader extends AbstractResourceLoader implements ICacheStatisticsProvider {
 
-	private static interface ICacheGarbageCollector {
+	private static interface IFileCacheContext {
+
+		IFileCacheStore getStore();
+
+		ICacheGarbageCollector getCacheGarbageCollector();
+
+		/**
+		 * @return the names of resources recently found to be missing
+		 */
+		NegativeResultCache getNegativeResultCache();
+
+		CacheStatisticsCounter getStatistics();
+
+		/**
+		 * @return the compressor used for new cache files, or null if compression is disabled
+		 */
+		ResourceCompressor getCompressor();
 
-		void triggerBeforeWrite(Object key, long size);
-		void triggerAfterWrite(Object key, long size);
+		void setCompressor(ResourceCompressor compressor);
+
+		/**
+		 * @return the policy deciding when cache files expire, or null if they don't expire
+		 */
+		ExpiryPolicy getExpiryPolicy();
+
+		void setExpiryPolicy(ExpiryPolicy expiryPolicy);
+
+		/**
+		 * @return the reader used to serve cache hits from mapped files, or null to read them as streams
+		 */
+		MappedFileReader getMappedFileReader();
+
+		void setMappedFileReader(MappedFileReader mappedFileReader);
+
+		/**
+		 * @return the dispatcher running the reads of asynchronous requests, or null to read in the calling thread
+		 */
+		BoundedTaskDispatcher getReadDispatcher();
+
+		void setReadDispatcher(BoundedTaskDispatcher readDispatcher);
 	}
 
-	private static class FileCacheGarbageCollector implements ICacheGarbageCollector {
 
-		private static class FileInfo {
-			private final String name;
-			private long size;
-			private long timestamp;
+	private static class FileCacheContext implements IFileCacheContext {
 
-			public FileInfo(String name) {
-				this.name	= name;
-			}
+		private final IFileCacheStore store;
+		private final ICacheGarbageCollector cacheGarbageCollector;
+		private final NegativeResultCache negativeResultCache = new NegativeResultCache();
+		private final CacheStatisticsCounter statistics;
+		private volatile ResourceCompressor compressor;
+		private volatile ExpiryPolicy expiryPolicy;
+		private volatile MappedFileReader mappedFileReader;
+		private volatile BoundedTaskDispatcher readDispatcher;
 
-			/**
-			 * @return the size
-			 */
-			public long getSize() {
-				return size;
-			}
-			/**
-			 * @param size the size to set
-			 */
-			public void setSize(long size) {
-				this.size = size;
-			}
-			/**
-			 * @return the timestamp
-			 */
-			public long getTimestamp() {
-				return timestamp;
-			}
-			/**
-			 * @param timestamp the timestamp to set
-			 */
-			public void setTimestamp(long timestamp) {
-				this.timestamp = timestamp;
-			}
-			/**
-			 * @return the name
-			 */
-			public String getName() {
-				return name;
-			}
+		public FileCacheContext(IFileCacheStore store, ICacheGarbageCollector cacheGarbageCollector,
+				CacheStatisticsCounter statistics) {
+			this.store	= store;
+			this.cacheGarbageCollector	= cacheGarbageCollector;
+			this.statistics	= statistics;
 		}
 
-		private static class FileInfoTimestampComparator implements Comparator<FileInfo> {
+		@Override
+		public IFileCacheStore getStore() {
+			return store;
+		}
 
-			private static Comparator<FileInfo> comparator	= new FileInfoTimestampComparator();
+		@Override
+		public ICacheGarbageCollector getCacheGarbageCollector() {
+			return cacheGarbageCollector;
+		}
 
-			public static Comparator<FileInfo> getInstance() {
-				return comparator;
-			}
+		@Override
+		public NegativeResultCache getNegativeResultCache() {
+			return negativeResultCache;
+		}
 
-			@Override
-			public int compare(FileInfo fileInfo1, FileInfo fileInfo2) {
-				long diff	= fileInfo1.getTimestamp() - fileInfo2.getTimestamp();
-				if (diff < 0) {
-					return -1;
-				} else if (diff > 0) {
-					return 1;
-				} else {
-					return 0;
-				}
-			}
+		@Override
+		public CacheStatisticsCounter getStatistics() {
+			return statistics;
+		}
 
+		@Override
+		public ResourceCompressor getCompressor() {
+			return compressor;
 		}
 
-		private final String cacheDirectory;
-		private final long maxTotalSize;
-		private final int maxFileCount;
-//		private SortedSet fileInfoSet;
-		private LinkedList<FileInfo> fileInfoList;
-		private Map<String, FileInfo> fileInfoByNameMap;
-		private long totalSize;
+		@Override
+		public void setCompressor(ResourceCompressor compressor) {
+			this.compressor = compressor;
+		}
 
-		private static final Log log	= LogFactory.getLog(FileCachedResourceLoader.class);
+		@Override
+		public ExpiryPolicy getExpiryPolicy() {
+			return expiryPolicy;
+		}
+
+		@Override
+		public void setExpiryPolicy(ExpiryPolicy expiryPolicy) {
+			this.expiryPolicy = expiryPolicy;
+		}
 
-		public FileCacheGarbageCollector(String cacheDirectory, long maxTotalSize, int maxFileCount) {
-			this.cacheDirectory	= cacheDirectory;
-			this.maxTotalSize		= maxTotalSize;
-			this.maxFileCount		= maxFileCount;
+		@Override
+		public MappedFileReader getMappedFileReader() {
+			return mappedFileReader;
 		}
 
-		private void updateFileInfo(String name, long size) {
-			FileInfo fileInfo	= (FileInfo) fileInfoByNameMap.get(name);
-			if (fileInfo != null) {
-				totalSize	= totalSize - fileInfo.getSize() + size;
-				fileInfo.setSize(size);
-				fileInfo.setTimestamp(System.currentTimeMillis());
-			}
+		@Override
+		public void setMappedFileReader(MappedFileReader mappedFileReader) {
+			this.mappedFileReader = mappedFileReader;
 		}
 
 		@Override
-		public void triggerBeforeWrite(Object key, long size) {
-			synchronized (this) {
-				String thisCacheFileName	= (String) key;
-				if (fileInfoList == null) {
-					File cacheDirectory	= new File(this.cacheDirectory);
-					if (!cacheDirectory.exists()) {
-						return;
-					}
-					log.debug("initialising file cache garbage collector");
-					//fileInfoSet			= new TreeSet(new FileInfoTimestampComparator());
-					fileInfoList		= new LinkedList<FileInfo>();
-					fileInfoByNameMap	= new HashMap<String, FileInfo>();
-					totalSize		= 0;
-					File[] files	= cacheDirectory.listFiles();
-					List<FileInfo> list		= new ArrayList<FileInfo>();
-					for (int i = 0; i < files.length; i++) {
-						String name	= files[i].getName();
-						FileInfo fileInfo	= new FileInfo(name);
-						fileInfo.setSize(files[i].length());
-						fileInfo.setTimestamp(files[i].lastModified());
-						totalSize	+= fileInfo.getSize();
-						list.add(fileInfo);
-						fileInfoByNameMap.put(name, fileInfo);
-					}
-					//fileInfoSet.addAll(list);
-					Collections.sort(list, FileInfoTimestampComparator.getInstance());
-					fileInfoList.addAll(list);
-				}
-
-				updateFileInfo(thisCacheFileName, size);
-
-				while (((maxTotalSize > 0) && (totalSize > maxTotalSize)) ||
-						((maxFileCount > 0) && (fileInfoList.size() > maxFileCount))) {
-					if (fileInfoList.isEmpty()) {
-						log.error("illegal file cache garbage collector state: totalSize=" + totalSize +
-								", fileInfoList=" + fileInfoList + ", fileInfoByNameMap=" + fileInfoByNameMap);
-						totalSize	= 0;
-						fileInfoList.clear();	// clear all
-						fileInfoByNameMap.clear();
-						fileInfoList	= null;
-						return;
-					} else {
-						FileInfo fileInfo	= (FileInfo) fileInfoList.get(0);
-						if (log.isDebugEnabled()) {
-							log.debug("removing file from cache: " + fileInfo.getName());
-						}
-						fileInfoByNameMap.remove(fileInfo.getName());
-//						fileInfoSet.remove(fileInfo);
-						fileInfoList.remove(0);
-						totalSize	-= fileInfo.getSize();
-						File file	= new File(cacheDirectory, fileInfo.getName());
-						file.delete();
-					}
-				}
-			}
+		public BoundedTaskDispatcher getReadDispatcher() {
+			return readDispatcher;
 		}
 
 		@Override
-		public void triggerAfterWrite(Object key, long size) {
-			synchronized (this) {
-				String thisCacheFileName	= (String) key;
-				updateFileInfo(thisCacheFileName, size);
-			}
+		public void setReadDispatcher(BoundedTaskDispatcher readDispatcher) {
+			this.readDispatcher = readDispatcher;
 		}
 	}
 
-	private static interface IFileCacheContext {
 
-		ICacheGarbageCollector getCacheGarbageCollector();
+
+	/**
+	 * Thrown if a cache file doesn't match the length or checksum recorded in its header.
+	 */
+	private static class CorruptCacheFileException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public CorruptCacheFileException(String message) {
+			super(message);
+		}
 	}
 
 
-	private static class FileCacheContext implements IFileCacheContext {
+	/**
+	 * Outcome of checking and reading the cache file for an asynchronous request.
+	 */
+	private static class CacheReadResult<T> {
 
-		private final ICacheGarbageCollector cacheGarbageCollector;
+		private final T data;
+		private final IResourceMetaData metaData;
+		private final boolean notModified;
+		private final boolean load;
+		private final CacheFileHeader staleHeader;
 
-		public FileCacheContext(ICacheGarbageCollector cacheGarbageCollector) {
-			this.cacheGarbageCollector	= cacheGarbageCollector;
+		private CacheReadResult(T data, IResourceMetaData metaData, boolean notModified, boolean load,
+				CacheFileHeader staleHeader) {
+			this.data	= data;
+			this.metaData	= metaData;
+			this.notModified	= notModified;
+			this.load	= load;
+			this.staleHeader	= staleHeader;
 		}
 
-		@Override
-		public ICacheGarbageCollector getCacheGarbageCollector() {
-			return cacheGarbageCollector;
+		/**
+		 * @param data the payload, null if the resource is known to be missing
+		 */
+		public static <T> CacheReadResult<T> hit(T data, IResourceMetaData metaData) {
+			return new CacheReadResult<T>(data, metaData, false, false, null);
 		}
-	}
 
+		/**
+		 * The conditions of the request matched the cache file.
+		 */
+		public static <T> CacheReadResult<T> notModified() {
+			return new CacheReadResult<T>(null, null, true, false, null);
+		}
+
+		/**
+		 * The resource has to be loaded from the parent.
+		 *
+		 * @param staleHeader the header of the cache file to revalidate, null to load unconditionally
+		 */
+		public static <T> CacheReadResult<T> load(CacheFileHeader staleHeader) {
+			return new CacheReadResult<T>(null, null, false, true, staleHeader);
+		}
+
+		public T getData() {
+			return data;
+		}
+
+		public IResourceMetaData getMetaData() {
+			return metaData;
+		}
 
+		public boolean isNotModified() {
+			return notModified;
+		}
+
+		public boolean isLoad() {
+			return load;
+		}
+
+		public CacheFileHeader getStaleHeader() {
+			return staleHeader;
+		}
+	}
 
 	private static class FileCachedResource extends AbstractResource {
 
 		private boolean cached;
 		private boolean exists;
-		private final File cacheFile;
+		private final String cacheName;
+		private final String fileName;
 		private final IFileCacheContext cacheContext;
+		private volatile long accessTime;
+		/**
+		 * The header of the cache file as last read, null if not read since the file was written.
+		 */
+		private volatile CacheFileHeader cacheFileHeader;
+		private final AtomicBoolean refreshing = new AtomicBoolean();
 
 		private static final Log log	= LogFactory.getLog(FileCachedResourceLoader.class);
 
 
-		public FileCachedResource(IResource resource, File cacheFile, IFileCacheContext cacheContext,
-				ITaskManager taskManager) {
+		/**
+		 * @param fileName the key of the cache file, identifying it towards the store and the garbage collector
+		 */
+		public FileCachedResource(IResource resource, String cacheName, String fileName,
+				IFileCacheContext cacheContext, ITaskManager taskManager) {
 			super(resource, taskManager);
-			this.cacheFile		= cacheFile;
+			this.cacheName		= cacheName;
+			this.fileName		= fileName;
 			this.cacheContext	= cacheContext;
-			this.cached		= cacheFile.exists();
+			this.cached		= cacheContext.getStore().exists(fileName);
 			this.exists		= this.cached;
 		}
 
-		private File getCacheFile() {
-			return this.cacheFile;
+		private IFileCacheStore getStore() {
+			return cacheContext.getStore();
+		}
+
+		private boolean isKnownMissing() {
+			if (cacheContext.getNegativeResultCache().isMissing(cacheName)) {
+				cacheContext.getStatistics().recordHit(0);
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Checks whether the cache file exists and didn't expire. Expired files are deleted,
+		 * files due for a refresh are reloaded in the background.
+		 */
+		private boolean isCacheFileValid() {
+			long cachedTime	= getStore().getLastModified(fileName);
+			if (cachedTime == 0) {
+				return false;
+			}
+			long now	= System.currentTimeMillis();
+			ExpiryPolicy expiryPolicy	= cacheContext.getExpiryPolicy();
+			if (expiryPolicy != null) {
+				if (expiryPolicy.isExpired(cachedTime, Math.max(accessTime, cachedTime), now)) {
+					cached	= false;
+					cacheFileHeader	= null;
+					setModifier(getModifier() & (~MODIFIER_FILE_CACHED));
+					if (getStore().delete(fileName)) {
+						cacheContext.getStatistics().recordEviction(CacheEvictionCause.EXPIRED);
+					}
+					cacheContext.getCacheGarbageCollector().triggerRemove(fileName);
+					return false;
+				}
+				if (expiryPolicy.isRefreshDue(cachedTime, now)) {
+					refreshAhead();
+				}
+			}
+			accessTime	= now;
+			return true;
+		}
+
+		/**
+		 * Reloads the cache file on the task manager while the current file keeps being served.
+		 */
+		private void refreshAhead() {
+			if (!refreshing.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				getTaskManager().addTask(new AbstractTask() {
+					@Override
+					public void execute() throws Exception {
+						CacheStatisticsCounter statistics	= cacheContext.getStatistics();
+						long startTime	= System.nanoTime();
+						try {
+							byte[] data	= getParentResource().getResourceBytes();
+							statistics.recordLoadSuccess(System.nanoTime() - startTime);
+							if (data != null) {
+								updateCache(data);
+							}
+						} catch (Throwable e) {
+							statistics.recordLoadFailure(System.nanoTime() - startTime);
+							log.warn("refresh failed, keeping cache file until it expires, name=" +
+									cacheName + " - " + e, e);
+						} finally {
+							refreshing.set(false);
+						}
+					}});
+			} catch (RuntimeException e) {
+				refreshing.set(false);
+				log.warn("refresh could not be scheduled, name=" + cacheName + " - " + e, e);
+			}
+		}
+
+		private boolean isMappedReads() {
+			return (cacheContext.getMappedFileReader() != null);
+		}
+
+		/**
+		 * Opens the cache file, skipping the header and decompressing the payload if necessary.
+		 *
+		 * @param lengthHolder receives the length of the payload (may be null)
+		 * @return the payload, or null if the file vanished or turned out to be corrupt (i.e. a miss)
+		 */
+		private InputStream openCacheFile(ObjectHolder<Integer> lengthHolder) throws IOException {
+			if (lengthHolder == null) {
+				lengthHolder	= new ObjectHolder<Integer>();
+			}
+			InputStream in;
+			try {
+				in	= openPayload(lengthHolder);
+			} catch (CorruptCacheFileException e) {
+				log.warn("discarding corrupt cache file, name=" + cacheName + " - " + e.getMessage());
+				discardCacheFile();
+				return null;
+			} catch (FileNotFoundException e) {
+				// removed since it was checked
+				return null;
+			}
+			cacheContext.getStatistics().recordHit(lengthHolder.getObject().intValue());
+			cacheContext.getCacheGarbageCollector().triggerAccess(fileName);
+			return in;
+		}
+
+		/**
+		 * Opens the payload of the cache file without counting it as a hit. Only the length of the file
+		 * is verified, the checksum is verified by the scrub.
+		 */
+		private InputStream openPayload(ObjectHolder<Integer> lengthHolder) throws IOException {
+			InputStream in	= getStore().openStream(fileName, cacheContext.getMappedFileReader());
+			try {
+				CacheFileHeader header	= CacheFileHeader.read(in);
+				cacheFileHeader	= header;
+				long fileLength	= getStore().getLength(fileName);
+				long length;
+				if (header == null) {
+					// written before headers were introduced
+					length	= fileLength;
+				} else {
+					length	= header.getLength();
+					if ((header.getStoredLength() >= 0) &&
+							(fileLength != header.getSize() + header.getStoredLength())) {
+						throw new CorruptCacheFileException("length mismatch, expected " +
+								(header.getSize() + header.getStoredLength()) + " bytes, found " + fileLength);
+					}
+					if (header.isCompressed()) {
+						in	= ResourceCompressor.decompress(in);
+					}
+				}
+				lengthHolder.setObject(Integer.valueOf((int) length));
+				return in;
+			} catch (EOFException e) {
+				in.close();
+				throw new CorruptCacheFileException("header truncated");
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Reads the header of the cache file, unless it was read before.
+		 *
+		 * @return the header, or null if the file was written before headers were introduced
+		 */
+		private CacheFileHeader readCacheFileHeader() throws IOException {
+			CacheFileHeader header	= cacheFileHeader;
+			if (header == null) {
+				InputStream in	= getStore().openStream(fileName, null);
+				try {
+					header	= CacheFileHeader.read(in);
+				} finally {
+					in.close();
+				}
+				cacheFileHeader	= header;
+			}
+			return header;
+		}
+
+		/**
+		 * @return the metadata stored with the cache file as last read, or null if there is none
+		 */
+		private IResourceMetaData getCachedMetaData() {
+			CacheFileHeader header	= cacheFileHeader;
+			return (header != null ? header.getMetaData() : null);
+		}
+
+		/**
+		 * @return the header of the cache file if it expired but can be revalidated by a conditional
+		 * request, as the origin provided a last-modified time or entity tag; null otherwise
+		 */
+		private CacheFileHeader getRevalidatableHeader() {
+			ExpiryPolicy expiryPolicy	= cacheContext.getExpiryPolicy();
+			if (expiryPolicy == null) {
+				return null;
+			}
+			long cachedTime	= getStore().getLastModified(fileName);
+			if ((cachedTime == 0) ||
+					(!expiryPolicy.isExpired(cachedTime, Math.max(accessTime, cachedTime), System.currentTimeMillis()))) {
+				return null;
+			}
+			CacheFileHeader header;
+			try {
+				header	= readCacheFileHeader();
+			} catch (IOException e) {
+				// e.g. removed concurrently
+				return null;
+			}
+			if ((header == null) || ((header.getLastModified() == 0) && (header.getETag() == null))) {
+				return null;
+			}
+			return header;
+		}
+
+		/**
+		 * Renews the cache file after the parent reported it to be still current.
+		 */
+		private void onRevalidated() {
+			if (log.isDebugEnabled()) {
+				log.debug("cache file still current, name=" + cacheName);
+			}
+			if (!getStore().touch(fileName)) {
+				discardCacheFile();
+			}
+		}
+
+		/**
+		 * Evaluates the conditions of the request against the cache file, counting a match as a hit.
+		 */
+		private boolean isNotModified(ResourceRequestParameters parameters) {
+			if (!parameters.isConditional()) {
+				return false;
+			}
+			CacheFileHeader header;
+			try {
+				header	= readCacheFileHeader();
+			} catch (IOException e) {
+				return false;
+			}
+			if ((header == null) || (!parameters.isNotModified(header.getLastModified(), header.getETag()))) {
+				return false;
+			}
+			cacheContext.getStatistics().recordHit(0);
+			cacheContext.getCacheGarbageCollector().triggerAccess(fileName);
+			return true;
+		}
+
+		/**
+		 * @param staleHeader the header of the cache file to revalidate, null for an unconditional request
+		 * @return the parameters for the parent request, the conditions of the caller don't apply
+		 * to the parent as the content is needed for the cache
+		 */
+		private ResourceRequestParameters getParentParameters(ResourceRequestParameters parameters,
+				CacheFileHeader staleHeader) {
+			ResourceRequestParameters result	= new ResourceRequestParameters(parameters);
+			result.setIfModifiedSince(staleHeader != null ? staleHeader.getLastModified() : 0);
+			result.setIfNoneMatch(staleHeader != null ? staleHeader.getETag() : null);
+			return result;
+		}
+
+		/**
+		 * @return the payload, or null if the file vanished or turned out to be corrupt (i.e. a miss)
+		 */
+		private byte[] readCacheFile() throws IOException {
+			ObjectHolder<Integer> lengthHolder	= new ObjectHolder<Integer>();
+			InputStream in	= openCacheFile(lengthHolder);
+			if (in == null) {
+				return null;
+			}
+			try {
+				return IOUtil.readAllFromStream(in, lengthHolder.getObject().intValue());
+			} finally {
+				in.close();
+			}
+		}
+
+		/**
+		 * Writes the chunks of an asynchronous load to a temporary file as they arrive and publishes it
+		 * as the cache file on commit, so that the resource never has to be held in memory completely.
+		 * Records the miss and the load time. If a listener is given, it receives a stream of the
+		 * published file.
+		 * The header stores the lengths as int, so cache files are limited to 2 GB: a larger resource
+		 * fails the sink as soon as the limit is exceeded and isn't cached, while its chunks are still
+		 * delivered to the caller.
+		 */
+		private class CacheFileSink implements IResourceBytesSink {
+
+			private final IResourceListener<ResourceLoaderEvent<InputStream>> streamListener;
+			private final long startTime;
+			private IResourceMetaData metaData;
+			private IFileCacheOutput output;
+			private final CRC32 checksum	= new CRC32();
+			private int headerSize;
+			private OutputStream out;
+			private long length;
+			private boolean received;
+
+			/**
+			 * @param streamListener receives the result as a stream (may be null)
+			 */
+			public CacheFileSink(IResourceListener<ResourceLoaderEvent<InputStream>> streamListener) {
+				this.streamListener	= streamListener;
+				this.startTime	= System.nanoTime();
+				cacheContext.getStatistics().recordMiss();
+			}
+
+			private void open(byte[] firstChunk) throws IOException {
+				output	= createOutput();
+				OutputStream rawOut	= new BufferedOutputStream(output.getOutputStream());
+				OutputStream payloadOut	= new CheckedOutputStream(rawOut, checksum);
+				int flags	= 0;
+				ResourceCompressor compressor	= cacheContext.getCompressor();
+				out	= (compressor != null ? compressor.compress(payloadOut, firstChunk) : null);
+				if (out != null) {
+					flags	|= CacheFileHeader.FLAG_COMPRESSED;
+				} else {
+					out	= payloadOut;
+				}
+				// the lengths and checksum are filled in on commit
+				headerSize	= new CacheFileHeader(flags, 0, cacheName, 0, 0, metaData).write(rawOut);
+			}
+
+			/**
+			 * Stored in the header if received before the first chunk.
+			 */
+			@Override
+			public void setMetaData(IResourceMetaData metaData) {
+				this.metaData	= metaData;
+				if (streamListener != null) {
+					streamListener.onResourceEvent(new MetaResourceLoaderEvent<InputStream>(
+							FileCachedResource.this, metaData));
+				}
+			}
+
+			@Override
+			public void write(byte[] chunk) throws IOException {
+				received	= true;
+				if (chunk.length == 0) {
+					// the first data chunk decides about compression
+					return;
+				}
+				if (length + chunk.length > Integer.MAX_VALUE) {
+					throw new IOException("resource too large to be cached, length=" + (length + chunk.length));
+				}
+				if (out == null) {
+					open(chunk);
+				}
+				out.write(chunk);
+				length	+= chunk.length;
+			}
+
+			@Override
+			public void commit() throws IOException {
+				if ((out == null) && (received)) {
+					open(new byte[0]);
+				}
+				if (out == null) {
+					cacheContext.getStatistics().recordLoadSuccess(System.nanoTime() - startTime);
+					cacheContext.getNegativeResultCache().markMissing(cacheName);
+					if (streamListener != null) {
+						streamListener.onResourceEvent(new ResourceLoaderEvent<InputStream>(
+								FileCachedResource.this, (InputStream) null, true));
+					}
+					return;
+				}
+				if (out instanceof DeflaterOutputStream) {
+					((DeflaterOutputStream) out).finish();
+				}
+				out.flush();
+				long size	= output.getSize();
+				if (size - headerSize > Integer.MAX_VALUE) {
+					throw new IOException("resource too large to be cached, storedLength=" + (size - headerSize));
+				}
+				output.updateHeader((int) length, (int) (size - headerSize), (int) checksum.getValue());
+				out.close();
+				out	= null;
+				IFileCacheOutput output	= this.output;
+				this.output	= null;
+				publishCacheFile(output, size);
+				cacheContext.getStatistics().recordLoadSuccess(System.nanoTime() - startTime);
+				if (streamListener != null) {
+					InputStream in;
+					try {
+						// not verified, it was just written
+						in	= openPayload(new ObjectHolder<Integer>());
+					} catch (IOException e) {
+						streamListener.onResourceEvent(new ResourceLoaderEvent<InputStream>(
+								FileCachedResource.this, e));
+						return;
+					}
+					streamListener.onResourceEvent(new ResourceLoaderEvent<InputStream>(
+							FileCachedResource.this, in, true));
+				}
+			}
+
+			@Override
+			public void abort(Throwable cause) {
+				cacheContext.getStatistics().recordLoadFailure(System.nanoTime() - startTime);
+				closeOutput();
+				onLoadFailed(cause);
+				if (streamListener != null) {
+					streamListener.onResourceEvent(new ResourceLoaderEvent<InputStream>(
+							FileCachedResource.this, cause));
+				}
+			}
+
+			/**
+			 * The cache file was revalidated, the listener handling the not-modified response serves it.
+			 */
+			@Override
+			public void discard() {
+				closeOutput();
+			}
+
+			private void closeOutput() {
+				if (out != null) {
+					try {
+						out.close();
+					} catch (IOException e) {
+						log.debug("temporary cache file could not be closed - " + e);
+					}
+					out	= null;
+				}
+				if (output != null) {
+					output.discard();
+					output	= null;
+				}
+			}
+
+		}
+
+		private void onLoadFailed(Throwable cause) {
+			if (cause instanceof FileNotFoundException) {
+				cacheContext.getNegativeResultCache().markMissing(cacheName);
+			}
+		}
+
+		/**
+		 * Removes a cache file which can't be served, so that the resource is loaded again.
+		 */
+		private void discardCacheFile() {
+			cached	= false;
+			setModifier(getModifier() & (~MODIFIER_FILE_CACHED));
+			cacheFileHeader	= null;
+			getStore().delete(fileName);
+			cacheContext.getCacheGarbageCollector().triggerRemove(fileName);
 		}
 
 		@Override
 		public void clearCache() {
 			cached	= false;
 			exists	= false;
+			cacheContext.getNegativeResultCache().invalidate(cacheName);
 			super.clearCache();
+			cacheFileHeader	= null;
 			setModifier(getModifier() & (~MODIFIER_FILE_CACHED));
-			getCacheFile().delete();
+			if (getStore().delete(fileName)) {
+				cacheContext.getStatistics().recordEviction(CacheEvictionCause.EXPLICIT);
+			}
+			cacheContext.getCacheGarbageCollector().triggerRemove(fileName);
+		}
+
+		@Override
+		public long getLastCached() {
+			long lastModified	= getStore().getLastModified(fileName);
+			if (lastModified != 0) {
+				return lastModified;
+			}
+			return super.getLastCached();
+		}
+
+		/**
+		 * @return the last-modified time provided by the origin when the resource was cached, if known
+		 */
+		@Override
+		public long getLastModified() {
+			if (getStore().exists(fileName)) {
+				try {
+					CacheFileHeader header	= readCacheFileHeader();
+					if ((header != null) && (header.getLastModified() != 0)) {
+						return header.getLastModified();
+					}
+				} catch (IOException e) {
+					// e.g. removed concurrently
+					log.debug("cache file header could not be read, name=" + cacheName + " - " + e);
+				}
+			}
+			return super.getLastModified();
 		}
 
 		@Override
 		public boolean exists() throws IOException {
-			if (cached) {
-				return (exists);
-			} else {
-				exists	= super.exists();
-				cached	= true;
+			if (((cached) && (exists)) || (getStore().exists(fileName))) {
+				return true;
+			}
+			if (isKnownMissing()) {
+				return false;
+			}
+			exists	= super.exists();
+			cached	= true;
+			if (!exists) {
+				cacheContext.getNegativeResultCache().markMissing(cacheName);
 			}
 			return (exists);
 		}
 
 		@Override
 		public InputStream getResourceAsStream() throws IOException {
-			File cacheFile	= this.getCacheFile();
-			if (cacheFile.exists()) {
-				return new FileInputStream(cacheFile);
-			} else {
-				byte[] data	= this.getResourceBytes();
-				if (data != null) {
-					return new ByteArrayInputStream(data);
+			if (isCacheFileValid()) {
+				InputStream in	= openCacheFile(null);
+				if (in != null) {
+					return in;
 				}
 			}
+			byte[] data	= this.getResourceBytes();
+			if (data != null) {
+				return new ByteArrayInputStream(data);
+			}
 			return null;
 		}
 
+		/**
+		 * Writes the cache file, keeping the metadata of the replaced file (there is none for
+		 * synchronous loads).
+		 */
 		private void updateCache(byte[] data) {
-			if (data != null) {
-				File cacheFile	= this.getCacheFile();
-				try {
-					cacheContext.getCacheGarbageCollector().triggerBeforeWrite(cacheFile.getName(), data.length);
-					OutputStream out	= new FileOutputStream(cacheFile);
-					try {
-						out.write(data);
-					} finally {
-						out.close();
+			if (data == null) {
+				cacheContext.getNegativeResultCache().markMissing(cacheName);
+			} else {
+				byte[] payload	= data;
+				IResourceMetaData metaData	= getCachedMetaData();
+				int flags	= 0;
+				ResourceCompressor compressor	= cacheContext.getCompressor();
+				if (compressor != null) {
+					byte[] compressed	= compressor.compress(data);
+					if (compressed != null) {
+						payload	= compressed;
+						flags	|= CacheFileHeader.FLAG_COMPRESSED;
 					}
-					cacheContext.getCacheGarbageCollector().triggerAfterWrite(cacheFile.getName(), data.length);
-					this.cached	= true;
-					setModifier(getModifier() | MODIFIER_FILE_CACHED);
+				}
+				IFileCacheOutput output	= null;
+				try {
+					output	= createOutput();
+					OutputStream out	= output.getOutputStream();
+					CRC32 checksum	= new CRC32();
+					checksum.update(payload);
+					long size	= new CacheFileHeader(flags, data.length, cacheName, payload.length,
+							(int) checksum.getValue(), metaData).write(out) + payload.length;
+					out.write(payload);
+					IFileCacheOutput publishedOutput	= output;
+					output	= null;
+					publishCacheFile(publishedOutput, size);
 				} catch (IOException e) {
 					log.error("cache could not be written to - " + e, e);
-					cacheFile.delete();
+					if (output != null) {
+						output.discard();
+					}
 				}
 			}
 		}
 
+		/**
+		 * @return a new output for the cache file, hidden from the garbage collector until published
+		 */
+		private IFileCacheOutput createOutput() throws IOException {
+			return getStore().createOutput(fileName);
+		}
+
+		/**
+		 * Replaces the cache file by the completely written output.
+		 */
+		private void publishCacheFile(IFileCacheOutput output, long size) throws IOException {
+			ICacheGarbageCollector cacheGarbageCollector	= cacheContext.getCacheGarbageCollector();
+			cacheGarbageCollector.triggerBeforeWrite(fileName, size);
+			try {
+				output.publish();
+			} catch (IOException e) {
+				cacheGarbageCollector.triggerRemove(fileName);
+				throw e;
+			}
+			cacheGarbageCollector.triggerAfterWrite(fileName, size);
+			this.cacheFileHeader	= null;
+			this.cached	= true;
+			setModifier(getModifier() | MODIFIER_FILE_CACHED);
+		}
+
 		@Override
 		public byte[] getResourceBytes() throws IOException {
 			byte[] result	= null;
-			File cacheFile	= this.getCacheFile();
-			if (cacheFile.exists()) {
-				InputStream in	= new FileInputStream(cacheFile);
+			if (isCacheFileValid()) {
+				result	= readCacheFile();
+			}
+			if ((result == null) && (!isKnownMissing())) {
+				CacheStatisticsCounter statistics	= cacheContext.getStatistics();
+				statistics.recordMiss();
+				long startTime	= System.nanoTime();
 				try {
-					result	= IOUtil.readAllFromStream(in);
-				} finally {
-					in.close();
+					result	= super.getResourceBytes();
+				} catch (IOException e) {
+					statistics.recordLoadFailure(System.nanoTime() - startTime);
+					onLoadFailed(e);
+					throw e;
 				}
+				statistics.recordLoadSuccess(System.nanoTime() - startTime);
+				updateCache(result);
 			}
-			if (result == null) {
-				result	= super.getResourceBytes();
-				if (result != null) {
-					updateCache(result);
+			return result;
+		}
+
+		/**
+		 * Writes the cache file unless there is one already, which is marked as recently used then.
+		 */
+		private void storeResourceBytes(byte[] data) {
+			if (getStore().exists(fileName)) {
+				cacheContext.getCacheGarbageCollector().triggerAccess(fileName);
+			} else {
+				updateCache(data);
+			}
+		}
+
+		/**
+		 * Runs the check and read of the cache file on the read dispatcher, or in the calling thread
+		 * if there is none.
+		 */
+		private void dispatchRead(ITask task, BoundedTaskDispatcher readDispatcher) throws IOException {
+			if (readDispatcher != null) {
+				readDispatcher.dispatch(task);
+			} else {
+				try {
+					task.execute();
+				} catch (IOException e) {
+					throw e;
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new IOException("read failed - " + e, e);
 				}
 			}
-			return result;
 		}
 
 		@Override
@@ -322,47 +906,143 @@ public class FileCachedResourceLoader extends AbstractResourceLoader {
 				this.getParentResource().getResourceAsStream(listener, parameters);
 			} else {
 				final IResourceListener<ResourceLoaderEvent<InputStream>> finalListener = listener;
-				File cacheFile	= this.getCacheFile();
-				if (cacheFile.exists()) {
-					InputStream in	= new FileInputStream(cacheFile);
-					try {
-						byte[] data	= IOUtil.readAllFromStream(in);
-						ResourceLoaderEvent<InputStream> event = new ResourceLoaderEvent<InputStream>(
-								this, new ByteArrayInputStream(data), true);
-						listener.onResourceEvent(event);
-					} finally {
-						in.close();
-					}
-	//				this.getTaskManager().addTask(new AbstractTask() {
-	//					public void execute() throws Exception {
-	//						ResourceLoaderEvent<InputStream> event;
-	//						try {
-	//							event = new ResourceLoaderEvent<InputStream>(
-	//									FileCachedResource.this, getResourceAsStream(), true);
-	//						} catch (Throwable e) {
-	//							event = new ResourceLoaderEvent<InputStream>(
-	//									FileCachedResource.this, e);
-	//						}
-	//						finalListener.onResourceEvent(event);
-	//					}});
+				final ResourceRequestParameters finalParameters = parameters;
+				final BoundedTaskDispatcher readDispatcher	= cacheContext.getReadDispatcher();
+				// checking and reading the cache file blocks, the listener is completed by the read dispatcher
+				dispatchRead(new AbstractTask() {
+					@Override
+					public void execute() throws Exception {
+						CacheReadResult<InputStream> result;
+						try {
+							result	= readCacheFileAsStream(finalParameters, false);
+						} catch (Throwable e) {
+							finalListener.onResourceEvent(new ResourceLoaderEvent<InputStream>(
+									FileCachedResource.this, e));
+							return;
+						}
+						onCacheFileReadAsStream(finalListener, finalParameters, result, (readDispatcher != null));
+					}}, readDispatcher);
+			}
+		}
+
+		/**
+		 * Checks and reads the cache file, without notifying the listener.
+		 *
+		 * @param revalidated true if the cache file was just found to be still current by the parent
+		 */
+		private CacheReadResult<InputStream> readCacheFileAsStream(
+				ResourceRequestParameters parameters, boolean revalidated) throws IOException {
+			CacheFileHeader staleHeader	= (revalidated ? null : getRevalidatableHeader());
+			if (staleHeader != null) {
+				return CacheReadResult.load(staleHeader);
+			}
+			InputStream in	= null;
+			if (isCacheFileValid()) {
+				if (isNotModified(parameters)) {
+					return CacheReadResult.notModified();
+				}
+				// a mapped stream doesn't hold the file open, the listener may leave it unclosed
+				if (isMappedReads()) {
+					in	= openCacheFile(null);
 				} else {
-					this.getParentResource().getResourceBytes(new IResourceListener<ResourceLoaderEvent<byte[]>>() {
-						@Override
-						public void onResourceEvent(
-								ResourceLoaderEvent<byte[]> event) {
-							if (event.isComplete()) {
-								// TODO this doesn't handle chunks
-								byte[] data	= event.getResult();
-								updateCache(data);
-								finalListener.onResourceEvent(new ResourceLoaderEvent<InputStream>(
-										FileCachedResource.this, new ByteArrayInputStream(data), true));
-							} else if (event.isFailed()) {
-								finalListener.onResourceEvent(new ResourceLoaderEvent<InputStream>(
-										FileCachedResource.this, event.getCause()));
-							}
-						}}, parameters);
+					byte[] data	= readCacheFile();
+					if (data != null) {
+						in	= new ByteArrayInputStream(data);
+					}
 				}
 			}
+			if (in != null) {
+				return CacheReadResult.hit(in, getCachedMetaData());
+			} else if (isKnownMissing()) {
+				return CacheReadResult.hit(null, null);
+			}
+			return CacheReadResult.load(null);
+		}
+
+		/**
+		 * Completes the listener with the result read from the cache file, or loads the resource
+		 * from the parent.
+		 *
+		 * @param dispatched true if the cache file was read by the read dispatcher
+		 */
+		private void onCacheFileReadAsStream(
+				final IResourceListener<ResourceLoaderEvent<InputStream>> listener,
+				final ResourceRequestParameters parameters, final CacheReadResult<InputStream> result,
+				boolean dispatched) throws IOException {
+			if (!result.isLoad()) {
+				notifyCacheFileReadAsStream(listener, result);
+			} else if (!dispatched) {
+				loadResourceAsStream(listener, parameters, result.getStaleHeader());
+			} else {
+				// the parent request doesn't occupy the slot of the read dispatcher
+				getTaskManager().addTask(new AbstractTask() {
+					@Override
+					public void execute() throws Exception {
+						try {
+							loadResourceAsStream(listener, parameters, result.getStaleHeader());
+						} catch (IOException e) {
+							listener.onResourceEvent(new ResourceLoaderEvent<InputStream>(
+									FileCachedResource.this, e));
+						}
+					}});
+			}
+		}
+
+		private void notifyCacheFileReadAsStream(IResourceListener<ResourceLoaderEvent<InputStream>> listener,
+				CacheReadResult<InputStream> result) {
+			if (result.isNotModified()) {
+				listener.onResourceEvent(new NotModifiedResourceLoaderEvent<InputStream>(this));
+			} else {
+				if (result.getMetaData() != null) {
+					listener.onResourceEvent(new MetaResourceLoaderEvent<InputStream>(this, result.getMetaData()));
+				}
+				listener.onResourceEvent(new ResourceLoaderEvent<InputStream>(this, result.getData(), true));
+			}
+		}
+
+		/**
+		 * Loads the resource from the parent into the cache file.
+		 *
+		 * @param staleHeader the header of the cache file to revalidate, null to load unconditionally
+		 */
+		private void loadResourceAsStream(
+				final IResourceListener<ResourceLoaderEvent<InputStream>> listener,
+				final ResourceRequestParameters parameters, CacheFileHeader staleHeader)
+				throws IOException {
+			IResourceBytesSink sink	= new CacheFileSink(listener);
+			IResourceListener<ResourceLoaderEvent<byte[]>> notModifiedListener	= null;
+			if (staleHeader != null) {
+				notModifiedListener	= new IResourceListener<ResourceLoaderEvent<byte[]>>() {
+					@Override
+					public void onResourceEvent(ResourceLoaderEvent<byte[]> event) {
+						// other events are passed on by the sink
+						if (event instanceof NotModifiedResourceLoaderEvent) {
+							onRevalidated();
+							CacheReadResult<InputStream> result;
+							try {
+								result	= readCacheFileAsStream(parameters, true);
+							} catch (Throwable e) {
+								listener.onResourceEvent(new ResourceLoaderEvent<InputStream>(
+										FileCachedResource.this, e));
+								return;
+							}
+							if (!result.isLoad()) {
+								notifyCacheFileReadAsStream(listener, result);
+								return;
+							}
+							// vanished since it was revalidated
+							try {
+								loadResourceAsStream(listener, parameters, null);
+							} catch (IOException e) {
+								listener.onResourceEvent(new ResourceLoaderEvent<InputStream>(
+										FileCachedResource.this, e));
+							}
+						}
+					}};
+			}
+			this.getParentResource().getResourceBytes(
+					new TeeResourceBytesListener(notModifiedListener, sink),
+					getParentParameters(parameters, staleHeader));
 		}
 
 		@Override
@@ -374,63 +1054,148 @@ public class FileCachedResourceLoader extends AbstractResourceLoader {
 				this.getParentResource().getResourceBytes(listener, parameters);
 			} else {
 				final IResourceListener<ResourceLoaderEvent<byte[]>> finalListener = listener;
-				File cacheFile	= this.getCacheFile();
-				if (cacheFile.exists()) {
-					InputStream in	= new FileInputStream(cacheFile);
-					try {
-						byte[] data	= IOUtil.readAllFromStream(in);
-						ResourceLoaderEvent<byte[]> event = new ResourceLoaderEvent<byte[]>(
-								this, data, true);
-						listener.onResourceEvent(event);
-					} finally {
-						in.close();
-					}
-	//				this.getTaskManager().addTask(new AbstractTask() {
-	//					public void execute() throws Exception {
-	//						ResourceLoaderEvent<InputStream> event;
-	//						try {
-	//							event = new ResourceLoaderEvent<InputStream>(
-	//									FileCachedResource.this, getResourceAsStream(), true);
-	//						} catch (Throwable e) {
-	//							event = new ResourceLoaderEvent<InputStream>(
-	//									FileCachedResource.this, e);
-	//						}
-	//						finalListener.onResourceEvent(event);
-	//					}});
-				} else {
-					this.getParentResource().getResourceBytes(new IResourceListener<ResourceLoaderEvent<byte[]>>() {
+				final ResourceRequestParameters finalParameters = parameters;
+				final BoundedTaskDispatcher readDispatcher	= cacheContext.getReadDispatcher();
+				dispatchRead(new AbstractTask() {
+					@Override
+					public void execute() throws Exception {
+						CacheReadResult<byte[]> result;
+						try {
+							result	= readCacheFileBytes(finalParameters, false);
+						} catch (Throwable e) {
+							finalListener.onResourceEvent(new ResourceLoaderEvent<byte[]>(
+									FileCachedResource.this, e));
+							return;
+						}
+						onCacheFileReadBytes(finalListener, finalParameters, result, (readDispatcher != null));
+					}}, readDispatcher);
+			}
+		}
+
+		/**
+		 * Checks and reads the cache file, without notifying the listener.
+		 *
+		 * @param revalidated true if the cache file was just found to be still current by the parent
+		 */
+		private CacheReadResult<byte[]> readCacheFileBytes(
+				ResourceRequestParameters parameters, boolean revalidated) throws IOException {
+			CacheFileHeader staleHeader	= (revalidated ? null : getRevalidatableHeader());
+			if (staleHeader != null) {
+				return CacheReadResult.load(staleHeader);
+			}
+			byte[] data	= null;
+			if (isCacheFileValid()) {
+				if (isNotModified(parameters)) {
+					return CacheReadResult.notModified();
+				}
+				data	= readCacheFile();
+			}
+			if (data != null) {
+				return CacheReadResult.hit(data, getCachedMetaData());
+			} else if (isKnownMissing()) {
+				return CacheReadResult.hit(null, null);
+			}
+			return CacheReadResult.load(null);
+		}
+
+		/**
+		 * Completes the listener with the result read from the cache file, or loads the resource
+		 * from the parent.
+		 *
+		 * @param dispatched true if the cache file was read by the read dispatcher
+		 */
+		private void onCacheFileReadBytes(
+				final IResourceListener<ResourceLoaderEvent<byte[]>> listener,
+				final ResourceRequestParameters parameters, final CacheReadResult<byte[]> result,
+				boolean dispatched) throws IOException {
+			if (!result.isLoad()) {
+				notifyCacheFileReadBytes(listener, result);
+			} else if (!dispatched) {
+				loadResourceBytes(listener, parameters, result.getStaleHeader());
+			} else {
+				// the parent request doesn't occupy the slot of the read dispatcher
+				getTaskManager().addTask(new AbstractTask() {
+					@Override
+					public void execute() throws Exception {
+						try {
+							loadResourceBytes(listener, parameters, result.getStaleHeader());
+						} catch (IOException e) {
+							listener.onResourceEvent(new ResourceLoaderEvent<byte[]>(
+									FileCachedResource.this, e));
+						}
+					}});
+			}
+		}
+
+		private void notifyCacheFileReadBytes(IResourceListener<ResourceLoaderEvent<byte[]>> listener,
+				CacheReadResult<byte[]> result) {
+			if (result.isNotModified()) {
+				listener.onResourceEvent(new NotModifiedResourceLoaderEvent<byte[]>(this));
+			} else {
+				if (result.getMetaData() != null) {
+					listener.onResourceEvent(new MetaResourceLoaderEvent<byte[]>(this, result.getMetaData()));
+				}
+				listener.onResourceEvent(new ResourceLoaderEvent<byte[]>(this, result.getData(), true));
+			}
+		}
+
+		/**
+		 * Loads the resource from the parent into the cache file, passing the chunks to the listener.
+		 *
+		 * @param staleHeader the header of the cache file to revalidate, null to load unconditionally
+		 */
+		private void loadResourceBytes(
+				final IResourceListener<ResourceLoaderEvent<byte[]>> listener,
+				final ResourceRequestParameters parameters, final CacheFileHeader staleHeader)
+				throws IOException {
+			IResourceBytesSink sink	= new CacheFileSink(null);
+			this.getParentResource().getResourceBytes(new TeeResourceBytesListener(
+					new IResourceListener<ResourceLoaderEvent<byte[]>>() {
 						@Override
 						public void onResourceEvent(
 								ResourceLoaderEvent<byte[]> event) {
-							if (event.isComplete()) {
-								byte[] data	= event.getResult();
-								updateCache(data);
+							if ((staleHeader != null) && (event instanceof NotModifiedResourceLoaderEvent)) {
+								onRevalidated();
+								CacheReadResult<byte[]> result;
+								try {
+									result	= readCacheFileBytes(parameters, true);
+								} catch (Throwable e) {
+									listener.onResourceEvent(new ResourceLoaderEvent<byte[]>(
+											FileCachedResource.this, e));
+									return;
+								}
+								if (!result.isLoad()) {
+									notifyCacheFileReadBytes(listener, result);
+									return;
+								}
+								// vanished since it was revalidated
+								try {
+									loadResourceBytes(listener, parameters, null);
+								} catch (IOException e) {
+									listener.onResourceEvent(new ResourceLoaderEvent<byte[]>(
+											FileCachedResource.this, e));
+								}
+							} else {
+								listener.onResourceEvent(event.cloneFor(FileCachedResource.this));
 							}
-							finalListener.onResourceEvent(event.cloneFor(FileCachedResource.this));
-						}}, parameters);
-				}
-	//			final IResourceListener<ResourceLoaderEvent<byte[]>> finalListener = listener;
-	//			byte[] data	= this.data;
-	//			if (data != null) {
-	//				ResourceLoaderEvent<byte[]> event = new ResourceLoaderEvent<byte[]>(
-	//						this, data, true);
-	//				listener.onResourceEvent(event);
-	//			} else {
-	//				this.getParentResource().getResourceBytes(new IResourceListener<ResourceLoaderEvent<byte[]>>() {
-	//					public void onResourceEvent(
-	//							ResourceLoaderEvent<byte[]> event) {
-	//						if (event.isComplete()) {
-	//							MemoryCachedResource.this.data = event.getResult();
-	//						} else if (event.isFailed()) {
-	//						}
-	//						finalListener.onResourceEvent(event);
-	//					}});
-	//			}
-			}
+						}}, sink), getParentParameters(parameters, staleHeader));
 		}
 
+		/**
+		 * @return the length stored in the header of the cache file, or the length of the loaded
+		 * resource if it isn't cached yet
+		 */
 		@Override
 		public long getSize() {
+			if (isCacheFileValid()) {
+				try {
+					CacheFileHeader header	= readCacheFileHeader();
+					return (header != null ? header.getLength() : getStore().getLength(fileName));
+				} catch (IOException e) {
+					// e.g. removed since it was checked
+					log.debug("cache file header could not be read, name=" + cacheName + " - " + e);
+				}
+			}
 			long result	= 0;
 			try {
 				byte[] data	= getResourceBytes();
@@ -445,37 +1210,398 @@ public class FileCachedResourceLoader extends AbstractResourceLoader {
 	}
 
 
-	private static final String FILENAME_CHARSET_NAME = "UTF-8";
+	/**
+	 * The maximum number of asynchronous reads of the cache in progress if the loader has a task manager.
+	 */
+	public static final int DEFAULT_MAX_CONCURRENT_READS	= 4;
 
 	private static final Log log	= LogFactory.getLog(FileCachedResourceLoader.class);
 
 
 	private final IResourceLoader parentResourceLoader;
-	private final IObjectCache<String, IResource>	resourceCache	= new ObjectCache<String, IResource>();
+	private final ResourceHandleMap	resourceHandles	= new ResourceHandleMap(false, null);
+	private final ResourceHandleMap.IResourceFactory	resourceFactory	= new ResourceHandleMap.IResourceFactory() {
+		@Override
+		public IResource createResource(String name) throws IOException {
+			IResource resource	= parentResourceLoader.getResource(name);
+			if ((resource != null) && ((resource.getModifier() & IResource.MODIFIER_MEMORY_CACHED) == 0) &&
+					((resource.getModifier() & IResource.MODIFIER_FILE_CACHED) == 0)) {
+				String fileName	= FileCacheLayout.getFileName(name);
+				if (!flatLayoutMigrated) {
+					migrateFlatFile(new File(cacheDirectory, FileCacheLayout.getFlatFileName(name)),
+							fileName, new File(cacheDirectory, fileName));
+				}
+				resource	= new FileCachedResource(
+						resource, name, fileName, cacheContext,
+						getTaskManager());
+			}
+			return resource;
+		}
+	};
 	private final String cacheDirectory;
+	private final IFileCacheStore store;
 	private final ICacheGarbageCollector cacheGarbageCollector;
 	private final IFileCacheContext cacheContext;
+	private volatile boolean flatLayoutMigrated;
 
 	public FileCachedResourceLoader(IResourceLoader parentResourceLoader, String cacheDirectory, long maxTotalSize, int maxFileCount,
 			ITaskManager taskManager) {
+		this(parentResourceLoader, cacheDirectory, maxTotalSize, maxFileCount, 0, taskManager);
+	}
+
+	/**
+	 * @param segmentSize if greater than 0, cache files are appended to segment files of this size
+	 * instead of being stored in files of their own (suitable for many small resources); the least
+	 * recently used entries are removed by compacting the oldest segment
+	 */
+	public FileCachedResourceLoader(IResourceLoader parentResourceLoader, String cacheDirectory, long maxTotalSize, int maxFileCount,
+			long segmentSize, ITaskManager taskManager) {
 		super(parentResourceLoader, taskManager);
 		this.parentResourceLoader	= parentResourceLoader;
 		this.cacheDirectory		= cacheDirectory;
-		this.cacheGarbageCollector	= new FileCacheGarbageCollector(cacheDirectory, maxTotalSize, maxFileCount);
-		this.cacheContext	= new FileCacheContext(cacheGarbageCollector);
+		CacheStatisticsCounter statistics	= new CacheStatisticsCounter();
+		if (segmentSize > 0) {
+			FileCacheSegmentStore segmentStore	= new FileCacheSegmentStore(new File(cacheDirectory), segmentSize,
+					maxTotalSize, maxFileCount, statistics);
+			this.store	= segmentStore;
+			this.cacheGarbageCollector	= segmentStore;
+			// there is no flat layout to migrate from
+			this.flatLayoutMigrated	= true;
+		} else {
+			this.store	= new FileCacheDirectoryStore(new File(cacheDirectory));
+			this.cacheGarbageCollector	= new FileCacheGarbageCollector(cacheDirectory, maxTotalSize, maxFileCount,
+					statistics);
+		}
+		this.cacheContext	= new FileCacheContext(store, cacheGarbageCollector, statistics);
+		if (taskManager != null) {
+			cacheContext.setReadDispatcher(new BoundedTaskDispatcher(taskManager, DEFAULT_MAX_CONCURRENT_READS));
+		}
+	}
+
+
+	@Override
+	public CacheStatistics getCacheStatistics() {
+		return cacheContext.getStatistics().snapshot(
+				cacheGarbageCollector.getEntryCount(), cacheGarbageCollector.getTotalSize());
+	}
+
+	/**
+	 * Writes a checkpoint of the cache index (e.g. on shutdown), so that the next start doesn't
+	 * need to replay the journal. The loader remains usable.
+	 */
+	public void close() {
+		cacheGarbageCollector.close();
+	}
+
+	/**
+	 * @return true if the cache directory is shared with other processes
+	 */
+	public boolean isSharedCache() {
+		return ((cacheGarbageCollector instanceof FileCacheGarbageCollector) &&
+				(((FileCacheGarbageCollector) cacheGarbageCollector).isShared()));
+	}
+
+	/**
+	 * Shares the cache directory with other processes (on the same host) using the same setting.
+	 * Writes, accounting and eviction are coordinated by locking the directory, the limits then
+	 * apply to all processes together. Every cache access locks the directory briefly.
+	 * Must be set before the first resource is requested, and isn't supported with segment files.
+	 */
+	public void setSharedCache(boolean sharedCache) {
+		if (!(cacheGarbageCollector instanceof FileCacheGarbageCollector)) {
+			throw new IllegalStateException("shared cache directories require one file per cache entry");
+		}
+		((FileCacheGarbageCollector) cacheGarbageCollector).setShared(sharedCache);
 	}
 
 
-	private static String getFileNameByResourceName(String resourceName) {
-		String result;
+	/**
+	 * @return the compressor used for new cache files, or null if compression is disabled
+	 */
+	public ResourceCompressor getCompressor() {
+		return cacheContext.getCompressor();
+	}
+
+	/**
+	 * Enables compressed storage of resources cached from now on. Payloads are compressed if the
+	 * compressor considers it worthwhile, existing cache files remain readable either way.
+	 *
+	 * @param compressor the compressor to use, or null to disable compression
+	 */
+	public void setCompressor(ResourceCompressor compressor) {
+		cacheContext.setCompressor(compressor);
+	}
+
+	/**
+	 * @return the reader serving cache hits from mapped files, or null if mapped reads are disabled
+	 */
+	public MappedFileReader getMappedFileReader() {
+		return cacheContext.getMappedFileReader();
+	}
+
+	/**
+	 * Enables serving cache hits from memory-mapped files (or pooled direct buffers for small files).
+	 * Streams are then read straight from the mapping without intermediate copies.
+	 *
+	 * @param mappedFileReader the reader to use, or null to read cache files as regular streams
+	 */
+	public void setMappedFileReader(MappedFileReader mappedFileReader) {
+		cacheContext.setMappedFileReader(mappedFileReader);
+	}
+
+	/**
+	 * @return the maximum number of asynchronous requests reading the cache at the same time,
+	 * 0 if they read in the calling thread
+	 */
+	public int getMaxConcurrentReads() {
+		BoundedTaskDispatcher readDispatcher	= cacheContext.getReadDispatcher();
+		return (readDispatcher != null ? readDispatcher.getMaxRunningCount() : 0);
+	}
+
+	/**
+	 * Asynchronous requests check and read the cache file on the task manager, so that the calling
+	 * thread doesn't block on disk I/O. At most the given number of them is in progress at the same
+	 * time, further requests are queued. Requests the cache file can't answer are passed to the
+	 * parent by another task, outside of these slots. Enabled with {@link #DEFAULT_MAX_CONCURRENT_READS}
+	 * if the loader was given a task manager, the listeners are then completed by its threads.
+	 *
+	 * @param maxConcurrentReads the maximum number of reads in progress, 0 to read in the calling thread
+	 */
+	public void setMaxConcurrentReads(int maxConcurrentReads) {
+		synchronized (cacheContext) {
+			BoundedTaskDispatcher readDispatcher	= cacheContext.getReadDispatcher();
+			if (maxConcurrentReads <= 0) {
+				cacheContext.setReadDispatcher(null);
+			} else if (readDispatcher != null) {
+				readDispatcher.setMaxRunningCount(maxConcurrentReads);
+			} else if (getTaskManager() != null) {
+				cacheContext.setReadDispatcher(new BoundedTaskDispatcher(getTaskManager(), maxConcurrentReads));
+			} else {
+				throw new IllegalStateException("asynchronous reads require a task manager");
+			}
+		}
+	}
+
+	/**
+	 * @return the policy deciding when cache files expire, or null if they don't expire
+	 */
+	public ExpiryPolicy getExpiryPolicy() {
+		return cacheContext.getExpiryPolicy();
+	}
+
+	/**
+	 * Sets the policy deciding when cache files expire, based on the time they were written.
+	 * Expired files are deleted when accessed and reloaded from the parent. Asynchronous requests
+	 * revalidate expired files with a conditional request instead if the origin provided a
+	 * last-modified time or entity tag, a not-modified response renews the file. With refresh-ahead,
+	 * files accessed shortly before they expire are rewritten on the task manager while the
+	 * existing file is still served. The idle time is only tracked while the resource is in use.
+	 *
+	 * @param expiryPolicy the policy, or null if cache files shouldn't expire
+	 */
+	public void setExpiryPolicy(ExpiryPolicy expiryPolicy) {
+		cacheContext.setExpiryPolicy(expiryPolicy);
+	}
+
+	/**
+	 * Starts populating the cache with the given resources in the background (as a task of the
+	 * task manager, in the calling thread if there is none).
+	 *
+	 * @param names the names of the resources, may be produced lazily
+	 * @param parallelism the maximum number of requests in progress at the same time
+	 * @param maxRequestsPerSecond the maximum number of requests started per second (0 for no limit)
+	 * @param listener receives the progress (may be null)
+	 * @return the handle to follow or cancel the warm-up
+	 */
+	public CacheWarmUp warmUp(Iterator<String> names, int parallelism, double maxRequestsPerSecond,
+			CacheWarmUp.IWarmUpListener listener) {
+		CacheWarmUp warmUp	= new CacheWarmUp(this, names, parallelism, maxRequestsPerSecond, listener);
+		warmUp.start(getTaskManager());
+		return warmUp;
+	}
+
+	public CacheWarmUp warmUp(Collection<String> names, int parallelism, double maxRequestsPerSecond,
+			CacheWarmUp.IWarmUpListener listener) {
+		return warmUp(names.iterator(), parallelism, maxRequestsPerSecond, listener);
+	}
+
+	/**
+	 * @return the time in milliseconds a resource is remembered as missing
+	 */
+	public long getNegativeCacheTimeToLive() {
+		return cacheContext.getNegativeResultCache().getTimeToLive();
+	}
+
+	/**
+	 * Sets the time a resource is remembered as missing, requests for it return immediately
+	 * without asking the parent until the time expired.
+	 *
+	 * @param timeToLive the time in milliseconds (0 to disable the negative cache)
+	 */
+	public void setNegativeCacheTimeToLive(long timeToLive) {
+		cacheContext.getNegativeResultCache().setTimeToLive(timeToLive);
+	}
+
+	public int getNegativeCacheMaxSize() {
+		return cacheContext.getNegativeResultCache().getMaxSize();
+	}
+
+	/**
+	 * @param maxSize the maximum number of resource names remembered as missing
+	 */
+	public void setNegativeCacheMaxSize(int maxSize) {
+		cacheContext.getNegativeResultCache().setMaxSize(maxSize);
+	}
+
+	/**
+	 * Forgets that the resource with the given name was found to be missing.
+	 */
+	public void invalidateNegativeResult(String name) {
+		cacheContext.getNegativeResultCache().invalidate(name);
+	}
+
+	public void clearNegativeResults() {
+		cacheContext.getNegativeResultCache().clear();
+	}
+
+	/**
+	 * Stores the data as the cache file of the resource (e.g. evicted from a faster tier), unless it
+	 * is cached already. An existing cache file is marked as recently used instead.
+	 *
+	 * @return false if the resource isn't cached by this loader (e.g. a local file)
+	 */
+	public boolean cacheResourceBytes(String name, byte[] data) throws IOException {
+		IResource resource	= getResource(name);
+		if (!(resource instanceof FileCachedResource)) {
+			return false;
+		}
+		((FileCachedResource) resource).storeResourceBytes(data);
+		return true;
+	}
+
+	/**
+	 * Verifies the length and checksum of every cache file, removing corrupt files so that their
+	 * resources are loaded again. Reads all files completely, requests only verify the length.
+	 * Files written by older versions without a checksum are skipped.
+	 *
+	 * @return the number of corrupt files removed
+	 */
+	public int scrubCache() {
+		int count	= 0;
+		for (String fileName: store.getKeys()) {
+			try {
+				verifyCacheFile(fileName);
+			} catch (CorruptCacheFileException e) {
+				log.warn("removing corrupt cache file " + fileName + " - " + e.getMessage());
+				store.delete(fileName);
+				cacheGarbageCollector.triggerRemove(fileName);
+				count++;
+			} catch (IOException e) {
+				// e.g. removed concurrently
+				log.debug("cache file could not be verified: " + fileName + " - " + e);
+			}
+		}
+		if (log.isInfoEnabled()) {
+			log.info("cache scrub finished, removed " + count + " corrupt files");
+		}
+		return count;
+	}
+
+	/**
+	 * Runs {@link #scrubCache()} on the task manager.
+	 */
+	public void scrubCacheInBackground() {
+		getTaskManager().addTask(new AbstractTask() {
+			@Override
+			public void execute() throws Exception {
+				scrubCache();
+			}});
+	}
+
+	private void verifyCacheFile(String fileName) throws IOException {
+		InputStream in	= store.openStream(fileName, null);
 		try {
-			result = URLEncoder.encode(resourceName, FILENAME_CHARSET_NAME);
-		} catch (UnsupportedEncodingException e) {
-			log.warn("Failed to convert to filename - " + e, e);
-			result = resourceName;
+			CacheFileHeader header;
+			try {
+				header	= CacheFileHeader.read(in);
+			} catch (EOFException e) {
+				throw new CorruptCacheFileException("header truncated");
+			}
+			if ((header == null) || (header.getStoredLength() < 0)) {
+				return;
+			}
+			long expectedSize	= header.getSize() + header.getStoredLength();
+			long length	= store.getLength(fileName);
+			if (length != expectedSize) {
+				throw new CorruptCacheFileException("length mismatch, expected " + expectedSize +
+						" bytes, found " + length);
+			}
+			CRC32 checksum	= new CRC32();
+			byte[] buffer	= new byte[8192];
+			while (true) {
+				int count	= in.read(buffer);
+				if (count < 0) {
+					break;
+				}
+				checksum.update(buffer, 0, count);
+			}
+			if ((int) checksum.getValue() != header.getChecksum()) {
+				throw new CorruptCacheFileException("checksum mismatch");
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Moves all cache files of the flat layout used by older versions (URL-encoded resource names
+	 * in the cache directory itself) to the hashed layout. Until this was done, flat files are
+	 * moved individually when their resource is requested.
+	 *
+	 * @return the number of files moved
+	 */
+	public int migrateFlatLayout() {
+		int count	= 0;
+		File[] files	= (flatLayoutMigrated ? null : new File(cacheDirectory).listFiles());
+		if (files != null) {
+			for (File file: files) {
+				String flatFileName	= file.getName();
+				if ((!file.isFile()) || (FileCacheLayout.isInternalFileName(flatFileName))) {
+					continue;
+				}
+				String name	= FileCacheLayout.getResourceNameByFlatFileName(flatFileName);
+				if (name == null) {
+					continue;
+				}
+				String fileName	= FileCacheLayout.getFileName(name);
+				if (migrateFlatFile(file, fileName, new File(cacheDirectory, fileName))) {
+					count++;
+				}
+			}
 		}
-		//result	= StringUtil.replace(result, "/", "%2F%");
-		return result;
+		flatLayoutMigrated	= true;
+		if (log.isInfoEnabled()) {
+			log.info("migrated " + count + " cache files to the hashed layout");
+		}
+		return count;
+	}
+
+	private boolean migrateFlatFile(File flatFile, String fileName, File cacheFile) {
+		if (!flatFile.isFile()) {
+			return false;
+		}
+		long size	= flatFile.length();
+		cacheFile.getParentFile().mkdirs();
+		boolean moved	= ((!cacheFile.exists()) && (flatFile.renameTo(cacheFile)));
+		if (!moved) {
+			// superseded by a file in the hashed layout, or not movable
+			flatFile.delete();
+		}
+		cacheGarbageCollector.triggerRemove(flatFile.getName());
+		if (moved) {
+			cacheGarbageCollector.triggerAfterWrite(fileName, size);
+		}
+		return moved;
 	}
 
 
@@ -484,20 +1610,7 @@ public class FileCachedResourceLoader extends AbstractResourceLoader {
 		if ((name.indexOf("://") < 0) || (name.startsWith("file://"))) {
 			return parentResourceLoader.getResource(name);
 		}
-		IResource resource	= (IResource) resourceCache.get(name);
-		if (resource == null) {
-			resource	= parentResourceLoader.getResource(name);
-			int modifier	= resource.getModifier();
-			if ((resource != null) && ((modifier & IResource.MODIFIER_MEMORY_CACHED) == 0) &&
-					((modifier & IResource.MODIFIER_FILE_CACHED) == 0)) {
-				File cacheFile	= new File(cacheDirectory, getFileNameByResourceName(name));
-				resource	= new FileCachedResource(
-						resource, cacheFile, cacheContext,
-						this.getTaskManager());
-				resourceCache.put(name, resource);
-			}
-		}
-		return resource;
+		return resourceHandles.getOrCreate(name, resourceFactory);
 	}
 
 }
@@ -0,0 +1,35 @@
+package de.siteof.resource;
+
+/**
+ * Keeps the total size and number of entries of a cache within limits.
+ */
+interface ICacheGarbageCollector {
+
+	void triggerBeforeWrite(Object key, long size);
+	void triggerAfterWrite(Object key, long size);
+
+	/**
+	 * Marks the entry as the most recently used one.
+	 */
+	void triggerAccess(Object key);
+
+	/**
+	 * Forgets the entry, after it was removed from the cache.
+	 */
+	void triggerRemove(Object key);
+
+	/**
+	 * @return the number of files in the cache
+	 */
+	int getEntryCount();
+
+	/**
+	 * @return the total size of the files in the cache
+	 */
+	long getTotalSize();
+
+	/**
+	 * Persists the state, e.g. on shutdown. The garbage collector remains usable.
+	 */
+	void close();
+}
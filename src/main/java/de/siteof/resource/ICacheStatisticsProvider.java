@@ -0,0 +1,13 @@
+package de.siteof.resource;
+
+/**
+ * Implemented by caching loaders to report how well the cache performs.
+ */
+public interface ICacheStatisticsProvider {
+
+	/**
+	 * @return a snapshot of the statistics collected since the cache was created
+	 */
+	CacheStatistics getCacheStatistics();
+
+}
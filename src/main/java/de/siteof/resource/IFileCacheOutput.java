@@ -0,0 +1,39 @@
+package de.siteof.resource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The content of a cache entry while it is written. The entry is only replaced once the output is
+ * published, until then the previous content (if any) remains readable.
+ */
+interface IFileCacheOutput {
+
+	/**
+	 * @return the stream to write the content to (the same stream on every call)
+	 */
+	OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * @return the number of bytes written so far (after the stream was flushed)
+	 */
+	long getSize() throws IOException;
+
+	/**
+	 * Fills in the lengths and checksum of the cache file header written at the start of the content.
+	 * The stream has to be flushed before.
+	 */
+	void updateHeader(int length, int storedLength, int checksum) throws IOException;
+
+	/**
+	 * Replaces the entry by the content written. The output can't be used afterwards, it is
+	 * discarded if publishing fails.
+	 */
+	void publish() throws IOException;
+
+	/**
+	 * Drops the content written, leaving the entry unchanged.
+	 */
+	void discard();
+
+}
@@ -0,0 +1,57 @@
+package de.siteof.resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import de.siteof.resource.util.MappedFileReader;
+
+/**
+ * Stores the entries of the file cache on disk. An entry is identified by its key and holds the
+ * complete content of a cache file (header and payload). Entries are written to an output first
+ * and published once complete.
+ */
+interface IFileCacheStore {
+
+	boolean exists(String key);
+
+	/**
+	 * @return the time the entry was written, or 0 if there is no such entry
+	 */
+	long getLastModified(String key);
+
+	/**
+	 * @return the length of the entry, or 0 if there is no such entry
+	 */
+	long getLength(String key);
+
+	/**
+	 * @param mappedFileReader used to read the entry from a mapping if not null
+	 * @return the content of the entry (supporting mark/reset)
+	 * @throws java.io.FileNotFoundException if there is no such entry
+	 */
+	InputStream openStream(String key, MappedFileReader mappedFileReader) throws IOException;
+
+	/**
+	 * @return a new output to write the content of the entry to, to be published or discarded
+	 */
+	IFileCacheOutput createOutput(String key) throws IOException;
+
+	/**
+	 * Sets the time the entry was written to now, e.g. after it was found to be still current.
+	 *
+	 * @return false if there is no such entry or its time couldn't be changed
+	 */
+	boolean touch(String key);
+
+	/**
+	 * @return true if the entry existed and was removed
+	 */
+	boolean delete(String key);
+
+	/**
+	 * @return the keys of all entries
+	 */
+	List<String> getKeys();
+
+}
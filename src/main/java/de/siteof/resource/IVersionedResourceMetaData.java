@@ -0,0 +1,18 @@
+package de.siteof.resource;
+
+/**
+ * Metadata identifying the version of the resource at its origin, used to revalidate cached copies.
+ */
+public interface IVersionedResourceMetaData extends IResourceMetaData {
+
+	/**
+	 * @return the time the resource was last modified at its origin, or 0 if not known
+	 */
+	long getLastModified();
+
+	/**
+	 * @return the entity tag identifying the version of the resource at its origin, or null if not known
+	 */
+	String getETag();
+
+}
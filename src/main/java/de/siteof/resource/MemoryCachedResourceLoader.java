@@ -1,71 +1,757 @@
 package de.siteof.resource;
 
 import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
-import de.siteof.cache.IObjectCache;
-import de.siteof.cache.ObjectCacheFactory;
 import de.siteof.resource.event.IResourceListener;
 import de.siteof.resource.event.ResourceLoaderEvent;
+import de.siteof.resource.util.ByteArrayResourceBytesSink;
+import de.siteof.resource.util.CacheStatisticsCounter;
+import de.siteof.resource.util.CacheWarmUp;
+import de.siteof.resource.util.CompressedCachedBytes;
+import de.siteof.resource.util.ContentAddressedStore;
+import de.siteof.resource.util.ExpiryPolicy;
+import de.siteof.resource.util.HeapCachedBytes;
+import de.siteof.resource.util.ICachedBytes;
+import de.siteof.resource.util.IResourceBytesSink;
+import de.siteof.resource.util.MemoryPressureMonitor;
+import de.siteof.resource.util.NegativeResultCache;
+import de.siteof.resource.util.OffHeapSlabAllocator;
+import de.siteof.resource.util.PendingResourceBytes;
+import de.siteof.resource.util.ResourceCompressor;
+import de.siteof.resource.util.ResourceHandleMap;
+import de.siteof.resource.util.TeeResourceBytesListener;
+import de.siteof.resource.util.WeightedLruCache;
+import de.siteof.task.AbstractTask;
+
+public class MemoryCachedResourceLoader extends AbstractResourceLoader implements ICacheStatisticsProvider,
+		MemoryPressureMonitor.IMemoryPressureListener {
+
+	/**
+	 * Receives the payloads evicted from a bounded cache to stay within the budget, e.g. to keep
+	 * them in a slower tier.
+	 */
+	public static interface IEvictionListener {
+
+		void onEvicted(String name, byte[] data);
+
+	}
+
+	private static interface IMemoryCacheContext {
+
+		/**
+		 * Creates the payload to be held by a resource, either on or off the heap,
+		 * compressed if enabled and worthwhile.
+		 */
+		ICachedBytes createCachedBytes(MemoryCachedResource resource, byte[] data);
+
+		void onResourceCached(MemoryCachedResource resource, ICachedBytes cachedBytes);
+
+		void onResourceAccessed(MemoryCachedResource resource);
+
+		void onResourceCleared(MemoryCachedResource resource);
+
+		/**
+		 * @return the parent requests currently in progress, by cache name
+		 */
+		ConcurrentMap<String, PendingResourceBytes> getPendingRequests();
+
+		/**
+		 * @return the names of resources recently found to be missing
+		 */
+		NegativeResultCache getNegativeResultCache();
+
+		CacheStatisticsCounter getStatistics();
+
+		/**
+		 * @return the compressor used for new payloads, or null if compression is disabled
+		 */
+		ResourceCompressor getCompressor();
+
+		void setCompressor(ResourceCompressor compressor);
+
+		/**
+		 * @return the store sharing identical payloads, or null if deduplication is disabled
+		 */
+		ContentAddressedStore getContentStore();
+
+		void setContentStore(ContentAddressedStore contentStore);
+
+		/**
+		 * @return the policy deciding when cached payloads expire, or null if they don't expire
+		 */
+		ExpiryPolicy getExpiryPolicy();
+
+		void setExpiryPolicy(ExpiryPolicy expiryPolicy);
+
+		/**
+		 * @return the listener receiving evicted payloads, or null
+		 */
+		IEvictionListener getEvictionListener();
+
+		void setEvictionListener(IEvictionListener evictionListener);
+	}
+
+	private static abstract class AbstractMemoryCacheContext implements IMemoryCacheContext {
+
+		private final ConcurrentMap<String, PendingResourceBytes> pendingRequests =
+			new ConcurrentHashMap<String, PendingResourceBytes>();
+		private final NegativeResultCache negativeResultCache = new NegativeResultCache();
+		private final CacheStatisticsCounter statistics = new CacheStatisticsCounter();
+		private volatile ResourceCompressor compressor;
+		private volatile ContentAddressedStore contentStore;
+		private volatile ExpiryPolicy expiryPolicy;
+		private volatile IEvictionListener evictionListener;
+		private final ContentAddressedStore.IBytesFactory uniqueBytesFactory = new ContentAddressedStore.IBytesFactory() {
+			@Override
+			public ICachedBytes createCachedBytes(byte[] data) {
+				return createUniqueCachedBytes(data);
+			}
+		};
+
+		@Override
+		public ICachedBytes createCachedBytes(MemoryCachedResource resource, byte[] data) {
+			ContentAddressedStore contentStore = this.contentStore;
+			if (contentStore != null) {
+				return contentStore.store(data, resource, uniqueBytesFactory);
+			}
+			return createUniqueCachedBytes(data);
+		}
+
+		/**
+		 * Creates the payload without looking for an identical one.
+		 */
+		private ICachedBytes createUniqueCachedBytes(byte[] data) {
+			ResourceCompressor compressor = this.compressor;
+			if (compressor != null) {
+				byte[] compressed = compressor.compress(data);
+				if (compressed != null) {
+					return new CompressedCachedBytes(storeBytes(compressed), data.length);
+				}
+			}
+			return storeBytes(data);
+		}
+
+		/**
+		 * Stores the (possibly compressed) data.
+		 */
+		protected ICachedBytes storeBytes(byte[] data) {
+			return new HeapCachedBytes(data);
+		}
+
+		@Override
+		public ConcurrentMap<String, PendingResourceBytes> getPendingRequests() {
+			return pendingRequests;
+		}
+
+		@Override
+		public NegativeResultCache getNegativeResultCache() {
+			return negativeResultCache;
+		}
+
+		@Override
+		public CacheStatisticsCounter getStatistics() {
+			return statistics;
+		}
+
+		@Override
+		public ResourceCompressor getCompressor() {
+			return compressor;
+		}
+
+		@Override
+		public void setCompressor(ResourceCompressor compressor) {
+			this.compressor = compressor;
+		}
+
+		@Override
+		public ContentAddressedStore getContentStore() {
+			return contentStore;
+		}
+
+		@Override
+		public void setContentStore(ContentAddressedStore contentStore) {
+			this.contentStore = contentStore;
+		}
+
+		@Override
+		public ExpiryPolicy getExpiryPolicy() {
+			return expiryPolicy;
+		}
+
+		@Override
+		public void setExpiryPolicy(ExpiryPolicy expiryPolicy) {
+			this.expiryPolicy = expiryPolicy;
+		}
+
+		@Override
+		public IEvictionListener getEvictionListener() {
+			return evictionListener;
+		}
+
+		@Override
+		public void setEvictionListener(IEvictionListener evictionListener) {
+			this.evictionListener = evictionListener;
+		}
+	}
+
+	/**
+	 * Context used when the cache is only limited by the garbage collector (soft references).
+	 */
+	private static class SoftMemoryCacheContext extends AbstractMemoryCacheContext {
+
+		@Override
+		public void onResourceCached(MemoryCachedResource resource, ICachedBytes cachedBytes) {
+		}
+
+		@Override
+		public void onResourceAccessed(MemoryCachedResource resource) {
+		}
+
+		@Override
+		public void onResourceCleared(MemoryCachedResource resource) {
+		}
+	}
+
+	/**
+	 * A payload accounted by the bounded cache, together with the resource holding it.
+	 */
+	private static class CachedEntry {
+
+		private final MemoryCachedResource resource;
+		private final ICachedBytes cachedBytes;
+
+		public CachedEntry(MemoryCachedResource resource, ICachedBytes cachedBytes) {
+			this.resource = resource;
+			this.cachedBytes = cachedBytes;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof CachedEntry)) {
+				return false;
+			}
+			CachedEntry other = (CachedEntry) obj;
+			return ((other.resource == resource) && (other.cachedBytes == cachedBytes));
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(resource) * 31 + System.identityHashCode(cachedBytes);
+		}
+
+	}
+
+	/**
+	 * Context keeping the cached payloads within an explicit byte budget (LRU eviction).
+	 */
+	private static class WeightedMemoryCacheContext extends AbstractMemoryCacheContext implements
+			WeightedLruCache.IEvictionListener<String, CachedEntry>, ContentAddressedStore.IChargeListener {
+
+		private final WeightedLruCache<String, CachedEntry> cachedResources;
+		private final OffHeapSlabAllocator offHeapAllocator;
+
+		public WeightedMemoryCacheContext(long maxWeight, OffHeapSlabAllocator offHeapAllocator) {
+			this.cachedResources = new WeightedLruCache<String, CachedEntry>(maxWeight, this);
+			this.offHeapAllocator = offHeapAllocator;
+		}
+
+		@Override
+		protected ICachedBytes storeBytes(byte[] data) {
+			if (offHeapAllocator != null) {
+				do {
+					ICachedBytes result = offHeapAllocator.allocate(data);
+					if (result != null) {
+						return result;
+					}
+					// the pages of evicted payloads may still be in use by open streams
+				} while (cachedResources.evictEldest());
+				log.debug("off-heap capacity exhausted, keeping payload on the heap");
+			}
+			return super.storeBytes(data);
+		}
+
+		@Override
+		public void onResourceCached(MemoryCachedResource resource, ICachedBytes cachedBytes) {
+			CachedEntry entry	= new CachedEntry(resource, cachedBytes);
+			long weight	= cachedBytes.getWeight();
+			cachedResources.put(resource.getCacheName(), entry, weight);
+			if (cachedBytes.getWeight() != weight) {
+				// the charge of a shared payload moved to it before it was accounted
+				cachedResources.updateWeight(resource.getCacheName(), entry, cachedBytes.getWeight());
+			}
+		}
+
+		@Override
+		public void onCharged(Object owner, ICachedBytes reference) {
+			MemoryCachedResource resource	= (MemoryCachedResource) owner;
+			cachedResources.updateWeight(resource.getCacheName(), new CachedEntry(resource, reference),
+					reference.getWeight());
+		}
 
-public class MemoryCachedResourceLoader extends AbstractResourceLoader {
+		@Override
+		public void onResourceAccessed(MemoryCachedResource resource) {
+			cachedResources.get(resource.getCacheName());
+		}
+
+		@Override
+		public void onResourceCleared(MemoryCachedResource resource) {
+			cachedResources.remove(resource.getCacheName());
+		}
+
+		@Override
+		public void onEviction(String key, CachedEntry entry) {
+			entry.resource.evict(entry.cachedBytes);
+		}
+
+		public MemoryCachedResource getCachedResource(String name) {
+			CachedEntry entry = cachedResources.get(name);
+			return (entry != null ? entry.resource : null);
+		}
+
+		public WeightedLruCache<String, CachedEntry> getCachedResources() {
+			return cachedResources;
+		}
+
+		public OffHeapSlabAllocator getOffHeapAllocator() {
+			return offHeapAllocator;
+		}
+	}
 
 	private static class MemoryCachedResource extends AbstractResource {
 
+		private final String cacheName;
+		private final IMemoryCacheContext cacheContext;
 		private boolean cached;
 		private boolean exists;
-		private byte[] data;
+		private ICachedBytes cachedBytes;
+		private volatile long cachedTime;
+		private volatile long accessTime;
+		private final AtomicBoolean refreshing = new AtomicBoolean();
 
-		public MemoryCachedResource(IResource resource) {
+		public MemoryCachedResource(IResource resource, String cacheName, IMemoryCacheContext cacheContext) {
 			super(resource);
+			this.cacheName		= cacheName;
+			this.cacheContext	= cacheContext;
+		}
+
+		public String getCacheName() {
+			return cacheName;
+		}
+
+		private void setCachedData(byte[] data) {
+			if (data == null) {
+				cacheContext.getNegativeResultCache().markMissing(cacheName);
+				return;
+			}
+			ICachedBytes cachedBytes	= cacheContext.createCachedBytes(this, data);
+			ICachedBytes previous;
+			synchronized (this) {
+				previous	= this.cachedBytes;
+				this.cachedBytes	= cachedBytes;
+				this.cached	= true;
+				this.cachedTime	= System.currentTimeMillis();
+				this.accessTime	= this.cachedTime;
+			}
+			if (previous != null) {
+				previous.release();
+			}
+			setModifier(getModifier() | MODIFIER_MEMORY_LOADED);
+			cacheContext.onResourceCached(this, cachedBytes);
+		}
+
+		private void onLoadFailed(Throwable cause) {
+			if (cause instanceof FileNotFoundException) {
+				cacheContext.getNegativeResultCache().markMissing(cacheName);
+			}
+		}
+
+		private boolean isKnownMissing() {
+			return cacheContext.getNegativeResultCache().isMissing(cacheName);
+		}
+
+		private boolean hasCachedData() {
+			synchronized (this) {
+				return (cachedBytes != null);
+			}
+		}
+
+		/**
+		 * @param recordHit true if the access should be counted as a cache hit
+		 * @return the cached payload retained for reading (to be released by the caller), or null
+		 */
+		private ICachedBytes acquireCachedBytes(boolean recordHit) {
+			ICachedBytes result;
+			synchronized (this) {
+				result	= this.cachedBytes;
+				if ((result != null) && (!result.retain())) {
+					result	= null;
+				}
+			}
+			if (result != null) {
+				long now	= System.currentTimeMillis();
+				ExpiryPolicy expiryPolicy	= cacheContext.getExpiryPolicy();
+				if (expiryPolicy != null) {
+					if (expiryPolicy.isExpired(cachedTime, accessTime, now)) {
+						result.release();
+						expire(result);
+						return null;
+					}
+					if (expiryPolicy.isRefreshDue(cachedTime, now)) {
+						refreshAhead();
+					}
+				}
+				accessTime	= now;
+				cacheContext.onResourceAccessed(this);
+				if (recordHit) {
+					cacheContext.getStatistics().recordHit(result.getLength());
+				}
+			}
+			return result;
+		}
+
+		private byte[] getCachedData() {
+			return getCachedData(true);
+		}
+
+		private byte[] getCachedData(boolean recordHit) {
+			ICachedBytes cachedBytes	= acquireCachedBytes(recordHit);
+			if (cachedBytes == null) {
+				return null;
+			}
+			try {
+				return cachedBytes.getBytes();
+			} finally {
+				cachedBytes.release();
+			}
+		}
+
+		private InputStream getCachedStream() {
+			ICachedBytes cachedBytes	= acquireCachedBytes(true);
+			if (cachedBytes == null) {
+				return null;
+			}
+			try {
+				return cachedBytes.openStream();
+			} finally {
+				cachedBytes.release();
+			}
+		}
+
+		/**
+		 * @return true if there was a cached payload
+		 */
+		private boolean removeCachedData() {
+			ICachedBytes cachedBytes;
+			synchronized (this) {
+				cachedBytes	= this.cachedBytes;
+				this.cachedBytes	= null;
+			}
+			if (cachedBytes != null) {
+				cachedBytes.release();
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Removes the payload if it is still the given expired one.
+		 */
+		private void expire(ICachedBytes expired) {
+			synchronized (this) {
+				if (this.cachedBytes != expired) {
+					return;
+				}
+				this.cachedBytes	= null;
+			}
+			expired.release();
+			cacheContext.getStatistics().recordEviction(CacheEvictionCause.EXPIRED);
+			cacheContext.onResourceCleared(this);
+			setModifier(getModifier() & (~MODIFIER_LOADED));
+		}
+
+		/**
+		 * Reloads the payload on the task manager while the current payload keeps being served.
+		 */
+		private void refreshAhead() {
+			if (!refreshing.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				getTaskManager().addTask(new AbstractTask() {
+					@Override
+					public void execute() throws Exception {
+						CacheStatisticsCounter statistics	= cacheContext.getStatistics();
+						long startTime	= System.nanoTime();
+						try {
+							byte[] data	= getParentResource().getResourceBytes();
+							statistics.recordLoadSuccess(System.nanoTime() - startTime);
+							if (data != null) {
+								setCachedData(data);
+							}
+						} catch (Throwable e) {
+							statistics.recordLoadFailure(System.nanoTime() - startTime);
+							log.warn("refresh failed, keeping cached data until it expires, name=" +
+									cacheName + " - " + e, e);
+						} finally {
+							refreshing.set(false);
+						}
+					}});
+			} catch (RuntimeException e) {
+				refreshing.set(false);
+				log.warn("refresh could not be scheduled, name=" + cacheName + " - " + e, e);
+			}
+		}
+
+		/**
+		 * Called by the cache context when the payload was evicted to stay within the budget.
+		 * Removes the payload only if it is still the evicted one, it may have been replaced
+		 * (and accounted again) since it was removed from the cache.
+		 */
+		private void evict(ICachedBytes evicted) {
+			synchronized (this) {
+				if (this.cachedBytes != evicted) {
+					return;
+				}
+				this.cachedBytes	= null;
+			}
+			IEvictionListener evictionListener	= cacheContext.getEvictionListener();
+			byte[] data	= (evictionListener != null ? evicted.getBytes() : null);
+			evicted.release();
+			cacheContext.getStatistics().recordEviction(CacheEvictionCause.SIZE);
+			if (evictionListener != null) {
+				evictionListener.onEvicted(cacheName, data);
+			}
+			setModifier(getModifier() & (~MODIFIER_LOADED));
 		}
 
 		@Override
 		public void clearCache() {
 			cached	= false;
 			exists	= false;
-			data	= null;
+			if (removeCachedData()) {
+				cacheContext.getStatistics().recordEviction(CacheEvictionCause.EXPLICIT);
+			}
+			cacheContext.onResourceCleared(this);
+			cacheContext.getNegativeResultCache().invalidate(cacheName);
 			super.clearCache();
 			setModifier(getModifier() & (~MODIFIER_LOADED));
 		}
 
+		@Override
+		public long getLastCached() {
+			if (hasCachedData()) {
+				return cachedTime;
+			}
+			return super.getLastCached();
+		}
+
 		@Override
 		public boolean exists() throws IOException {
-			if (cached) {
-				return (exists) || (data != null);
-			} else {
-				exists	= super.exists();
-				cached	= true;
+			if (((cached) && (exists)) || (hasCachedData())) {
+				return true;
+			}
+			if (isKnownMissing()) {
+				return false;
 			}
-			return (data != null);
+			exists	= super.exists();
+			cached	= true;
+			if (!exists) {
+				cacheContext.getNegativeResultCache().markMissing(cacheName);
+			}
+			return exists;
 		}
 
 		@Override
 		public InputStream getResourceAsStream() throws IOException {
-			byte[] data	= this.getResourceBytes();
-			if (data != null) {
-				return new ByteArrayInputStream(data);
+			InputStream in	= this.getCachedStream();
+			if (in == null) {
+				byte[] data	= this.getSharedResourceBytes();
+				if (data != null) {
+					in	= new ByteArrayInputStream(data);
+				}
 			}
-			return null;
+			return in;
 		}
 
 		@Override
 		public byte[] getResourceBytes() throws IOException {
-			byte[] data	= this.data;
+			byte[] data	= this.getCachedData();
 			if (data == null) {
-				data	= super.getResourceBytes();
-				if (data != null) {
-					this.data		= data;
-					this.cached	= true;
-					setModifier(getModifier() | MODIFIER_MEMORY_LOADED);
+				data	= getSharedResourceBytes();
+			}
+			return data;
+		}
+
+		/**
+		 * Loads the data from the parent resource, or waits for the request already in progress
+		 * for the same name.
+		 */
+		private byte[] getSharedResourceBytes() throws IOException {
+			CacheStatisticsCounter statistics	= cacheContext.getStatistics();
+			if (isKnownMissing()) {
+				statistics.recordHit(0);
+				return null;
+			}
+			statistics.recordMiss();
+			ConcurrentMap<String, PendingResourceBytes> pendingRequests	= cacheContext.getPendingRequests();
+			PendingResourceBytes pending	= new PendingResourceBytes();
+			PendingResourceBytes existing	= pendingRequests.putIfAbsent(cacheName, pending);
+			if (existing != null) {
+				return existing.await();
+			}
+			byte[] data	= null;
+			Throwable failure	= null;
+			long startTime	= 0;
+			try {
+				// another request may have completed just before this one was registered
+				data	= this.getCachedData(false);
+				if (data == null) {
+					startTime	= System.nanoTime();
+					data	= super.getResourceBytes();
+					statistics.recordLoadSuccess(System.nanoTime() - startTime);
+					setCachedData(data);
+				}
+			} catch (IOException e) {
+				failure	= e;
+				onLoadFailed(e);
+				throw e;
+			} catch (RuntimeException e) {
+				failure	= e;
+				throw e;
+			} catch (Error e) {
+				failure	= e;
+				throw e;
+			} finally {
+				if ((failure != null) && (startTime != 0)) {
+					statistics.recordLoadFailure(System.nanoTime() - startTime);
+				}
+				pendingRequests.remove(cacheName, pending);
+				if (failure != null) {
+					pending.fail(this, failure);
+				} else {
+					pending.complete(this, data);
 				}
 			}
 			return data;
 		}
 
+		/**
+		 * Requests the data from the parent resource asynchronously, unless a request for the same
+		 * name is already in progress. The chunks of the parent request are collected and the
+		 * complete data is cached once the request completed.
+		 *
+		 * @param listener receives all events of the parent request if this call started it (may be null)
+		 * @param callback receives the shared result if another request was already in progress,
+		 * or in any case if no listener was given
+		 */
+		private void getSharedResourceBytes(
+				IResourceListener<ResourceLoaderEvent<byte[]>> listener,
+				IResourceBytesCallback callback) throws IOException {
+			final CacheStatisticsCounter statistics	= cacheContext.getStatistics();
+			if (isKnownMissing()) {
+				statistics.recordHit(0);
+				callback.onCompleteResourceBytes(this, null);
+				return;
+			}
+			statistics.recordMiss();
+			final ConcurrentMap<String, PendingResourceBytes> pendingRequests	= cacheContext.getPendingRequests();
+			final PendingResourceBytes pending	= new PendingResourceBytes();
+			PendingResourceBytes existing	= pendingRequests.putIfAbsent(cacheName, pending);
+			if (existing != null) {
+				existing.addCallback(callback);
+				return;
+			}
+			if (listener == null) {
+				pending.addCallback(callback);
+			}
+			byte[] data;
+			try {
+				data	= this.getCachedData(false);
+			} catch (RuntimeException e) {
+				pendingRequests.remove(cacheName, pending);
+				pending.fail(this, e);
+				throw e;
+			}
+			if (data != null) {
+				pendingRequests.remove(cacheName, pending);
+				pending.complete(this, data);
+				if (listener != null) {
+					listener.onResourceEvent(new ResourceLoaderEvent<byte[]>(this, data, true));
+				}
+				return;
+			}
+			final long startTime	= System.nanoTime();
+			IResourceBytesSink sink	= new ByteArrayResourceBytesSink(this, new IResourceBytesCallback() {
+				@Override
+				public void onCompleteResourceBytes(IResource resource, byte[] bytes) {
+					try {
+						statistics.recordLoadSuccess(System.nanoTime() - startTime);
+						setCachedData(bytes);
+					} finally {
+						// waiters must not block, even if the data couldn't be cached
+						pendingRequests.remove(cacheName, pending);
+						pending.complete(MemoryCachedResource.this, bytes);
+					}
+				}
+
+				@Override
+				public void onFailedResourceBytes(IResource resource, Throwable cause) {
+					try {
+						statistics.recordLoadFailure(System.nanoTime() - startTime);
+						onLoadFailed(cause);
+					} finally {
+						pendingRequests.remove(cacheName, pending);
+						pending.fail(MemoryCachedResource.this, cause);
+					}
+				}});
+			try {
+				this.getParentResource().getResourceBytes(new TeeResourceBytesListener(listener, sink));
+			} catch (IOException e) {
+				sink.abort(e);
+				throw e;
+			} catch (RuntimeException e) {
+				sink.abort(e);
+				throw e;
+			}
+		}
+
+		/**
+		 * @return a callback passing the shared result as a single complete or failed event
+		 */
+		private IResourceBytesCallback getSharedBytesCallback(
+				final IResourceListener<ResourceLoaderEvent<byte[]>> listener) {
+			return new IResourceBytesCallback() {
+				@Override
+				public void onCompleteResourceBytes(IResource resource, byte[] bytes) {
+					listener.onResourceEvent(new ResourceLoaderEvent<byte[]>(
+							MemoryCachedResource.this, bytes, true));
+				}
+
+				@Override
+				public void onFailedResourceBytes(IResource resource, Throwable cause) {
+					listener.onResourceEvent(new ResourceLoaderEvent<byte[]>(
+							MemoryCachedResource.this, cause));
+				}};
+		}
+
 		@Override
 		public long getSize() {
+			synchronized (this) {
+				if (cachedBytes != null) {
+					return cachedBytes.getLength();
+				}
+			}
 			long result	= 0;
 			try {
 				byte[] data	= getResourceBytes();
@@ -77,6 +763,10 @@ public class MemoryCachedResourceLoader extends AbstractResourceLoader {
 			return result;
 		}
 
+		/**
+		 * The conditions of the parameters are ignored, the memory cache doesn't keep the version of
+		 * the resource. The content is always sent, both for hits and for requests to the parent.
+		 */
 		@Override
 		public void getResourceAsStream(
 				IResourceListener<ResourceLoaderEvent<InputStream>> listener,
@@ -86,29 +776,32 @@ public class MemoryCachedResourceLoader extends AbstractResourceLoader {
 				this.getParentResource().getResourceAsStream(listener, parameters);
 			} else {
 				final IResourceListener<ResourceLoaderEvent<InputStream>> finalListener = listener;
-				byte[] data	= this.data;
-				if (data != null) {
+				InputStream in	= this.getCachedStream();
+				if (in != null) {
 					ResourceLoaderEvent<InputStream> event = new ResourceLoaderEvent<InputStream>(
-							this, new ByteArrayInputStream(data), true);
+							this, in, true);
 					listener.onResourceEvent(event);
 				} else {
-					this.getParentResource().getResourceBytes(new IResourceListener<ResourceLoaderEvent<byte[]>>() {
+					getSharedResourceBytes(null, new IResourceBytesCallback() {
 						@Override
-						public void onResourceEvent(
-								ResourceLoaderEvent<byte[]> event) {
-							if (event.isComplete()) {
-								MemoryCachedResource.this.data = event.getResult();
-								finalListener.onResourceEvent(new ResourceLoaderEvent<InputStream>(
-										MemoryCachedResource.this, new ByteArrayInputStream(MemoryCachedResource.this.data), true));
-							} else if (event.isFailed()) {
-								finalListener.onResourceEvent(new ResourceLoaderEvent<InputStream>(
-										MemoryCachedResource.this, event.getCause()));
-							}
+						public void onCompleteResourceBytes(IResource resource, byte[] bytes) {
+							finalListener.onResourceEvent(new ResourceLoaderEvent<InputStream>(
+									MemoryCachedResource.this,
+									(bytes != null ? new ByteArrayInputStream(bytes) : null), true));
+						}
+
+						@Override
+						public void onFailedResourceBytes(IResource resource, Throwable cause) {
+							finalListener.onResourceEvent(new ResourceLoaderEvent<InputStream>(
+									MemoryCachedResource.this, cause));
 						}});
 				}
 			}
 		}
 
+		/**
+		 * The conditions of the parameters are ignored, see {@link #getResourceAsStream(IResourceListener, ResourceRequestParameters)}.
+		 */
 		@Override
 		public void getResourceBytes(
 				IResourceListener<ResourceLoaderEvent<byte[]>> listener,
@@ -117,23 +810,13 @@ public class MemoryCachedResourceLoader extends AbstractResourceLoader {
 			if (parameters.isNoChache()) {
 				this.getParentResource().getResourceBytes(listener, parameters);
 			} else {
-				final IResourceListener<ResourceLoaderEvent<byte[]>> finalListener = listener;
-				byte[] data	= this.data;
+				byte[] data	= this.getCachedData();
 				if (data != null) {
 					ResourceLoaderEvent<byte[]> event = new ResourceLoaderEvent<byte[]>(
 							this, data, true);
 					listener.onResourceEvent(event);
 				} else {
-					this.getParentResource().getResourceBytes(new IResourceListener<ResourceLoaderEvent<byte[]>>() {
-						@Override
-						public void onResourceEvent(
-								ResourceLoaderEvent<byte[]> event) {
-							if (event.isComplete()) {
-								MemoryCachedResource.this.data = event.getResult();
-							} else if (event.isFailed()) {
-							}
-							finalListener.onResourceEvent(event);
-						}});
+					getSharedResourceBytes(listener, getSharedBytesCallback(listener));
 				}
 			}
 		}
@@ -142,26 +825,324 @@ public class MemoryCachedResourceLoader extends AbstractResourceLoader {
 
 
 	private final IResourceLoader parentResourceLoader;
-	private final IObjectCache<String, IResource>	resourceCache	= ObjectCacheFactory.getNewSoftObjectCache();
+	private final ResourceHandleMap	resourceHandles;
+	private final ResourceHandleMap.IResourceFactory	resourceFactory	= new ResourceHandleMap.IResourceFactory() {
+		@Override
+		public IResource createResource(String name) throws IOException {
+			if (weightedCacheContext != null) {
+				// the handle may have been collected while its payload is still within the budget
+				IResource resource	= weightedCacheContext.getCachedResource(name);
+				if (resource != null) {
+					return resource;
+				}
+			}
+			IResource resource	= parentResourceLoader.getResource(name);
+			// MODIFIER_CACHED is shared with file cached resources, which are still held in memory
+			if ((resource != null) &&
+					((resource.getModifier() & IResource.MODIFIER_MEMORY_CACHED) != IResource.MODIFIER_MEMORY_CACHED)) {
+				resource	= new MemoryCachedResource(resource, name, cacheContext);
+			}
+			return resource;
+		}
+	};
+	private final IMemoryCacheContext cacheContext;
+	private final WeightedMemoryCacheContext weightedCacheContext;
+	private long configuredMaxWeight;
+	private float budgetFactor	= 1f;
+
+	private static final Log log	= LogFactory.getLog(MemoryCachedResourceLoader.class);
 
+	/**
+	 * Creates a memory cache which keeps the payloads as long as the garbage collector allows
+	 * (soft references).
+	 */
 	public MemoryCachedResourceLoader(IResourceLoader parentResourceLoader) {
 		super(parentResourceLoader);
 		this.parentResourceLoader	= parentResourceLoader;
+		this.weightedCacheContext	= null;
+		this.cacheContext	= new SoftMemoryCacheContext();
+		// the payloads are held by the handles, a collected handle means a collected payload
+		this.resourceHandles	= new ResourceHandleMap(true, new ResourceHandleMap.ICollectionListener() {
+			@Override
+			public void onCollected(String name) {
+				cacheContext.getStatistics().recordEviction(CacheEvictionCause.COLLECTED);
+			}
+		});
+	}
+
+	/**
+	 * Creates a memory cache with an explicit budget. The payload length of every cached resource
+	 * is accounted and the least recently used payloads are evicted once the budget is exceeded.
+	 *
+	 * @param maxWeight the maximum total payload size in bytes
+	 */
+	public MemoryCachedResourceLoader(IResourceLoader parentResourceLoader, long maxWeight) {
+		super(parentResourceLoader);
+		this.parentResourceLoader	= parentResourceLoader;
+		this.weightedCacheContext	= new WeightedMemoryCacheContext(maxWeight, null);
+		this.cacheContext	= weightedCacheContext;
+		this.resourceHandles	= new ResourceHandleMap(true, null);
+		this.configuredMaxWeight	= maxWeight;
+	}
+
+	/**
+	 * Creates a memory cache keeping the payloads outside of the heap. The capacity of the allocator
+	 * is used as the budget, the least recently used payloads are evicted to make room.
+	 * Streams are served directly from the off-heap pages, byte arrays are copies.
+	 */
+	public MemoryCachedResourceLoader(IResourceLoader parentResourceLoader, OffHeapSlabAllocator offHeapAllocator) {
+		super(parentResourceLoader);
+		this.parentResourceLoader	= parentResourceLoader;
+		this.weightedCacheContext	= new WeightedMemoryCacheContext(offHeapAllocator.getCapacity(), offHeapAllocator);
+		this.cacheContext	= weightedCacheContext;
+		this.resourceHandles	= new ResourceHandleMap(true, null);
+		this.configuredMaxWeight	= offHeapAllocator.getCapacity();
 	}
 
 
 	@Override
 	public IResource getResource(String name) throws IOException {
-		IResource resource	= (IResource) resourceCache.get(name);
-		if (resource == null) {
-			resource	= parentResourceLoader.getResource(name);
-			int modifier	= resource.getModifier();
-			if ((resource != null) && ((modifier & IResource.MODIFIER_MEMORY_CACHED) == 0)) {
-				resource	= new MemoryCachedResource(resource);
-				resourceCache.put(name, resource);
-			}
+		return resourceHandles.getOrCreate(name, resourceFactory);
+	}
+
+	/**
+	 * @return true if this cache uses an explicit byte budget rather than soft references
+	 */
+	public boolean isBounded() {
+		return (weightedCacheContext != null);
+	}
+
+	/**
+	 * @return the total payload size currently held by a bounded cache (0 if not bounded)
+	 */
+	public long getWeight() {
+		if (weightedCacheContext == null) {
+			return 0;
+		}
+		return weightedCacheContext.getCachedResources().getWeight();
+	}
+
+	/**
+	 * @return the byte budget currently in effect for a bounded cache (0 if not bounded),
+	 * lower than the configured budget while under memory pressure
+	 */
+	public long getMaxWeight() {
+		if (weightedCacheContext == null) {
+			return 0;
+		}
+		return weightedCacheContext.getCachedResources().getMaxWeight();
+	}
+
+	/**
+	 * Changes the byte budget of a bounded cache, evicting payloads if required.
+	 */
+	public synchronized void setMaxWeight(long maxWeight) {
+		if (weightedCacheContext == null) {
+			throw new IllegalStateException("memory cache is not bounded");
+		}
+		if (maxWeight <= 0) {
+			throw new IllegalArgumentException("maxWeight must be positive, maxWeight=" + maxWeight);
+		}
+		configuredMaxWeight	= maxWeight;
+		applyMaxWeight();
+	}
+
+	/**
+	 * Shrinks or restores the budget of a bounded cache according to the memory pressure,
+	 * payloads are evicted if required. A cache using soft references isn't affected.
+	 */
+	@Override
+	public synchronized void onMemoryPressure(float budgetFactor) {
+		if (weightedCacheContext == null) {
+			return;
+		}
+		this.budgetFactor	= budgetFactor;
+		applyMaxWeight();
+	}
+
+	private void applyMaxWeight() {
+		long maxWeight	= Math.max(1, (long) (configuredMaxWeight * budgetFactor));
+		weightedCacheContext.getCachedResources().setMaxWeight(maxWeight);
+	}
+
+	/**
+	 * Returns the statistics of this cache. Entry count and weight are only known if the cache is bounded.
+	 */
+	@Override
+	public CacheStatistics getCacheStatistics() {
+		if (weightedCacheContext == null) {
+			return cacheContext.getStatistics().snapshot(-1, -1);
+		}
+		WeightedLruCache<String, CachedEntry> cachedResources	= weightedCacheContext.getCachedResources();
+		return cacheContext.getStatistics().snapshot(cachedResources.size(), cachedResources.getWeight());
+	}
+
+	/**
+	 * @return the compressor used for new payloads, or null if compression is disabled
+	 */
+	public ResourceCompressor getCompressor() {
+		return cacheContext.getCompressor();
+	}
+
+	/**
+	 * Enables compressed storage of payloads cached from now on. Payloads are compressed if the
+	 * compressor considers it worthwhile, only the compressed size is accounted against the budget.
+	 * Streams decompress while being read.
+	 *
+	 * @param compressor the compressor to use, or null to disable compression
+	 */
+	public void setCompressor(ResourceCompressor compressor) {
+		cacheContext.setCompressor(compressor);
+	}
+
+	/**
+	 * @return true if identical payloads cached under different names are shared
+	 */
+	public boolean isContentDeduplication() {
+		return (cacheContext.getContentStore() != null);
+	}
+
+	/**
+	 * Enables sharing of identical payloads (e.g. the same file served by mirror hosts) between
+	 * the names cached from now on. Payloads are identified by a hash of their content and released
+	 * once no name refers to them anymore. A shared payload is only accounted once against the
+	 * budget, by the first name referring to it (moved to one of the remaining names once that name
+	 * was evicted).
+	 * Only supported by a bounded cache, as soft references don't release the shared payloads.
+	 */
+	public void setContentDeduplication(boolean enabled) {
+		if (weightedCacheContext == null) {
+			throw new IllegalStateException("memory cache is not bounded");
+		}
+		if (enabled != isContentDeduplication()) {
+			cacheContext.setContentStore(enabled ? new ContentAddressedStore(weightedCacheContext) : null);
+		}
+	}
+
+	/**
+	 * @return the store sharing identical payloads, or null if deduplication is disabled
+	 */
+	public ContentAddressedStore getContentStore() {
+		return cacheContext.getContentStore();
+	}
+
+	/**
+	 * @return the policy deciding when cached payloads expire, or null if they don't expire
+	 */
+	public ExpiryPolicy getExpiryPolicy() {
+		return cacheContext.getExpiryPolicy();
+	}
+
+	/**
+	 * Sets the policy deciding when cached payloads expire. Expired payloads are dropped when
+	 * accessed and reloaded from the parent. With refresh-ahead, payloads accessed shortly before
+	 * they expire are reloaded on the task manager while the cached payload is still served.
+	 *
+	 * @param expiryPolicy the policy, or null if payloads shouldn't expire
+	 */
+	public void setExpiryPolicy(ExpiryPolicy expiryPolicy) {
+		cacheContext.setExpiryPolicy(expiryPolicy);
+	}
+
+	/**
+	 * Starts populating the cache with the given resources in the background (as a task of the
+	 * task manager, in the calling thread if there is none).
+	 *
+	 * @param names the names of the resources, may be produced lazily
+	 * @param parallelism the maximum number of requests in progress at the same time
+	 * @param maxRequestsPerSecond the maximum number of requests started per second (0 for no limit)
+	 * @param listener receives the progress (may be null)
+	 * @return the handle to follow or cancel the warm-up
+	 */
+	public CacheWarmUp warmUp(Iterator<String> names, int parallelism, double maxRequestsPerSecond,
+			CacheWarmUp.IWarmUpListener listener) {
+		CacheWarmUp warmUp	= new CacheWarmUp(this, names, parallelism, maxRequestsPerSecond, listener);
+		warmUp.start(getTaskManager());
+		return warmUp;
+	}
+
+	public CacheWarmUp warmUp(Collection<String> names, int parallelism, double maxRequestsPerSecond,
+			CacheWarmUp.IWarmUpListener listener) {
+		return warmUp(names.iterator(), parallelism, maxRequestsPerSecond, listener);
+	}
+
+	/**
+	 * @return the time in milliseconds a resource is remembered as missing
+	 */
+	public long getNegativeCacheTimeToLive() {
+		return cacheContext.getNegativeResultCache().getTimeToLive();
+	}
+
+	/**
+	 * Sets the time a resource is remembered as missing, requests for it return immediately
+	 * without asking the parent until the time expired.
+	 *
+	 * @param timeToLive the time in milliseconds (0 to disable the negative cache)
+	 */
+	public void setNegativeCacheTimeToLive(long timeToLive) {
+		cacheContext.getNegativeResultCache().setTimeToLive(timeToLive);
+	}
+
+	public int getNegativeCacheMaxSize() {
+		return cacheContext.getNegativeResultCache().getMaxSize();
+	}
+
+	/**
+	 * @param maxSize the maximum number of resource names remembered as missing
+	 */
+	public void setNegativeCacheMaxSize(int maxSize) {
+		cacheContext.getNegativeResultCache().setMaxSize(maxSize);
+	}
+
+	/**
+	 * Forgets that the resource with the given name was found to be missing.
+	 */
+	public void invalidateNegativeResult(String name) {
+		cacheContext.getNegativeResultCache().invalidate(name);
+	}
+
+	public void clearNegativeResults() {
+		cacheContext.getNegativeResultCache().clear();
+	}
+
+	/**
+	 * @return the listener receiving the payloads evicted to stay within the budget, or null
+	 */
+	public IEvictionListener getEvictionListener() {
+		return cacheContext.getEvictionListener();
+	}
+
+	/**
+	 * Passes the payloads evicted to stay within the budget to the listener (in the thread
+	 * causing the eviction) instead of just dropping them. Only supported by a bounded cache.
+	 *
+	 * @param evictionListener the listener, or null
+	 */
+	public void setEvictionListener(IEvictionListener evictionListener) {
+		if (weightedCacheContext == null) {
+			throw new IllegalStateException("memory cache is not bounded");
+		}
+		cacheContext.setEvictionListener(evictionListener);
+	}
+
+	/**
+	 * @return the allocator holding the payloads off the heap including its counters (or null)
+	 */
+	public OffHeapSlabAllocator getOffHeapAllocator() {
+		if (weightedCacheContext == null) {
+			return null;
+		}
+		return weightedCacheContext.getOffHeapAllocator();
+	}
+
+	/**
+	 * @return the number of payloads currently held by a bounded cache (0 if not bounded)
+	 */
+	public int getCachedCount() {
+		if (weightedCacheContext == null) {
+			return 0;
 		}
-		return resource;
+		return weightedCacheContext.getCachedResources().size();
 	}
 
 }
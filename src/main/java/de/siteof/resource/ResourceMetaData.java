@@ -1,15 +1,18 @@
 package de.siteof.resource;
 
-public class ResourceMetaData implements IResourceMetaData {
+public class ResourceMetaData implements IVersionedResourceMetaData {
 
 	private String name;
 	private long length;
 	private String contentType;
+	private long lastModified;
+	private String eTag;
 
 	@Override
 	public String toString() {
 		return "ResourceMetaData [name=" + name + ", length=" + length
-				+ ", contentType=" + contentType + "]";
+				+ ", contentType=" + contentType + ", lastModified=" + lastModified
+				+ ", eTag=" + eTag + "]";
 	}
 
 	@Override
@@ -39,4 +42,22 @@ public class ResourceMetaData implements IResourceMetaData {
 		this.contentType = contentType;
 	}
 
+	@Override
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public void setLastModified(long lastModified) {
+		this.lastModified = lastModified;
+	}
+
+	@Override
+	public String getETag() {
+		return eTag;
+	}
+
+	public void setETag(String eTag) {
+		this.eTag = eTag;
+	}
+
 }
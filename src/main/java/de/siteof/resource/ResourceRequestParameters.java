@@ -3,6 +3,20 @@ package de.siteof.resource;
 public class ResourceRequestParameters {
 
 	private boolean noChache;
+	private long ifModifiedSince;
+	private String ifNoneMatch;
+
+	public ResourceRequestParameters() {
+	}
+
+	/**
+	 * Creates a copy of the given parameters, e.g. to modify them before passing them on.
+	 */
+	public ResourceRequestParameters(ResourceRequestParameters parameters) {
+		this.noChache = parameters.noChache;
+		this.ifModifiedSince = parameters.ifModifiedSince;
+		this.ifNoneMatch = parameters.ifNoneMatch;
+	}
 
 	public boolean isNoChache() {
 		return noChache;
@@ -12,4 +26,57 @@ public class ResourceRequestParameters {
 		this.noChache = noChache;
 	}
 
+	/**
+	 * @return the last-modified time of the copy the requester holds, 0 if the request is unconditional
+	 */
+	public long getIfModifiedSince() {
+		return ifModifiedSince;
+	}
+
+	/**
+	 * Makes the request conditional: if the resource wasn't modified since the given time, a
+	 * {@link de.siteof.resource.event.NotModifiedResourceLoaderEvent} is sent instead of the content.
+	 *
+	 * @param ifModifiedSince the last-modified time of the copy the requester holds (0 for none)
+	 */
+	public void setIfModifiedSince(long ifModifiedSince) {
+		this.ifModifiedSince = ifModifiedSince;
+	}
+
+	/**
+	 * @return the entity tag of the copy the requester holds, null if the request is unconditional
+	 */
+	public String getIfNoneMatch() {
+		return ifNoneMatch;
+	}
+
+	/**
+	 * Makes the request conditional: if the entity tag of the resource still matches, a
+	 * {@link de.siteof.resource.event.NotModifiedResourceLoaderEvent} is sent instead of the content.
+	 * Takes precedence over the last-modified time.
+	 *
+	 * @param ifNoneMatch the entity tag of the copy the requester holds (null for none)
+	 */
+	public void setIfNoneMatch(String ifNoneMatch) {
+		this.ifNoneMatch = ifNoneMatch;
+	}
+
+	public boolean isConditional() {
+		return ((ifModifiedSince != 0) || (ifNoneMatch != null));
+	}
+
+	/**
+	 * Evaluates the conditions against the current version of the resource.
+	 *
+	 * @param lastModified the last-modified time of the resource (0 if not known)
+	 * @param eTag the entity tag of the resource (null if not known)
+	 * @return true if the requester's copy is still current
+	 */
+	public boolean isNotModified(long lastModified, String eTag) {
+		if (ifNoneMatch != null) {
+			return ((eTag != null) && (ifNoneMatch.equals(eTag)));
+		}
+		return ((ifModifiedSince != 0) && (lastModified != 0) && (lastModified <= ifModifiedSince));
+	}
+
 }
@@ -0,0 +1,113 @@
+package de.siteof.resource;
+
+/**
+ * Immutable snapshot of the statistics of a two-tier cache. Every request is either a memory hit,
+ * a disk hit or a miss loaded from the parent, the ratios refer to all requests.
+ */
+public class TieredCacheStatistics {
+
+	private final CacheStatistics memoryStatistics;
+	private final CacheStatistics diskStatistics;
+	private final long promotionCount;
+	private final long demotionCount;
+
+	public TieredCacheStatistics(CacheStatistics memoryStatistics, CacheStatistics diskStatistics,
+			long promotionCount, long demotionCount) {
+		this.memoryStatistics = memoryStatistics;
+		this.diskStatistics = diskStatistics;
+		this.promotionCount = promotionCount;
+		this.demotionCount = demotionCount;
+	}
+
+	@Override
+	public String toString() {
+		return "TieredCacheStatistics [memoryHitRatio=" + getMemoryHitRatio() +
+				", diskHitRatio=" + getDiskHitRatio() + ", promotionCount=" + promotionCount +
+				", demotionCount=" + demotionCount + ", memoryStatistics=" + memoryStatistics +
+				", diskStatistics=" + diskStatistics + "]";
+	}
+
+	/**
+	 * @return the statistics of the memory tier, its misses were passed on to the disk tier
+	 */
+	public CacheStatistics getMemoryStatistics() {
+		return memoryStatistics;
+	}
+
+	/**
+	 * @return the statistics of the disk tier, including the requests passed on by the memory tier
+	 */
+	public CacheStatistics getDiskStatistics() {
+		return diskStatistics;
+	}
+
+	public long getRequestCount() {
+		return memoryStatistics.getHitCount() + diskStatistics.getRequestCount();
+	}
+
+	/**
+	 * @return the ratio of requests served from memory (1.0 if there were no requests)
+	 */
+	public double getMemoryHitRatio() {
+		long requestCount = getRequestCount();
+		return (requestCount == 0 ? 1.0 : (double) memoryStatistics.getHitCount() / requestCount);
+	}
+
+	/**
+	 * @return the ratio of requests served from disk (0.0 if there were no requests)
+	 */
+	public double getDiskHitRatio() {
+		long requestCount = getRequestCount();
+		return (requestCount == 0 ? 0.0 : (double) diskStatistics.getHitCount() / requestCount);
+	}
+
+	/**
+	 * @return the ratio of requests served from either tier (1.0 if there were no requests)
+	 */
+	public double getHitRatio() {
+		long requestCount = getRequestCount();
+		return (requestCount == 0 ? 1.0 :
+				(double) (memoryStatistics.getHitCount() + diskStatistics.getHitCount()) / requestCount);
+	}
+
+	/**
+	 * @return the number of times a resource was copied from disk to memory
+	 */
+	public long getPromotionCount() {
+		return promotionCount;
+	}
+
+	/**
+	 * @return the number of payloads evicted from memory and passed back to disk
+	 */
+	public long getDemotionCount() {
+		return demotionCount;
+	}
+
+	/**
+	 * Combines the tiers as seen from outside: hits of either tier are hits, loads are those of the
+	 * disk tier, evictions are those of the disk tier plus memory evictions other than demotions.
+	 * Entry count and weight are those of the disk tier, which holds all entries.
+	 */
+	public CacheStatistics getCombinedStatistics() {
+		CacheEvictionCause[] causes = CacheEvictionCause.values();
+		long[] evictionCounts = new long[causes.length];
+		for (int i = 0; i < causes.length; i++) {
+			evictionCounts[i] = diskStatistics.getEvictionCount(causes[i]);
+			if (causes[i] != CacheEvictionCause.SIZE) {
+				evictionCounts[i] += memoryStatistics.getEvictionCount(causes[i]);
+			}
+		}
+		return new CacheStatistics(
+				memoryStatistics.getHitCount() + diskStatistics.getHitCount(),
+				diskStatistics.getMissCount(),
+				diskStatistics.getLoadSuccessCount(),
+				diskStatistics.getLoadFailureCount(),
+				diskStatistics.getTotalLoadTime(),
+				memoryStatistics.getHitBytes() + diskStatistics.getHitBytes(),
+				evictionCounts,
+				diskStatistics.getEntryCount(),
+				diskStatistics.getWeight());
+	}
+
+}
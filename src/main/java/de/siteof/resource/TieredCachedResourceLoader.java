@@ -0,0 +1,278 @@
+package de.siteof.resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import de.siteof.resource.event.IResourceListener;
+import de.siteof.resource.event.ResourceLoaderEvent;
+import de.siteof.resource.util.ResourceHandleMap;
+import de.siteof.task.AbstractTask;
+import de.siteof.task.ITaskManager;
+
+/**
+ * Caches resources in a bounded memory tier over a file cache, managed as one hierarchy.
+ * Every resource is cached on disk, resources accessed repeatedly are promoted to memory.
+ * Payloads evicted from memory are demoted to disk instead of being dropped: they are written
+ * again if the disk tier evicted them in the meantime, or marked as recently used on disk
+ * (memory hits don't reach the disk tier).
+ */
+public class TieredCachedResourceLoader extends AbstractResourceLoader implements ICacheStatisticsProvider {
+
+	private class TieredResource extends ResourceProxy {
+
+		private final String cacheName;
+
+		public TieredResource(IResource diskResource, String cacheName) {
+			super(diskResource, TieredCachedResourceLoader.this.getTaskManager());
+			this.cacheName	= cacheName;
+		}
+
+		/**
+		 * Counts the access and selects the tier to serve it from, promoting hot resources to memory.
+		 */
+		private IResource getTier() throws IOException {
+			if (!recordAccess(cacheName)) {
+				return getResource();
+			}
+			IResource memoryResource	= memoryLoader.getResource(cacheName);
+			if ((memoryResource.getModifier() & MODIFIER_LOADED) == 0) {
+				promotionCount.incrementAndGet();
+			}
+			return memoryResource;
+		}
+
+		private <T> IResourceListener<ResourceLoaderEvent<T>> getProxyListener(
+				final IResourceListener<ResourceLoaderEvent<T>> listener) {
+			return new IResourceListener<ResourceLoaderEvent<T>>() {
+				@Override
+				public void onResourceEvent(ResourceLoaderEvent<T> event) {
+					listener.onResourceEvent(event.cloneFor(TieredResource.this));
+				}};
+		}
+
+		@Override
+		public InputStream getResourceAsStream() throws IOException {
+			return getTier().getResourceAsStream();
+		}
+
+		@Override
+		public byte[] getResourceBytes() throws IOException {
+			return getTier().getResourceBytes();
+		}
+
+		@Override
+		public void getResourceAsStream(
+				IResourceListener<ResourceLoaderEvent<InputStream>> listener,
+				ResourceRequestParameters parameters)
+				throws IOException {
+			IResource tier	= (parameters.isNoChache() ? getResource() : getTier());
+			tier.getResourceAsStream(getProxyListener(listener), parameters);
+		}
+
+		@Override
+		public void getResourceBytes(
+				IResourceListener<ResourceLoaderEvent<byte[]>> listener,
+				ResourceRequestParameters parameters)
+				throws IOException {
+			IResource tier	= (parameters.isNoChache() ? getResource() : getTier());
+			tier.getResourceBytes(getProxyListener(listener), parameters);
+		}
+
+		@Override
+		public void clearCache() {
+			forgetAccesses(cacheName);
+			try {
+				memoryLoader.getResource(cacheName).clearCache();
+			} catch (IOException e) {
+				log.warn("memory tier could not be cleared, name=" + cacheName + " - " + e, e);
+			}
+			getResource().clearCache();
+		}
+
+	}
+
+
+	public static final int DEFAULT_PROMOTION_THRESHOLD	= 2;
+	public static final int DEFAULT_MAX_TRACKED_COUNT	= 10000;
+
+	private static final Log log	= LogFactory.getLog(TieredCachedResourceLoader.class);
+
+
+	private final FileCachedResourceLoader fileLoader;
+	private final MemoryCachedResourceLoader memoryLoader;
+	private final ResourceHandleMap	resourceHandles	= new ResourceHandleMap(false, null);
+	private final ResourceHandleMap.IResourceFactory	resourceFactory	= new ResourceHandleMap.IResourceFactory() {
+		@Override
+		public IResource createResource(String name) throws IOException {
+			IResource resource	= fileLoader.getResource(name);
+			if (resource != null) {
+				resource	= new TieredResource(resource, name);
+			}
+			return resource;
+		}
+	};
+	/**
+	 * The number of accesses by name, the least recently accessed first.
+	 */
+	private final Map<String, Integer> accessCounts	= new LinkedHashMap<String, Integer>(16, 0.75f, true);
+	private final AtomicLong promotionCount	= new AtomicLong();
+	private final AtomicLong demotionCount	= new AtomicLong();
+	private volatile int promotionThreshold	= DEFAULT_PROMOTION_THRESHOLD;
+	private volatile int maxTrackedCount	= DEFAULT_MAX_TRACKED_COUNT;
+
+	/**
+	 * @param maxMemoryWeight the maximum total payload size held in memory in bytes
+	 * @param cacheDirectory the directory of the file cache
+	 * @param maxTotalSize the maximum total size of the file cache (0 for no limit)
+	 * @param maxFileCount the maximum number of files in the file cache (0 for no limit)
+	 * @param taskManager used for asynchronous requests and to write demoted payloads
+	 */
+	public TieredCachedResourceLoader(IResourceLoader parentResourceLoader, long maxMemoryWeight,
+			String cacheDirectory, long maxTotalSize, int maxFileCount, ITaskManager taskManager) {
+		super(parentResourceLoader, taskManager);
+		this.fileLoader	= new FileCachedResourceLoader(parentResourceLoader, cacheDirectory, maxTotalSize,
+				maxFileCount, taskManager);
+		this.memoryLoader	= new MemoryCachedResourceLoader(fileLoader, maxMemoryWeight);
+		memoryLoader.setEvictionListener(new MemoryCachedResourceLoader.IEvictionListener() {
+			@Override
+			public void onEvicted(String name, byte[] data) {
+				demote(name, data);
+			}
+		});
+	}
+
+	@Override
+	public IResource getResource(String name) throws IOException {
+		return resourceHandles.getOrCreate(name, resourceFactory);
+	}
+
+	/**
+	 * @return true if the resource was accessed often enough to be served from memory
+	 */
+	private boolean recordAccess(String name) {
+		int threshold	= promotionThreshold;
+		synchronized (accessCounts) {
+			Integer count	= accessCounts.get(name);
+			int newCount	= Math.min((count != null ? count.intValue() : 0) + 1, threshold);
+			accessCounts.put(name, Integer.valueOf(newCount));
+			if (accessCounts.size() > maxTrackedCount) {
+				Iterator<String> it	= accessCounts.keySet().iterator();
+				it.next();
+				it.remove();
+			}
+			return (newCount >= threshold);
+		}
+	}
+
+	private void forgetAccesses(String name) {
+		synchronized (accessCounts) {
+			accessCounts.remove(name);
+		}
+	}
+
+	/**
+	 * Passes a payload evicted from memory back to the disk tier (on the task manager if there is one).
+	 * The resource has to be accessed repeatedly again to be promoted.
+	 */
+	private void demote(final String name, final byte[] data) {
+		forgetAccesses(name);
+		demotionCount.incrementAndGet();
+		AbstractTask task	= new AbstractTask() {
+			@Override
+			public void execute() throws Exception {
+				try {
+					fileLoader.cacheResourceBytes(name, data);
+				} catch (IOException e) {
+					log.warn("evicted payload could not be demoted to disk, name=" + name + " - " + e, e);
+				}
+			}};
+		ITaskManager taskManager	= getTaskManager();
+		if (taskManager != null) {
+			taskManager.addTask(task);
+		} else {
+			try {
+				task.execute();
+			} catch (Exception e) {
+				log.warn("evicted payload could not be demoted to disk, name=" + name + " - " + e, e);
+			}
+		}
+	}
+
+	/**
+	 * @return the combined statistics of both tiers, see {@link TieredCacheStatistics#getCombinedStatistics()}
+	 */
+	@Override
+	public CacheStatistics getCacheStatistics() {
+		return getTieredCacheStatistics().getCombinedStatistics();
+	}
+
+	/**
+	 * @return the statistics of both tiers, including the share of requests served by each
+	 */
+	public TieredCacheStatistics getTieredCacheStatistics() {
+		return new TieredCacheStatistics(memoryLoader.getCacheStatistics(), fileLoader.getCacheStatistics(),
+				promotionCount.get(), demotionCount.get());
+	}
+
+	/**
+	 * @return the number of accesses after which a resource is served from memory
+	 */
+	public int getPromotionThreshold() {
+		return promotionThreshold;
+	}
+
+	/**
+	 * @param promotionThreshold the number of accesses after which a resource is served from memory
+	 * (1 to promote every resource on its first access)
+	 */
+	public void setPromotionThreshold(int promotionThreshold) {
+		if (promotionThreshold < 1) {
+			throw new IllegalArgumentException("invalid promotion threshold: " + promotionThreshold);
+		}
+		this.promotionThreshold	= promotionThreshold;
+	}
+
+	public int getMaxTrackedCount() {
+		return maxTrackedCount;
+	}
+
+	/**
+	 * @param maxTrackedCount the maximum number of resources whose accesses are counted,
+	 * the least recently accessed ones are forgotten first
+	 */
+	public void setMaxTrackedCount(int maxTrackedCount) {
+		if (maxTrackedCount < 1) {
+			throw new IllegalArgumentException("invalid maxTrackedCount: " + maxTrackedCount);
+		}
+		this.maxTrackedCount	= maxTrackedCount;
+	}
+
+	/**
+	 * @return the memory tier, e.g. to configure compression or to register for memory pressure
+	 */
+	public MemoryCachedResourceLoader getMemoryCache() {
+		return memoryLoader;
+	}
+
+	/**
+	 * @return the disk tier, e.g. to configure expiry or mapped reads
+	 */
+	public FileCachedResourceLoader getFileCache() {
+		return fileLoader;
+	}
+
+	/**
+	 * Closes the disk tier, see {@link FileCachedResourceLoader#close()}.
+	 */
+	public void close() {
+		fileLoader.close();
+	}
+
+}
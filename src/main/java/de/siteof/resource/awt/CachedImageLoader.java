@@ -9,18 +9,51 @@ import org.apache.commons.logging.LogFactory;
 
 import de.siteof.cache.IObjectCache;
 import de.siteof.cache.ObjectCacheFactory;
+import de.siteof.resource.CacheEvictionCause;
+import de.siteof.resource.CacheStatistics;
+import de.siteof.resource.ICacheStatisticsProvider;
 import de.siteof.resource.awt.event.IImageResultListener;
+import de.siteof.resource.util.CacheStatisticsCounter;
+import de.siteof.resource.util.MemoryPressureMonitor;
+import de.siteof.resource.util.WeightedLruCache;
 
-public class CachedImageLoader implements IImageLoader {
+public class CachedImageLoader implements IImageLoader, ICacheStatisticsProvider,
+		MemoryPressureMonitor.IMemoryPressureListener {
 
 	private IImageLoader	parentImageLoader;
 	private IObjectCache<String, IImageResult>	imageCache	= ObjectCacheFactory.getNewSoftObjectCache();
+	private final WeightedLruCache<String, IImageResult>	boundedImageCache;
+	private final CacheStatisticsCounter	statistics	= new CacheStatisticsCounter();
+	private int	configuredMaxImageCount;
+	private float	budgetFactor	= 1f;
 
 	private static final Log log	= LogFactory.getLog(CachedImageLoader.class);
 
 
+	/**
+	 * Creates an image cache which keeps the images as long as the garbage collector allows
+	 * (soft references).
+	 */
 	public CachedImageLoader(IImageLoader parentImageLoader) {
 		this.parentImageLoader	= parentImageLoader;
+		this.boundedImageCache	= null;
+	}
+
+	/**
+	 * Creates an image cache keeping at most the given number of images, evicting the least
+	 * recently used ones. Images are additionally held softly so that evicted images still in use
+	 * can be returned without loading them again.
+	 */
+	public CachedImageLoader(IImageLoader parentImageLoader, int maxImageCount) {
+		this.parentImageLoader	= parentImageLoader;
+		this.configuredMaxImageCount	= maxImageCount;
+		this.boundedImageCache	= new WeightedLruCache<String, IImageResult>(maxImageCount,
+				new WeightedLruCache.IEvictionListener<String, IImageResult>() {
+					@Override
+					public void onEviction(String key, IImageResult value) {
+						statistics.recordEviction(CacheEvictionCause.SIZE);
+					}
+				});
 	}
 
 	public Image getImage(String name) throws IOException {
@@ -40,25 +73,111 @@ public class CachedImageLoader implements IImageLoader {
 	}
 
 	public IImageResult getImage(String name, IImageResultListener imageResultListener, ImageObserver imageObserver) throws IOException {
-		IImageResult imageResult	= (IImageResult) imageCache.get(name);
+		IImageResult imageResult	= getCachedImage(name);
 		if (imageResult == null) {
 			log.debug("loading image (not cached): " + name);
-			imageResult	= parentImageLoader.getImage(name, imageResultListener, imageObserver);
+			statistics.recordMiss();
+			long startTime	= System.nanoTime();
+			try {
+				imageResult	= parentImageLoader.getImage(name, imageResultListener, imageObserver);
+			} catch (IOException e) {
+				statistics.recordLoadFailure(System.nanoTime() - startTime);
+				throw e;
+			}
+			statistics.recordLoadSuccess(System.nanoTime() - startTime);
 			if (imageResult != null) {
 				log.debug("storing image result in the cache: " + name);
 				imageCache.put(name, imageResult);
+				if (boundedImageCache != null) {
+					boundedImageCache.put(name, imageResult, 1);
+				}
 			}
 		} else {
 			log.debug("image returned from cache: " + name);
+			statistics.recordHit(0);
 		}
 		return imageResult;
 	}
 
 
+	private IImageResult getCachedImage(String name) {
+		if (boundedImageCache != null) {
+			IImageResult imageResult	= boundedImageCache.get(name);
+			if (imageResult != null) {
+				return imageResult;
+			}
+			imageResult	= imageCache.get(name);
+			if (imageResult != null) {
+				// evicted, but still referenced elsewhere
+				boundedImageCache.put(name, imageResult, 1);
+			}
+			return imageResult;
+		}
+		return imageCache.get(name);
+	}
+
+
 	public void waitForImage(IImageResult imageResult) {
 		parentImageLoader.waitForImage(imageResult);
 	}
 
+	/**
+	 * Returns the statistics of this cache. The entry count is only known if the cache is bounded.
+	 */
+	@Override
+	public CacheStatistics getCacheStatistics() {
+		if (boundedImageCache == null) {
+			return statistics.snapshot(-1, -1);
+		}
+		return statistics.snapshot(boundedImageCache.size(), -1);
+	}
+
+	/**
+	 * @return true if this cache keeps a limited number of images rather than using soft references
+	 */
+	public boolean isBounded() {
+		return (boundedImageCache != null);
+	}
+
+	/**
+	 * @return the maximum number of images currently in effect for a bounded cache (0 if not bounded),
+	 * lower than the configured number while under memory pressure
+	 */
+	public int getMaxImageCount() {
+		if (boundedImageCache == null) {
+			return 0;
+		}
+		return (int) boundedImageCache.getMaxWeight();
+	}
+
+	public synchronized void setMaxImageCount(int maxImageCount) {
+		if (boundedImageCache == null) {
+			throw new IllegalStateException("image cache is not bounded");
+		}
+		if (maxImageCount <= 0) {
+			throw new IllegalArgumentException("maxImageCount must be positive, maxImageCount=" + maxImageCount);
+		}
+		configuredMaxImageCount	= maxImageCount;
+		applyMaxImageCount();
+	}
+
+	/**
+	 * Shrinks or restores the number of images of a bounded cache according to the memory pressure.
+	 * A cache using soft references isn't affected.
+	 */
+	@Override
+	public synchronized void onMemoryPressure(float budgetFactor) {
+		if (boundedImageCache == null) {
+			return;
+		}
+		this.budgetFactor	= budgetFactor;
+		applyMaxImageCount();
+	}
+
+	private void applyMaxImageCount() {
+		boundedImageCache.setMaxWeight(Math.max(1, (long) (configuredMaxImageCount * budgetFactor)));
+	}
+
 
 
 }
@@ -0,0 +1,28 @@
+package de.siteof.resource.event;
+
+import de.siteof.resource.IResource;
+
+/**
+ * Completes a conditional request (see {@link de.siteof.resource.ResourceRequestParameters#isConditional()})
+ * without a result, the copy the requester holds is still current. Only sent in response to conditional
+ * requests, resources passing on the events of another resource have to pass it on as such.
+ */
+public class NotModifiedResourceLoaderEvent<T> extends ResourceLoaderEvent<T> {
+
+	private static final long serialVersionUID = 1L;
+
+	public NotModifiedResourceLoaderEvent(IResource resource) {
+		super(resource, (T) null, true);
+	}
+
+	@Override
+	public String toString() {
+		return "NotModifiedResourceLoaderEvent [toString()=" + super.toString() + "]";
+	}
+
+	@Override
+	public <TR> NotModifiedResourceLoaderEvent<TR> cloneFor(IResource resource, TR result) {
+		return new NotModifiedResourceLoaderEvent<TR>(resource);
+	}
+
+}
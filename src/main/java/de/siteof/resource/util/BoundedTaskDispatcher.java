@@ -0,0 +1,118 @@
+package de.siteof.resource.util;
+
+import java.util.LinkedList;
+import java.util.Queue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import de.siteof.task.AbstractTask;
+import de.siteof.task.ITask;
+import de.siteof.task.ITaskManager;
+
+/**
+ * Runs tasks on a task manager with at most the given number of them in progress at the same time.
+ * Further tasks are queued and passed to the task manager once a running task finished, so that
+ * e.g. disk reads can't occupy all threads of a shared task manager.
+ */
+public class BoundedTaskDispatcher {
+
+	private static final Log log = LogFactory.getLog(BoundedTaskDispatcher.class);
+
+	private final ITaskManager taskManager;
+	private final Queue<ITask> pendingTasks = new LinkedList<ITask>();
+	private int maxRunningCount;
+	private int runningCount;
+
+	/**
+	 * @param taskManager the task manager to run the tasks on
+	 * @param maxRunningCount the maximum number of tasks in progress at the same time
+	 */
+	public BoundedTaskDispatcher(ITaskManager taskManager, int maxRunningCount) {
+		if (maxRunningCount <= 0) {
+			throw new IllegalArgumentException("invalid maxRunningCount: " + maxRunningCount);
+		}
+		this.taskManager = taskManager;
+		this.maxRunningCount = maxRunningCount;
+	}
+
+	/**
+	 * Runs the task on the task manager, or queues it if the maximum number of tasks is in progress.
+	 */
+	public void dispatch(ITask task) {
+		synchronized (this) {
+			if (runningCount >= maxRunningCount) {
+				pendingTasks.add(task);
+				return;
+			}
+			runningCount++;
+		}
+		start(task);
+	}
+
+	private void start(final ITask task) {
+		try {
+			taskManager.addTask(new AbstractTask() {
+				@Override
+				public void execute() throws Exception {
+					try {
+						task.execute();
+					} finally {
+						onTaskFinished();
+					}
+				}});
+		} catch (RuntimeException e) {
+			onTaskFinished();
+			throw e;
+		}
+	}
+
+	private void onTaskFinished() {
+		ITask next;
+		synchronized (this) {
+			next = pendingTasks.poll();
+			if (next == null) {
+				runningCount--;
+				return;
+			}
+		}
+		try {
+			start(next);
+		} catch (RuntimeException e) {
+			log.error("queued task could not be started - " + e, e);
+		}
+	}
+
+	/**
+	 * @return the maximum number of tasks in progress at the same time
+	 */
+	public synchronized int getMaxRunningCount() {
+		return maxRunningCount;
+	}
+
+	/**
+	 * @param maxRunningCount the maximum number of tasks in progress at the same time (applies to
+	 * tasks started from now on)
+	 */
+	public synchronized void setMaxRunningCount(int maxRunningCount) {
+		if (maxRunningCount <= 0) {
+			throw new IllegalArgumentException("invalid maxRunningCount: " + maxRunningCount);
+		}
+		this.maxRunningCount = maxRunningCount;
+	}
+
+	/**
+	 * @return the number of tasks in progress
+	 */
+	public synchronized int getRunningCount() {
+		return runningCount;
+	}
+
+	/**
+	 * @return the number of tasks waiting to be started
+	 */
+	public synchronized int getPendingCount() {
+		return pendingTasks.size();
+	}
+
+}
@@ -0,0 +1,59 @@
+package de.siteof.resource.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import de.siteof.resource.IResource;
+import de.siteof.resource.IResourceBytesCallback;
+import de.siteof.resource.IResourceMetaData;
+
+/**
+ * Collects the chunks in memory and passes the complete data to the callback on commit.
+ * The data will be null if no chunk was written (e.g. resource not found).
+ */
+public class ByteArrayResourceBytesSink implements IResourceBytesSink {
+
+	private final IResource resource;
+	private final IResourceBytesCallback callback;
+	private ByteArrayOutputStream out;
+
+	public ByteArrayResourceBytesSink(IResource resource, IResourceBytesCallback callback) {
+		this.resource = resource;
+		this.callback = callback;
+	}
+
+	@Override
+	public void setMetaData(IResourceMetaData metaData) {
+		// not passed on
+	}
+
+	@Override
+	public void write(byte[] chunk) throws IOException {
+		if (out == null) {
+			out = new ByteArrayOutputStream(Math.max(chunk.length, 32));
+		}
+		out.write(chunk);
+	}
+
+	@Override
+	public void commit() throws IOException {
+		byte[] data = (out != null ? out.toByteArray() : null);
+		out = null;
+		callback.onCompleteResourceBytes(resource, data);
+	}
+
+	@Override
+	public void abort(Throwable cause) {
+		out = null;
+		callback.onFailedResourceBytes(resource, cause);
+	}
+
+	/**
+	 * There is no data to pass to the callback, it is notified of the failure instead.
+	 */
+	@Override
+	public void discard() {
+		abort(new IOException("request completed without content, name=" + resource.getName()));
+	}
+
+}
@@ -0,0 +1,116 @@
+package de.siteof.resource.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the remaining bytes of one or more buffers without copying them onto the heap first.
+ * The buffers are duplicated, the positions of the passed buffers aren't changed.
+ */
+public class ByteBufferInputStream extends InputStream {
+
+	private final ByteBuffer[] buffers;
+	private int bufferIndex;
+	private int markBufferIndex;
+	private boolean closed;
+
+	public ByteBufferInputStream(ByteBuffer... buffers) {
+		this.buffers = new ByteBuffer[buffers.length];
+		for (int i = 0; i < buffers.length; i++) {
+			this.buffers[i] = buffers[i].duplicate();
+		}
+	}
+
+	private ByteBuffer getCurrentBuffer() throws IOException {
+		if (closed) {
+			throw new IOException("stream closed");
+		}
+		while (bufferIndex < buffers.length) {
+			ByteBuffer buffer = buffers[bufferIndex];
+			if (buffer.hasRemaining()) {
+				return buffer;
+			}
+			bufferIndex++;
+		}
+		return null;
+	}
+
+	@Override
+	public int read() throws IOException {
+		ByteBuffer buffer = getCurrentBuffer();
+		if (buffer == null) {
+			return -1;
+		}
+		return buffer.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		int count = 0;
+		while (count < len) {
+			ByteBuffer buffer = getCurrentBuffer();
+			if (buffer == null) {
+				break;
+			}
+			int n = Math.min(len - count, buffer.remaining());
+			buffer.get(b, off + count, n);
+			count += n;
+		}
+		return (count > 0 ? count : -1);
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long count = 0;
+		while (count < n) {
+			ByteBuffer buffer = getCurrentBuffer();
+			if (buffer == null) {
+				break;
+			}
+			int skip = (int) Math.min(n - count, buffer.remaining());
+			buffer.position(buffer.position() + skip);
+			count += skip;
+		}
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException {
+		long result = 0;
+		for (int i = bufferIndex; i < buffers.length; i++) {
+			result += buffers[i].remaining();
+		}
+		return (int) Math.min(result, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		markBufferIndex = bufferIndex;
+		for (int i = bufferIndex; i < buffers.length; i++) {
+			buffers[i].mark();
+		}
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		for (int i = markBufferIndex; i <= Math.min(bufferIndex, buffers.length - 1); i++) {
+			buffers[i].reset();
+		}
+		bufferIndex = markBufferIndex;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+	}
+
+}
@@ -0,0 +1,294 @@
+package de.siteof.resource.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import de.siteof.resource.IResourceMetaData;
+import de.siteof.resource.IVersionedResourceMetaData;
+import de.siteof.resource.ResourceMetaData;
+
+/**
+ * Header written in front of the payload of a cache file, describing how the payload is stored.
+ * Files written before the header was introduced don't start with the magic number and are read
+ * as raw payload. From version 2 on the header also holds the name of the resource, as the file
+ * name is only a hash of it. From version 3 on it holds the length and CRC32 of the stored payload,
+ * so that truncated or corrupt files can be detected. From version 4 on it holds the metadata
+ * provided by the origin (original name, content type, last-modified time and entity tag).
+ */
+public class CacheFileHeader {
+
+	public static final int MAGIC	= 0x53524346;	// "SRCF"
+	public static final int VERSION	= 4;
+	/**
+	 * The length of the fixed part of the header, common to all versions.
+	 */
+	public static final int LENGTH	= 10;
+	/**
+	 * The offset of the payload length, followed by the stored length and checksum (from version 3 on),
+	 * to fill them in once a streamed payload was written.
+	 */
+	public static final int LENGTH_OFFSET	= 6;
+
+	public static final int FLAG_COMPRESSED	= 0x01;
+
+	private final int flags;
+	private final int length;
+	private final String name;
+	private final int storedLength;
+	private final int checksum;
+	private final String originalName;
+	private final String contentType;
+	private final long lastModified;
+	private final String eTag;
+	private final int size;
+
+	/**
+	 * @param flags the storage flags
+	 * @param length the length of the raw payload
+	 * @param name the name of the resource (may be null)
+	 */
+	public CacheFileHeader(int flags, int length, String name) {
+		this(flags, length, name, -1, 0, null);
+	}
+
+	/**
+	 * @param flags the storage flags
+	 * @param length the length of the raw payload
+	 * @param name the name of the resource (may be null)
+	 * @param storedLength the length of the payload as stored (e.g. compressed), -1 if not known
+	 * @param checksum the CRC32 of the stored payload
+	 */
+	public CacheFileHeader(int flags, int length, String name, int storedLength, int checksum) {
+		this(flags, length, name, storedLength, checksum, null);
+	}
+
+	/**
+	 * @param metaData the metadata provided by the origin (may be null), the version is only kept
+	 * if it is an {@link IVersionedResourceMetaData}
+	 */
+	public CacheFileHeader(int flags, int length, String name, int storedLength, int checksum,
+			IResourceMetaData metaData) {
+		this(flags, length, name, storedLength, checksum,
+				(metaData != null ? metaData.getName() : null),
+				(metaData != null ? metaData.getContentType() : null),
+				(metaData instanceof IVersionedResourceMetaData ?
+						((IVersionedResourceMetaData) metaData).getLastModified() : 0),
+				(metaData instanceof IVersionedResourceMetaData ?
+						((IVersionedResourceMetaData) metaData).getETag() : null), 0);
+	}
+
+	private CacheFileHeader(int flags, int length, String name, int storedLength, int checksum,
+			String originalName, String contentType, long lastModified, String eTag, int size) {
+		this.flags = flags;
+		this.length = length;
+		this.name = name;
+		this.storedLength = storedLength;
+		this.checksum = checksum;
+		this.originalName = originalName;
+		this.contentType = contentType;
+		this.lastModified = lastModified;
+		this.eTag = eTag;
+		this.size = size;
+	}
+
+	/**
+	 * Reads a string written by {@link DataOutputStream#writeUTF(String)}.
+	 *
+	 * @param sizeHolder incremented by the number of bytes read
+	 * @return the string, or null if it is empty
+	 */
+	private static String readString(DataInputStream dataIn, int[] sizeHolder) throws IOException {
+		int stringLength = dataIn.readUnsignedShort();
+		byte[] stringBytes = new byte[stringLength + 2];
+		stringBytes[0] = (byte) (stringLength >> 8);
+		stringBytes[1] = (byte) stringLength;
+		dataIn.readFully(stringBytes, 2, stringLength);
+		sizeHolder[0] += stringBytes.length;
+		String result = new DataInputStream(new ByteArrayInputStream(stringBytes)).readUTF();
+		return (result.length() > 0 ? result : null);
+	}
+
+	/**
+	 * Reads the header if the stream starts with one. The stream has to support mark/reset,
+	 * it is reset to the start if there is no header.
+	 *
+	 * @return the header, or null if the stream doesn't start with a header
+	 */
+	public static CacheFileHeader read(InputStream in) throws IOException {
+		byte[] buffer = new byte[LENGTH];
+		in.mark(LENGTH);
+		int offset = 0;
+		while (offset < LENGTH) {
+			int count = in.read(buffer, offset, LENGTH - offset);
+			if (count < 0) {
+				break;
+			}
+			offset += count;
+		}
+		DataInputStream dataIn = new DataInputStream(new ByteArrayInputStream(buffer));
+		if ((offset < LENGTH) || (dataIn.readInt() != MAGIC)) {
+			in.reset();
+			return null;
+		}
+		int version = dataIn.readUnsignedByte();
+		if ((version < 1) || (version > VERSION)) {
+			throw new IOException("unsupported cache file version: " + version);
+		}
+		int flags = dataIn.readUnsignedByte();
+		int length = dataIn.readInt();
+		int[] sizeHolder = new int[] { LENGTH };
+		dataIn = new DataInputStream(in);
+		int storedLength = -1;
+		int checksum = 0;
+		if (version >= 3) {
+			storedLength = dataIn.readInt();
+			checksum = dataIn.readInt();
+			sizeHolder[0] += 8;
+		}
+		String name = null;
+		if (version >= 2) {
+			name = readString(dataIn, sizeHolder);
+		}
+		String originalName = null;
+		String contentType = null;
+		long lastModified = 0;
+		String eTag = null;
+		if (version >= 4) {
+			originalName = readString(dataIn, sizeHolder);
+			contentType = readString(dataIn, sizeHolder);
+			lastModified = dataIn.readLong();
+			sizeHolder[0] += 8;
+			eTag = readString(dataIn, sizeHolder);
+		}
+		return new CacheFileHeader(flags, length, name, storedLength, checksum,
+				originalName, contentType, lastModified, eTag, sizeHolder[0]);
+	}
+
+	/**
+	 * @return the number of bytes written
+	 */
+	public int write(OutputStream out) throws IOException {
+		DataOutputStream dataOut = new DataOutputStream(out);
+		dataOut.writeInt(MAGIC);
+		dataOut.writeByte(VERSION);
+		dataOut.writeByte(flags);
+		dataOut.writeInt(length);
+		dataOut.writeInt(storedLength);
+		dataOut.writeInt(checksum);
+		dataOut.writeUTF(name != null ? name : "");
+		dataOut.writeUTF(originalName != null ? originalName : "");
+		dataOut.writeUTF(contentType != null ? contentType : "");
+		dataOut.writeLong(lastModified);
+		dataOut.writeUTF(eTag != null ? eTag : "");
+		dataOut.flush();
+		return dataOut.size();
+	}
+
+	/**
+	 * Fills in the lengths and checksum of a header written before the payload was known.
+	 */
+	public static void update(FileChannel channel, int length, int storedLength, int checksum) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(12);
+		buffer.putInt(length);
+		buffer.putInt(storedLength);
+		buffer.putInt(checksum);
+		buffer.flip();
+		int position = LENGTH_OFFSET;
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * Fills in the lengths and checksum of a header held in memory.
+	 */
+	public static void update(byte[] data, int length, int storedLength, int checksum) {
+		ByteBuffer buffer = ByteBuffer.wrap(data, LENGTH_OFFSET, 12);
+		buffer.putInt(length);
+		buffer.putInt(storedLength);
+		buffer.putInt(checksum);
+	}
+
+	/**
+	 * @return the flags
+	 */
+	public int getFlags() {
+		return flags;
+	}
+
+	public boolean isCompressed() {
+		return ((flags & FLAG_COMPRESSED) != 0);
+	}
+
+	/**
+	 * @return the length of the raw payload
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the name of the resource, or null if not known (older versions)
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the length of the payload as stored, or -1 if not known (older versions)
+	 */
+	public int getStoredLength() {
+		return storedLength;
+	}
+
+	/**
+	 * @return the CRC32 of the stored payload (if the stored length is known)
+	 */
+	public int getChecksum() {
+		return checksum;
+	}
+
+	/**
+	 * @return the time the resource was last modified at its origin, or 0 if not known
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @return the entity tag provided by the origin, or null if not known
+	 */
+	public String getETag() {
+		return eTag;
+	}
+
+	/**
+	 * @return the metadata provided by the origin, or null if there was none (or older versions)
+	 */
+	public IVersionedResourceMetaData getMetaData() {
+		if ((originalName == null) && (contentType == null) && (lastModified == 0) && (eTag == null)) {
+			return null;
+		}
+		ResourceMetaData metaData = new ResourceMetaData();
+		metaData.setName(originalName);
+		metaData.setLength(length);
+		metaData.setContentType(contentType);
+		metaData.setLastModified(lastModified);
+		metaData.setETag(eTag);
+		return metaData;
+	}
+
+	/**
+	 * @return the number of bytes the header occupied in the stream it was read from
+	 */
+	public int getSize() {
+		return size;
+	}
+
+}
@@ -0,0 +1,73 @@
+package de.siteof.resource.util;
+
+import de.siteof.resource.CacheEvictionCause;
+import de.siteof.resource.CacheStatistics;
+
+/**
+ * Collects the statistics of a cache using striped counters, cheap enough to be always enabled.
+ */
+public class CacheStatisticsCounter {
+
+	private final StripedCounter hitCount = new StripedCounter();
+	private final StripedCounter missCount = new StripedCounter();
+	private final StripedCounter loadSuccessCount = new StripedCounter();
+	private final StripedCounter loadFailureCount = new StripedCounter();
+	private final StripedCounter totalLoadTime = new StripedCounter();
+	private final StripedCounter hitBytes = new StripedCounter();
+	private final StripedCounter[] evictionCounts;
+
+	public CacheStatisticsCounter() {
+		CacheEvictionCause[] causes = CacheEvictionCause.values();
+		evictionCounts = new StripedCounter[causes.length];
+		for (int i = 0; i < causes.length; i++) {
+			evictionCounts[i] = new StripedCounter();
+		}
+	}
+
+	/**
+	 * @param bytes the number of bytes served from the cache
+	 */
+	public void recordHit(long bytes) {
+		hitCount.increment();
+		hitBytes.add(bytes);
+	}
+
+	public void recordMiss() {
+		missCount.increment();
+	}
+
+	/**
+	 * @param loadTime the time spent loading in nanoseconds
+	 */
+	public void recordLoadSuccess(long loadTime) {
+		loadSuccessCount.increment();
+		totalLoadTime.add(loadTime);
+	}
+
+	/**
+	 * @param loadTime the time spent loading in nanoseconds
+	 */
+	public void recordLoadFailure(long loadTime) {
+		loadFailureCount.increment();
+		totalLoadTime.add(loadTime);
+	}
+
+	public void recordEviction(CacheEvictionCause cause) {
+		evictionCounts[cause.ordinal()].increment();
+	}
+
+	/**
+	 * @param entryCount the number of entries currently cached (-1 if unknown)
+	 * @param weight the size of the entries currently cached (-1 if unknown)
+	 */
+	public CacheStatistics snapshot(long entryCount, long weight) {
+		long[] evictions = new long[evictionCounts.length];
+		for (int i = 0; i < evictions.length; i++) {
+			evictions[i] = evictionCounts[i].sum();
+		}
+		return new CacheStatistics(hitCount.sum(), missCount.sum(),
+				loadSuccessCount.sum(), loadFailureCount.sum(), totalLoadTime.sum(),
+				hitBytes.sum(), evictions, entryCount, weight);
+	}
+
+}
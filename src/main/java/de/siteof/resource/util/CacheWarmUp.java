@@ -0,0 +1,312 @@
+package de.siteof.resource.util;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import de.siteof.resource.IResource;
+import de.siteof.resource.IResourceLoader;
+import de.siteof.resource.ResourceRequestParameters;
+import de.siteof.resource.event.IResourceListener;
+import de.siteof.resource.event.ResourceLoaderEvent;
+import de.siteof.task.AbstractTask;
+import de.siteof.task.ITaskManager;
+
+/**
+ * Populates a cache by requesting a sequence of resources from the caching loader.
+ * The requests are made asynchronously, with at most the given number of requests in progress
+ * and at most the given number of requests started per second, so that live requests aren't starved.
+ * The names are taken from the iterator one at a time, it may produce them lazily.
+ * A request which didn't finish within the request timeout is counted as failed, so that it doesn't
+ * hold on to its slot.
+ */
+public class CacheWarmUp implements Runnable {
+
+	public static interface IWarmUpListener {
+
+		void onResourceWarmed(String name);
+
+		void onResourceFailed(String name, Throwable cause);
+
+		/**
+		 * Called once all requests finished or the warm-up was cancelled.
+		 */
+		void onWarmUpFinished(CacheWarmUp warmUp);
+
+	}
+
+	private static class WarmUpRequest {
+		private final String name;
+		private final long startTime = System.nanoTime();
+		private final AtomicBoolean finished = new AtomicBoolean();
+
+		public WarmUpRequest(String name) {
+			this.name = name;
+		}
+	}
+
+	public static final long DEFAULT_REQUEST_TIMEOUT = 60000;
+
+	/**
+	 * The time in milliseconds between checks for cancellation and timed out requests.
+	 */
+	private static final long POLL_INTERVAL = 100;
+
+	private static final Log log = LogFactory.getLog(CacheWarmUp.class);
+
+	private final IResourceLoader resourceLoader;
+	private final Iterator<String> names;
+	private final int parallelism;
+	private final long requestInterval;
+	private final IWarmUpListener listener;
+	private final Semaphore permits;
+	private final Queue<WarmUpRequest> pendingRequests = new ConcurrentLinkedQueue<WarmUpRequest>();
+	private volatile long requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+	private final CountDownLatch doneLatch = new CountDownLatch(1);
+	private final AtomicInteger requestedCount = new AtomicInteger();
+	private final AtomicInteger warmedCount = new AtomicInteger();
+	private final AtomicInteger failedCount = new AtomicInteger();
+	private volatile boolean cancelled;
+
+	/**
+	 * @param resourceLoader the caching loader to populate
+	 * @param names the names of the resources to request
+	 * @param parallelism the maximum number of requests in progress at the same time
+	 * @param maxRequestsPerSecond the maximum number of requests started per second (0 for no limit)
+	 * @param listener receives the progress (may be null)
+	 */
+	public CacheWarmUp(IResourceLoader resourceLoader, Iterator<String> names, int parallelism,
+			double maxRequestsPerSecond, IWarmUpListener listener) {
+		if ((parallelism <= 0) || (maxRequestsPerSecond < 0)) {
+			throw new IllegalArgumentException("invalid warm-up limits, parallelism=" + parallelism +
+					", maxRequestsPerSecond=" + maxRequestsPerSecond);
+		}
+		this.resourceLoader = resourceLoader;
+		this.names = names;
+		this.parallelism = parallelism;
+		this.requestInterval = (maxRequestsPerSecond > 0 ? (long) (1000000000L / maxRequestsPerSecond) : 0);
+		this.listener = listener;
+		this.permits = new Semaphore(parallelism);
+	}
+
+	/**
+	 * @return the time in milliseconds after which a request still in progress is counted as failed
+	 */
+	public long getRequestTimeout() {
+		return requestTimeout;
+	}
+
+	/**
+	 * @param requestTimeout the time in milliseconds after which a request still in progress is
+	 * counted as failed and its slot is used for the next request (0 to wait forever)
+	 */
+	public void setRequestTimeout(long requestTimeout) {
+		this.requestTimeout = requestTimeout;
+	}
+
+	/**
+	 * Starts the warm-up as a task of the given task manager, or performs it in the calling thread
+	 * if there is no task manager.
+	 */
+	public void start(ITaskManager taskManager) {
+		if (taskManager == null) {
+			run();
+			return;
+		}
+		taskManager.addTask(new AbstractTask() {
+			@Override
+			public void execute() throws Exception {
+				run();
+			}});
+	}
+
+	/**
+	 * Performs the warm-up in the calling thread, returning once all requests finished.
+	 */
+	@Override
+	public void run() {
+		try {
+			long nextRequestTime = System.nanoTime();
+			while ((!cancelled) && (names.hasNext())) {
+				String name = names.next();
+				if (requestInterval > 0) {
+					waitUntil(nextRequestTime);
+					nextRequestTime = Math.max(nextRequestTime, System.nanoTime() - requestInterval) + requestInterval;
+				}
+				if (!acquirePermits(1)) {
+					break;
+				}
+				request(name);
+			}
+			// wait for the requests still in progress
+			if (acquirePermits(parallelism)) {
+				permits.release(parallelism);
+			}
+		} catch (InterruptedException e) {
+			cancelled = true;
+			Thread.currentThread().interrupt();
+		} finally {
+			doneLatch.countDown();
+			if (listener != null) {
+				listener.onWarmUpFinished(this);
+			}
+		}
+	}
+
+	private void waitUntil(long time) throws InterruptedException {
+		while (!cancelled) {
+			long delay = time - System.nanoTime();
+			if (delay <= 0) {
+				break;
+			}
+			TimeUnit.NANOSECONDS.sleep(Math.min(delay, TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL)));
+		}
+	}
+
+	/**
+	 * Waits for the given number of request slots, failing requests which timed out in the meantime.
+	 *
+	 * @return false if the warm-up was cancelled (no slots acquired)
+	 */
+	private boolean acquirePermits(int count) throws InterruptedException {
+		while (!permits.tryAcquire(count, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+			if (cancelled) {
+				return false;
+			}
+			failTimedOutRequests();
+		}
+		if (cancelled) {
+			permits.release(count);
+			return false;
+		}
+		return true;
+	}
+
+	private void failTimedOutRequests() {
+		long requestTimeout = this.requestTimeout;
+		if (requestTimeout <= 0) {
+			return;
+		}
+		long now = System.nanoTime();
+		for (WarmUpRequest request: pendingRequests) {
+			if (now - request.startTime > TimeUnit.MILLISECONDS.toNanos(requestTimeout)) {
+				onFinished(request, new TimeoutException("warm-up request timed out after " + requestTimeout + " ms"));
+			}
+		}
+	}
+
+	private void request(String name) {
+		requestedCount.incrementAndGet();
+		final WarmUpRequest request = new WarmUpRequest(name);
+		pendingRequests.add(request);
+		try {
+			IResource resource = resourceLoader.getResource(name);
+			if (resource == null) {
+				onFinished(request, null);
+				return;
+			}
+			resource.getResourceBytes(new IResourceListener<ResourceLoaderEvent<byte[]>>() {
+				@Override
+				public void onResourceEvent(ResourceLoaderEvent<byte[]> event) {
+					if (event.isFailed()) {
+						onFinished(request, event.getCause());
+					} else if (event.isComplete()) {
+						onFinished(request, null);
+					}
+				}}, new ResourceRequestParameters());
+		} catch (Throwable e) {
+			onFinished(request, e);
+		}
+	}
+
+	/**
+	 * Counts the request and releases its slot, only once per request.
+	 */
+	private void onFinished(WarmUpRequest request, Throwable cause) {
+		if (!request.finished.compareAndSet(false, true)) {
+			return;
+		}
+		String name = request.name;
+		pendingRequests.remove(request);
+		try {
+			if (cause != null) {
+				failedCount.incrementAndGet();
+				if (log.isDebugEnabled()) {
+					log.debug("warm-up request failed, name=" + name + " - " + cause);
+				}
+				if (listener != null) {
+					listener.onResourceFailed(name, cause);
+				}
+			} else {
+				warmedCount.incrementAndGet();
+				if (listener != null) {
+					listener.onResourceWarmed(name);
+				}
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Stops starting new requests. Requests already in progress aren't aborted, but the warm-up
+	 * may finish before they completed.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Waits for the warm-up to finish.
+	 *
+	 * @return false if the timeout elapsed first
+	 */
+	public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		return doneLatch.await(timeout, unit);
+	}
+
+	public boolean isDone() {
+		return (doneLatch.getCount() == 0);
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return the number of requests started so far
+	 */
+	public int getRequestedCount() {
+		return requestedCount.get();
+	}
+
+	/**
+	 * @return the number of resources loaded (or found to be missing) so far
+	 */
+	public int getWarmedCount() {
+		return warmedCount.get();
+	}
+
+	/**
+	 * @return the number of requests failed so far
+	 */
+	public int getFailedCount() {
+		return failedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "CacheWarmUp [requestedCount=" + getRequestedCount() + ", warmedCount=" + getWarmedCount() +
+				", failedCount=" + getFailedCount() + ", cancelled=" + cancelled + ", done=" + isDone() + "]";
+	}
+
+}
@@ -0,0 +1,58 @@
+package de.siteof.resource.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Payload stored in compressed form, decompressed whenever it is read.
+ * Only the compressed form is accounted against the cache budget.
+ */
+public class CompressedCachedBytes implements ICachedBytes {
+
+	private final ICachedBytes compressedBytes;
+	private final int length;
+
+	/**
+	 * @param compressedBytes the stored compressed payload
+	 * @param length the length of the raw payload
+	 */
+	public CompressedCachedBytes(ICachedBytes compressedBytes, int length) {
+		this.compressedBytes = compressedBytes;
+		this.length = length;
+	}
+
+	@Override
+	public int getLength() {
+		return length;
+	}
+
+	@Override
+	public long getWeight() {
+		return compressedBytes.getWeight();
+	}
+
+	@Override
+	public byte[] getBytes() {
+		try {
+			return ResourceCompressor.decompress(compressedBytes.getBytes(), length);
+		} catch (IOException e) {
+			throw new IllegalStateException("cached payload could not be decompressed - " + e, e);
+		}
+	}
+
+	@Override
+	public InputStream openStream() {
+		return ResourceCompressor.decompress(compressedBytes.openStream());
+	}
+
+	@Override
+	public boolean retain() {
+		return compressedBytes.retain();
+	}
+
+	@Override
+	public void release() {
+		compressedBytes.release();
+	}
+
+}
@@ -0,0 +1,258 @@
+package de.siteof.resource.util;
+
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares identical payloads between cache entries. Payloads are identified by a hash of their content,
+ * an entry storing a payload which is already held by another entry receives a reference to the
+ * existing blob. Every entry holds one reference, the blob is released once the last entry released
+ * it. The weight of a blob is charged to a single reference, so that a shared payload is only
+ * accounted once against the budget of the cache. If the charged reference is released while others
+ * remain, the charge moves to one of them and the {@link IChargeListener} is notified to account it.
+ */
+public class ContentAddressedStore {
+
+	public static interface IBytesFactory {
+
+		/**
+		 * Stores a payload which isn't held by the store yet.
+		 */
+		ICachedBytes createCachedBytes(byte[] data);
+
+	}
+
+	public static interface IChargeListener {
+
+		/**
+		 * Called when the weight of a shared payload moved to the given reference, as the reference
+		 * charged before was released. The weight of the reference has to be accounted again.
+		 *
+		 * @param owner the owner given when the reference was created
+		 */
+		void onCharged(Object owner, ICachedBytes reference);
+
+	}
+
+	/**
+	 * Payload shared by all references to it. One of the references is charged with its weight.
+	 */
+	private class SharedBlob {
+
+		private final String key;
+		private final ICachedBytes bytes;
+		private final Set<SharedReference> references = new LinkedHashSet<SharedReference>();
+		private boolean released;
+
+		public SharedBlob(String key, ICachedBytes bytes) {
+			this.key = key;
+			this.bytes = bytes;
+		}
+
+		/**
+		 * @return a new reference, or null if the blob was already released
+		 */
+		public synchronized SharedReference createReference(Object owner) {
+			if (released) {
+				return null;
+			}
+			SharedReference reference = new SharedReference(this, owner, references.isEmpty());
+			references.add(reference);
+			return reference;
+		}
+
+		public void releaseReference(SharedReference reference) {
+			SharedReference charged = null;
+			synchronized (this) {
+				references.remove(reference);
+				if (!references.isEmpty()) {
+					if (!reference.charged) {
+						return;
+					}
+					reference.charged = false;
+					Iterator<SharedReference> it = references.iterator();
+					charged = it.next();
+					charged.charged = true;
+				} else {
+					released = true;
+				}
+			}
+			if (charged != null) {
+				IChargeListener chargeListener = ContentAddressedStore.this.chargeListener;
+				if (chargeListener != null) {
+					chargeListener.onCharged(charged.owner, charged);
+				}
+				return;
+			}
+			blobs.remove(key, this);
+			bytes.release();
+		}
+
+	}
+
+	/**
+	 * Reference of a single entry to a shared payload. Only the charged reference accounts the
+	 * weight of the payload, the payload is released once all references were released.
+	 */
+	private static class SharedReference implements ICachedBytes {
+
+		private final SharedBlob blob;
+		private final Object owner;
+		private volatile boolean charged;
+		private final AtomicInteger referenceCount = new AtomicInteger(1);
+
+		public SharedReference(SharedBlob blob, Object owner, boolean charged) {
+			this.blob = blob;
+			this.owner = owner;
+			this.charged = charged;
+		}
+
+		@Override
+		public int getLength() {
+			return blob.bytes.getLength();
+		}
+
+		@Override
+		public long getWeight() {
+			return (charged ? blob.bytes.getWeight() : 0);
+		}
+
+		@Override
+		public byte[] getBytes() {
+			return blob.bytes.getBytes();
+		}
+
+		@Override
+		public InputStream openStream() {
+			return blob.bytes.openStream();
+		}
+
+		@Override
+		public boolean retain() {
+			while (true) {
+				int count = referenceCount.get();
+				if (count <= 0) {
+					return false;
+				}
+				if (referenceCount.compareAndSet(count, count + 1)) {
+					return true;
+				}
+			}
+		}
+
+		@Override
+		public void release() {
+			if (referenceCount.decrementAndGet() == 0) {
+				blob.releaseReference(this);
+			}
+		}
+
+	}
+
+	private static final String HASH_ALGORITHM	= "SHA-1";
+	private static final char[] HEX_DIGITS	= "0123456789abcdef".toCharArray();
+
+	private final ConcurrentMap<String, SharedBlob> blobs = new ConcurrentHashMap<String, SharedBlob>();
+	private final AtomicLong sharedCount = new AtomicLong();
+	private final AtomicLong sharedBytes = new AtomicLong();
+	private final IChargeListener chargeListener;
+
+	public ContentAddressedStore() {
+		this(null);
+	}
+
+	/**
+	 * @param chargeListener notified when the weight of a payload moved to another reference (may be null)
+	 */
+	public ContentAddressedStore(IChargeListener chargeListener) {
+		this.chargeListener = chargeListener;
+	}
+
+	public ICachedBytes store(byte[] data, IBytesFactory factory) {
+		return store(data, null, factory);
+	}
+
+	/**
+	 * Returns a new reference to the blob holding the given payload, owned by the caller.
+	 * The factory is only asked to store the payload if no identical payload is held yet.
+	 * The weight of the payload is only accounted by one reference at a time: the first one,
+	 * then one of the remaining references once the charged one was released.
+	 *
+	 * @param owner passed to the {@link IChargeListener} if the weight moves to the reference (may be null)
+	 */
+	public ICachedBytes store(byte[] data, Object owner, IBytesFactory factory) {
+		String key = getKey(data);
+		while (true) {
+			SharedBlob existing = blobs.get(key);
+			if (existing != null) {
+				SharedReference reference = existing.createReference(owner);
+				if (reference != null) {
+					sharedCount.incrementAndGet();
+					sharedBytes.addAndGet(data.length);
+					return reference;
+				}
+				// released concurrently, about to be removed
+				blobs.remove(key, existing);
+				continue;
+			}
+			SharedBlob created = new SharedBlob(key, factory.createCachedBytes(data));
+			if (blobs.putIfAbsent(key, created) == null) {
+				SharedReference reference = created.createReference(owner);
+				if (reference != null) {
+					return reference;
+				}
+				// shared and released again in the meantime
+				continue;
+			}
+			created.bytes.release();
+		}
+	}
+
+	private static String getKey(byte[] data) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(HASH_ALGORITHM + " not available - " + e, e);
+		}
+		byte[] hash = digest.digest(data);
+		StringBuilder sb = new StringBuilder(hash.length * 2 + 12);
+		for (byte b: hash) {
+			sb.append(HEX_DIGITS[(b >> 4) & 0x0f]);
+			sb.append(HEX_DIGITS[b & 0x0f]);
+		}
+		// the length makes collisions between payloads of different size impossible
+		sb.append('-').append(data.length);
+		return sb.toString();
+	}
+
+	/**
+	 * @return the number of distinct payloads held
+	 */
+	public int getBlobCount() {
+		return blobs.size();
+	}
+
+	/**
+	 * @return the number of times an existing payload was shared rather than stored again
+	 */
+	public long getSharedCount() {
+		return sharedCount.get();
+	}
+
+	/**
+	 * @return the number of raw payload bytes which didn't have to be stored again
+	 */
+	public long getSharedBytes() {
+		return sharedBytes.get();
+	}
+
+}
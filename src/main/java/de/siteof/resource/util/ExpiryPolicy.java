@@ -0,0 +1,92 @@
+package de.siteof.resource.util;
+
+/**
+ * Decides when a cached entry expires. An entry expires a fixed time after it was cached
+ * (time to live) and/or after it wasn't accessed for a while (time to idle).
+ * With refresh-ahead enabled, an entry accessed after the given fraction of its time to live
+ * is due to be reloaded in the background while the cached data keeps being served.
+ */
+public class ExpiryPolicy {
+
+	private final long timeToLive;
+	private final long timeToIdle;
+	private final float refreshAheadFactor;
+
+	/**
+	 * @param timeToLive the time in milliseconds an entry is kept after being cached (0 for no limit)
+	 * @param timeToIdle the time in milliseconds an entry is kept after its last access (0 for no limit)
+	 */
+	public ExpiryPolicy(long timeToLive, long timeToIdle) {
+		this(timeToLive, timeToIdle, 0);
+	}
+
+	/**
+	 * @param timeToLive the time in milliseconds an entry is kept after being cached (0 for no limit)
+	 * @param timeToIdle the time in milliseconds an entry is kept after its last access (0 for no limit)
+	 * @param refreshAheadFactor the fraction of the time to live after which an accessed entry is
+	 * reloaded in the background (e.g. 0.8, 0 to disable refresh-ahead)
+	 */
+	public ExpiryPolicy(long timeToLive, long timeToIdle, float refreshAheadFactor) {
+		if ((timeToLive < 0) || (timeToIdle < 0) || (refreshAheadFactor < 0) || (refreshAheadFactor >= 1)) {
+			throw new IllegalArgumentException("invalid expiry policy, timeToLive=" + timeToLive +
+					", timeToIdle=" + timeToIdle + ", refreshAheadFactor=" + refreshAheadFactor);
+		}
+		if ((refreshAheadFactor > 0) && (timeToLive == 0)) {
+			throw new IllegalArgumentException("refresh-ahead requires a time to live");
+		}
+		this.timeToLive = timeToLive;
+		this.timeToIdle = timeToIdle;
+		this.refreshAheadFactor = refreshAheadFactor;
+	}
+
+	/**
+	 * @param cachedTime the time the entry was cached
+	 * @param accessTime the time the entry was last accessed
+	 * @return true if the entry must not be served anymore
+	 */
+	public boolean isExpired(long cachedTime, long accessTime, long now) {
+		if ((timeToLive > 0) && (now - cachedTime >= timeToLive)) {
+			return true;
+		}
+		if ((timeToIdle > 0) && (now - accessTime >= timeToIdle)) {
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param cachedTime the time the entry was cached
+	 * @return true if the (not yet expired) entry should be reloaded in the background
+	 */
+	public boolean isRefreshDue(long cachedTime, long now) {
+		return ((refreshAheadFactor > 0) && (now - cachedTime >= (long) (timeToLive * refreshAheadFactor)));
+	}
+
+	/**
+	 * @return the timeToLive
+	 */
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+	/**
+	 * @return the timeToIdle
+	 */
+	public long getTimeToIdle() {
+		return timeToIdle;
+	}
+
+	/**
+	 * @return the refreshAheadFactor
+	 */
+	public float getRefreshAheadFactor() {
+		return refreshAheadFactor;
+	}
+
+	@Override
+	public String toString() {
+		return "ExpiryPolicy [timeToLive=" + timeToLive + ", timeToIdle=" + timeToIdle +
+				", refreshAheadFactor=" + refreshAheadFactor + "]";
+	}
+
+}
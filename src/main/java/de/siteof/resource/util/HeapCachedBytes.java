@@ -0,0 +1,46 @@
+package de.siteof.resource.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * Payload held as a byte array on the heap, released by the garbage collector.
+ */
+public class HeapCachedBytes implements ICachedBytes {
+
+	private final byte[] data;
+
+	public HeapCachedBytes(byte[] data) {
+		this.data = data;
+	}
+
+	@Override
+	public int getLength() {
+		return data.length;
+	}
+
+	@Override
+	public long getWeight() {
+		return data.length;
+	}
+
+	@Override
+	public byte[] getBytes() {
+		return data;
+	}
+
+	@Override
+	public InputStream openStream() {
+		return new ByteArrayInputStream(data);
+	}
+
+	@Override
+	public boolean retain() {
+		return true;
+	}
+
+	@Override
+	public void release() {
+	}
+
+}
@@ -0,0 +1,45 @@
+package de.siteof.resource.util;
+
+import java.io.InputStream;
+
+/**
+ * Payload held by a memory cache. Implementations may keep the data outside of the heap,
+ * in which case the data has to be retained while being read.
+ */
+public interface ICachedBytes {
+
+	/**
+	 * @return the payload length in bytes
+	 */
+	int getLength();
+
+	/**
+	 * @return the number of bytes accounted against the cache budget
+	 */
+	long getWeight();
+
+	/**
+	 * Returns the payload as a byte array. Implementations not holding the data on the heap
+	 * return a copy.
+	 */
+	byte[] getBytes();
+
+	/**
+	 * Opens a stream reading the payload without copying it where possible.
+	 * The payload is retained until the stream is closed.
+	 */
+	InputStream openStream();
+
+	/**
+	 * Increments the reference count.
+	 *
+	 * @return false if the payload was already released and must not be read anymore
+	 */
+	boolean retain();
+
+	/**
+	 * Decrements the reference count, the payload is freed once it reaches zero.
+	 */
+	void release();
+
+}
@@ -24,6 +24,33 @@ public class IOUtil {
 		return out.toByteArray();
 	}
 
+	/**
+	 * Reads the stream into an array of the expected length, avoiding the copies of a growing buffer.
+	 * Falls back to reading the remainder if the stream is longer than expected.
+	 */
+	public static byte[] readAllFromStream(InputStream in, int expectedLength) throws IOException {
+		byte[] result	= new byte[expectedLength];
+		int offset	= 0;
+		while (offset < expectedLength) {
+			int readCount	= in.read(result, offset, expectedLength - offset);
+			if (readCount < 0) {
+				byte[] truncated	= new byte[offset];
+				System.arraycopy(result, 0, truncated, 0, offset);
+				return truncated;
+			}
+			offset	+= readCount;
+		}
+		int next	= in.read();
+		if (next < 0) {
+			return result;
+		}
+		ByteArrayOutputStream out	= new ByteArrayOutputStream(expectedLength * 2);
+		out.write(result);
+		out.write(next);
+		out.write(readAllFromStream(in));
+		return out.toByteArray();
+	}
+
 	public static boolean close(InputStream in) {
 		boolean result = false;
 		if (in != null) {
@@ -0,0 +1,35 @@
+package de.siteof.resource.util;
+
+import java.io.IOException;
+
+import de.siteof.resource.IResourceMetaData;
+
+/**
+ * Receives the chunks of a resource while they are being loaded, e.g. to build a cached copy.
+ */
+public interface IResourceBytesSink {
+
+	/**
+	 * Called if the resource provides metadata, usually before the first chunk.
+	 */
+	void setMetaData(IResourceMetaData metaData);
+
+	void write(byte[] chunk) throws IOException;
+
+	/**
+	 * Called once all chunks have been written.
+	 */
+	void commit() throws IOException;
+
+	/**
+	 * Called if the load failed or the sink can't be written to, any partial data should be discarded.
+	 */
+	void abort(Throwable cause);
+
+	/**
+	 * Called if the request completed without content, e.g. as the requester's copy is still current
+	 * (see {@link de.siteof.resource.event.NotModifiedResourceLoaderEvent}). Nothing is stored.
+	 */
+	void discard();
+
+}
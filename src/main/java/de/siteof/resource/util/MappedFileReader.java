@@ -0,0 +1,122 @@
+package de.siteof.resource.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens files as streams over memory-mapped regions, so that reading them doesn't copy the data
+ * through intermediate buffers. Mapping has a fixed cost, files smaller than the map threshold are
+ * read into direct buffers taken from a pool instead, which are returned once the stream is closed.
+ * The file is closed before the stream is returned, a mapping is released by the garbage collector
+ * once the stream isn't referenced anymore (on some platforms the file can't be deleted until then).
+ */
+public class MappedFileReader {
+
+	public static final int DEFAULT_MAP_THRESHOLD	= 64 * 1024;
+	public static final int DEFAULT_MAX_POOLED_BUFFERS	= 32;
+
+	private final int mapThreshold;
+	private final int maxPooledBuffers;
+	private final ConcurrentLinkedQueue<ByteBuffer> pooledBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger pooledBufferCount = new AtomicInteger();
+
+	public MappedFileReader() {
+		this(DEFAULT_MAP_THRESHOLD, DEFAULT_MAX_POOLED_BUFFERS);
+	}
+
+	/**
+	 * @param mapThreshold the minimum size of files to map, smaller files are read into pooled buffers
+	 * of this size
+	 * @param maxPooledBuffers the maximum number of idle buffers kept in the pool
+	 */
+	public MappedFileReader(int mapThreshold, int maxPooledBuffers) {
+		if ((mapThreshold < 0) || (maxPooledBuffers < 0)) {
+			throw new IllegalArgumentException("invalid limits, mapThreshold=" + mapThreshold +
+					", maxPooledBuffers=" + maxPooledBuffers);
+		}
+		this.mapThreshold = mapThreshold;
+		this.maxPooledBuffers = maxPooledBuffers;
+	}
+
+	/**
+	 * @return a stream over the content of the file (supporting mark/reset)
+	 */
+	public InputStream openStream(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("file too large to be mapped: " + file + ", size=" + size);
+			}
+			if (size >= mapThreshold) {
+				return new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+			}
+			final ByteBuffer buffer = acquireBuffer();
+			try {
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer) < 0) {
+						break;
+					}
+				}
+			} catch (IOException e) {
+				releaseBuffer(buffer);
+				throw e;
+			}
+			buffer.flip();
+			return new ByteBufferInputStream(buffer) {
+				private boolean released;
+
+				@Override
+				public void close() throws IOException {
+					super.close();
+					if (!released) {
+						released = true;
+						releaseBuffer(buffer);
+					}
+				}
+			};
+		} finally {
+			in.close();
+		}
+	}
+
+	private ByteBuffer acquireBuffer() {
+		ByteBuffer buffer = pooledBuffers.poll();
+		if (buffer != null) {
+			pooledBufferCount.decrementAndGet();
+			buffer.clear();
+			return buffer;
+		}
+		return ByteBuffer.allocateDirect(mapThreshold);
+	}
+
+	private void releaseBuffer(ByteBuffer buffer) {
+		if (pooledBufferCount.incrementAndGet() <= maxPooledBuffers) {
+			pooledBuffers.offer(buffer);
+		} else {
+			pooledBufferCount.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the mapThreshold
+	 */
+	public int getMapThreshold() {
+		return mapThreshold;
+	}
+
+	/**
+	 * @return the number of idle buffers in the pool
+	 */
+	public int getPooledBufferCount() {
+		return pooledBufferCount.get();
+	}
+
+}
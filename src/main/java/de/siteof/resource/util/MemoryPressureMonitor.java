@@ -0,0 +1,243 @@
+package de.siteof.resource.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Watches the occupancy of the old generation and tells the registered caches which fraction of
+ * their configured budget they may use. The budget shrinks by one step whenever the occupancy
+ * rises above the next threshold and grows back step by step once it drops below again, so caches
+ * shed their entries gradually rather than all at once.
+ * Threshold notifications of the memory pool trigger an immediate check, the occupancy is then
+ * checked periodically until the pressure subsided.
+ */
+public class MemoryPressureMonitor {
+
+	public static interface IMemoryPressureListener {
+
+		/**
+		 * @param budgetFactor the fraction of the configured budget the cache may use (1 without pressure)
+		 */
+		void onMemoryPressure(float budgetFactor);
+
+	}
+
+	public static final float[] DEFAULT_THRESHOLDS	= new float[] { 0.7f, 0.8f, 0.9f };
+	public static final float[] DEFAULT_BUDGET_FACTORS	= new float[] { 0.75f, 0.5f, 0.25f };
+	public static final long DEFAULT_CHECK_INTERVAL	= 5 * 1000;
+
+	private static final Log log = LogFactory.getLog(MemoryPressureMonitor.class);
+
+	private final float[] thresholds;
+	private final float[] budgetFactors;
+	private final long checkInterval;
+	private final MemoryPoolMXBean memoryPool;
+	private final List<IMemoryPressureListener> listeners = new CopyOnWriteArrayList<IMemoryPressureListener>();
+	private final NotificationListener notificationListener = new NotificationListener() {
+		@Override
+		public void handleNotification(Notification notification, Object handback) {
+			String type = notification.getType();
+			if ((MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(type)) ||
+					(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type))) {
+				check();
+			}
+		}
+	};
+	private Timer timer;
+	private int level;
+
+	public MemoryPressureMonitor() {
+		this(DEFAULT_THRESHOLDS, DEFAULT_BUDGET_FACTORS, DEFAULT_CHECK_INTERVAL);
+	}
+
+	/**
+	 * @param thresholds the increasing occupancy fractions of the old generation defining the levels
+	 * @param budgetFactors the fraction of the budget caches may use at the corresponding level
+	 * @param checkInterval the interval in milliseconds the occupancy is checked at while under pressure
+	 */
+	public MemoryPressureMonitor(float[] thresholds, float[] budgetFactors, long checkInterval) {
+		if ((thresholds.length == 0) || (thresholds.length != budgetFactors.length) || (checkInterval <= 0)) {
+			throw new IllegalArgumentException("thresholds and budget factors required, one factor per threshold");
+		}
+		for (int i = 0; i < thresholds.length; i++) {
+			if ((thresholds[i] <= 0) || (thresholds[i] >= 1) || ((i > 0) && (thresholds[i] <= thresholds[i - 1]))) {
+				throw new IllegalArgumentException("thresholds must be increasing fractions, threshold=" + thresholds[i]);
+			}
+			if ((budgetFactors[i] <= 0) || (budgetFactors[i] > 1)) {
+				throw new IllegalArgumentException("invalid budget factor: " + budgetFactors[i]);
+			}
+		}
+		this.thresholds = thresholds.clone();
+		this.budgetFactors = budgetFactors.clone();
+		this.checkInterval = checkInterval;
+		this.memoryPool = findOldGenerationPool();
+	}
+
+	/**
+	 * @return the heap pool supporting usage thresholds with the largest maximum (usually the old generation)
+	 */
+	private static MemoryPoolMXBean findOldGenerationPool() {
+		MemoryPoolMXBean result = null;
+		for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+			if ((pool.getType() == MemoryType.HEAP) && (pool.isUsageThresholdSupported()) &&
+					(pool.getUsage().getMax() > 0)) {
+				if ((result == null) || (pool.getUsage().getMax() > result.getUsage().getMax())) {
+					result = pool;
+				}
+			}
+		}
+		return result;
+	}
+
+	public void addListener(IMemoryPressureListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(IMemoryPressureListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Starts listening to the threshold notifications of the old generation.
+	 */
+	public synchronized void start() {
+		if (memoryPool == null) {
+			log.warn("no memory pool supporting usage thresholds found, memory pressure won't be detected");
+			return;
+		}
+		long max = memoryPool.getUsage().getMax();
+		long threshold = (long) (max * thresholds[0]);
+		memoryPool.setUsageThreshold(threshold);
+		if (memoryPool.isCollectionUsageThresholdSupported()) {
+			memoryPool.setCollectionUsageThreshold(threshold);
+		}
+		((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(
+				notificationListener, null, null);
+		if (log.isDebugEnabled()) {
+			log.debug("monitoring memory pool " + memoryPool.getName() + ", threshold=" + threshold);
+		}
+	}
+
+	public synchronized void stop() {
+		if (memoryPool == null) {
+			return;
+		}
+		try {
+			((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(
+					notificationListener);
+		} catch (ListenerNotFoundException e) {
+			// not started
+		}
+		cancelTimer();
+	}
+
+	/**
+	 * Compares the current occupancy against the thresholds and notifies the listeners if the level changed.
+	 * Called on threshold notifications and periodically while under pressure.
+	 */
+	public void check() {
+		float occupancy = getOccupancy();
+		float budgetFactor;
+		synchronized (this) {
+			int newLevel = 0;
+			while ((newLevel < thresholds.length) && (occupancy >= thresholds[newLevel])) {
+				newLevel++;
+			}
+			// shrink straight to the current level, grow back one step at a time
+			if (newLevel < level) {
+				newLevel = level - 1;
+			}
+			if (newLevel > 0) {
+				scheduleTimer();
+			} else {
+				cancelTimer();
+			}
+			if (newLevel == level) {
+				return;
+			}
+			if (log.isInfoEnabled()) {
+				log.info("memory pressure level changed from " + level + " to " + newLevel +
+						", occupancy=" + occupancy);
+			}
+			level = newLevel;
+			budgetFactor = getBudgetFactor(level);
+		}
+		for (IMemoryPressureListener listener: listeners) {
+			try {
+				listener.onMemoryPressure(budgetFactor);
+			} catch (RuntimeException e) {
+				log.warn("memory pressure listener failed - " + e, e);
+			}
+		}
+	}
+
+	private float getBudgetFactor(int level) {
+		return (level > 0 ? budgetFactors[level - 1] : 1f);
+	}
+
+	/**
+	 * @return the occupancy of the old generation after the last collection (if known)
+	 */
+	private float getOccupancy() {
+		if (memoryPool == null) {
+			return 0;
+		}
+		MemoryUsage usage = memoryPool.getCollectionUsage();
+		if ((usage == null) || (usage.getMax() <= 0)) {
+			usage = memoryPool.getUsage();
+		}
+		if (usage.getMax() <= 0) {
+			return 0;
+		}
+		return (float) usage.getUsed() / usage.getMax();
+	}
+
+	private void scheduleTimer() {
+		if (timer == null) {
+			timer = new Timer("memory-pressure-monitor", true);
+			timer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					check();
+				}
+			}, checkInterval, checkInterval);
+		}
+	}
+
+	private void cancelTimer() {
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+	}
+
+	/**
+	 * @return the current level (0 without pressure)
+	 */
+	public synchronized int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @return the fraction of the budget caches may currently use
+	 */
+	public synchronized float getBudgetFactor() {
+		return getBudgetFactor(level);
+	}
+
+}
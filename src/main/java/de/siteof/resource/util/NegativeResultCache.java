@@ -0,0 +1,108 @@
+package de.siteof.resource.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers names of resources which weren't found, for a limited time and up to a maximum
+ * number of names (the oldest names are dropped first).
+ */
+public class NegativeResultCache {
+
+	public static final long DEFAULT_TIME_TO_LIVE	= 60 * 1000;
+	public static final int DEFAULT_MAX_SIZE	= 1000;
+
+	private final Map<String, Long> expiryTimeByName = new LinkedHashMap<String, Long>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return (size() > maxSize);
+		}
+	};
+	private long timeToLive;
+	private int maxSize;
+
+	public NegativeResultCache() {
+		this(DEFAULT_TIME_TO_LIVE, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param timeToLive the time in milliseconds a name is remembered as missing (0 to disable)
+	 * @param maxSize the maximum number of names remembered
+	 */
+	public NegativeResultCache(long timeToLive, int maxSize) {
+		this.timeToLive = timeToLive;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return true if the resource is known to be missing and the information didn't expire yet
+	 */
+	public synchronized boolean isMissing(String name) {
+		Long expiryTime = expiryTimeByName.get(name);
+		if (expiryTime == null) {
+			return false;
+		}
+		if (expiryTime.longValue() <= System.currentTimeMillis()) {
+			expiryTimeByName.remove(name);
+			return false;
+		}
+		return true;
+	}
+
+	public synchronized void markMissing(String name) {
+		if ((timeToLive > 0) && (maxSize > 0)) {
+			// re-insert to keep the insertion order in line with the expiry time
+			expiryTimeByName.remove(name);
+			expiryTimeByName.put(name, Long.valueOf(System.currentTimeMillis() + timeToLive));
+		}
+	}
+
+	public synchronized void invalidate(String name) {
+		expiryTimeByName.remove(name);
+	}
+
+	public synchronized void clear() {
+		expiryTimeByName.clear();
+	}
+
+	public synchronized int size() {
+		return expiryTimeByName.size();
+	}
+
+	/**
+	 * @return the timeToLive
+	 */
+	public synchronized long getTimeToLive() {
+		return timeToLive;
+	}
+
+	/**
+	 * @param timeToLive the timeToLive to set (0 to disable)
+	 */
+	public synchronized void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+		if (timeToLive <= 0) {
+			expiryTimeByName.clear();
+		}
+	}
+
+	/**
+	 * @return the maxSize
+	 */
+	public synchronized int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @param maxSize the maxSize to set
+	 */
+	public synchronized void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		while (expiryTimeByName.size() > maxSize) {
+			expiryTimeByName.remove(expiryTimeByName.keySet().iterator().next());
+		}
+	}
+
+}
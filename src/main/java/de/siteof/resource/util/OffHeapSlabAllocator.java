@@ -0,0 +1,273 @@
+package de.siteof.resource.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores payloads outside of the heap. Direct buffers are allocated in slabs (up to the capacity)
+ * which are divided into pages of a fixed size. A payload occupies as many pages as needed, pages
+ * are returned to a free list once the payload is released. Fixed page sizes avoid external
+ * fragmentation, the unused space of the last page of a payload is reported as fragmentation.
+ */
+public class OffHeapSlabAllocator {
+
+	public static final int DEFAULT_PAGE_SIZE	= 8 * 1024;
+	public static final int DEFAULT_SLAB_SIZE	= 1024 * 1024;
+
+	private class OffHeapCachedBytes implements ICachedBytes {
+
+		private final ByteBuffer[] pages;
+		private final int length;
+		private final AtomicInteger referenceCount = new AtomicInteger(1);
+
+		public OffHeapCachedBytes(ByteBuffer[] pages, int length) {
+			this.pages = pages;
+			this.length = length;
+		}
+
+		@Override
+		public int getLength() {
+			return length;
+		}
+
+		@Override
+		public long getWeight() {
+			return (long) pages.length * pageSize;
+		}
+
+		private ByteBuffer[] getBuffers() {
+			ByteBuffer[] result = new ByteBuffer[pages.length];
+			int remaining = length;
+			for (int i = 0; i < pages.length; i++) {
+				ByteBuffer buffer = pages[i].duplicate();
+				buffer.position(0);
+				buffer.limit(Math.min(remaining, pageSize));
+				remaining -= buffer.limit();
+				result[i] = buffer;
+			}
+			return result;
+		}
+
+		@Override
+		public byte[] getBytes() {
+			byte[] result = new byte[length];
+			int offset = 0;
+			for (ByteBuffer buffer: getBuffers()) {
+				int n = buffer.remaining();
+				buffer.get(result, offset, n);
+				offset += n;
+			}
+			return result;
+		}
+
+		@Override
+		public InputStream openStream() {
+			if (!retain()) {
+				throw new IllegalStateException("payload already released");
+			}
+			return new ByteBufferInputStream(getBuffers()) {
+				private boolean released;
+
+				@Override
+				public void close() throws IOException {
+					super.close();
+					if (!released) {
+						released = true;
+						release();
+					}
+				}
+			};
+		}
+
+		@Override
+		public boolean retain() {
+			while (true) {
+				int count = referenceCount.get();
+				if (count <= 0) {
+					return false;
+				}
+				if (referenceCount.compareAndSet(count, count + 1)) {
+					return true;
+				}
+			}
+		}
+
+		@Override
+		public void release() {
+			if (referenceCount.decrementAndGet() == 0) {
+				free(pages, length);
+			}
+		}
+
+	}
+
+	private final long capacity;
+	private final int pageSize;
+	private final int slabSize;
+	private final LinkedList<ByteBuffer> freePages = new LinkedList<ByteBuffer>();
+	private int slabCount;
+	private long usedPageCount;
+	private long payloadBytes;
+	private long allocationCount;
+	private long releaseCount;
+	private long allocationFailureCount;
+
+	public OffHeapSlabAllocator(long capacity) {
+		this(capacity, DEFAULT_PAGE_SIZE, DEFAULT_SLAB_SIZE);
+	}
+
+	/**
+	 * @param capacity the maximum number of bytes allocated outside of the heap
+	 * @param pageSize the size of the pages a payload is divided into
+	 * @param slabSize the size of the direct buffers allocated at once (a multiple of the page size)
+	 */
+	public OffHeapSlabAllocator(long capacity, int pageSize, int slabSize) {
+		if ((pageSize <= 0) || (slabSize < pageSize) || ((slabSize % pageSize) != 0)) {
+			throw new IllegalArgumentException("invalid page or slab size, pageSize=" + pageSize +
+					", slabSize=" + slabSize);
+		}
+		if (capacity < slabSize) {
+			throw new IllegalArgumentException("capacity must be at least one slab, capacity=" + capacity +
+					", slabSize=" + slabSize);
+		}
+		this.capacity = capacity;
+		this.pageSize = pageSize;
+		this.slabSize = slabSize;
+	}
+
+	/**
+	 * @return the number of bytes (full pages) a payload of the given length occupies
+	 */
+	public long getAllocationSize(int length) {
+		return (long) getPageCount(length) * pageSize;
+	}
+
+	private int getPageCount(int length) {
+		return (length + pageSize - 1) / pageSize;
+	}
+
+	/**
+	 * Copies the data into off-heap pages.
+	 *
+	 * @return the stored payload (with a reference count of one), or null if the capacity is exhausted
+	 */
+	public ICachedBytes allocate(byte[] data) {
+		ByteBuffer[] pages = allocatePages(data.length);
+		if (pages == null) {
+			return null;
+		}
+		int offset = 0;
+		for (ByteBuffer page: pages) {
+			ByteBuffer buffer = page.duplicate();
+			buffer.clear();
+			int n = Math.min(pageSize, data.length - offset);
+			buffer.put(data, offset, n);
+			offset += n;
+		}
+		return new OffHeapCachedBytes(pages, data.length);
+	}
+
+	private synchronized ByteBuffer[] allocatePages(int length) {
+		int pageCount = getPageCount(length);
+		while (freePages.size() < pageCount) {
+			if ((long) (slabCount + 1) * slabSize > capacity) {
+				allocationFailureCount++;
+				return null;
+			}
+			ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+			for (int position = 0; position < slabSize; position += pageSize) {
+				slab.limit(position + pageSize);
+				slab.position(position);
+				freePages.add(slab.slice());
+			}
+			slabCount++;
+		}
+		ByteBuffer[] pages = new ByteBuffer[pageCount];
+		for (int i = 0; i < pageCount; i++) {
+			pages[i] = freePages.removeFirst();
+		}
+		usedPageCount += pageCount;
+		payloadBytes += length;
+		allocationCount++;
+		return pages;
+	}
+
+	private synchronized void free(ByteBuffer[] pages, int length) {
+		for (ByteBuffer page: pages) {
+			freePages.addFirst(page);
+		}
+		usedPageCount -= pages.length;
+		payloadBytes -= length;
+		releaseCount++;
+	}
+
+	/**
+	 * @return the capacity
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the pageSize
+	 */
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * @return the number of bytes allocated as direct buffers so far
+	 */
+	public synchronized long getReservedBytes() {
+		return (long) slabCount * slabSize;
+	}
+
+	/**
+	 * @return the number of bytes occupied by pages in use
+	 */
+	public synchronized long getUsedBytes() {
+		return usedPageCount * pageSize;
+	}
+
+	/**
+	 * @return the number of payload bytes stored
+	 */
+	public synchronized long getPayloadBytes() {
+		return payloadBytes;
+	}
+
+	/**
+	 * @return the number of bytes wasted in partially filled pages
+	 */
+	public synchronized long getFragmentationBytes() {
+		return usedPageCount * pageSize - payloadBytes;
+	}
+
+	public synchronized int getSlabCount() {
+		return slabCount;
+	}
+
+	public synchronized long getAllocationCount() {
+		return allocationCount;
+	}
+
+	public synchronized long getReleaseCount() {
+		return releaseCount;
+	}
+
+	public synchronized long getAllocationFailureCount() {
+		return allocationFailureCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "OffHeapSlabAllocator [capacity=" + capacity + ", pageSize=" + pageSize +
+				", slabCount=" + slabCount + ", usedBytes=" + getUsedBytes() +
+				", payloadBytes=" + payloadBytes + ", allocationCount=" + allocationCount +
+				", releaseCount=" + releaseCount + ", allocationFailureCount=" + allocationFailureCount + "]";
+	}
+
+}
@@ -0,0 +1,122 @@
+package de.siteof.resource.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import de.siteof.resource.IResource;
+import de.siteof.resource.IResourceBytesCallback;
+
+/**
+ * Result of a resource request which is shared by all callers asking for the same resource
+ * while the request is still in progress (request coalescing).
+ * Synchronous callers use {@link #await()}, asynchronous callers register a callback.
+ */
+public class PendingResourceBytes {
+
+	private static final Log log = LogFactory.getLog(PendingResourceBytes.class);
+
+	private final CountDownLatch doneLatch = new CountDownLatch(1);
+	private List<IResourceBytesCallback> callbacks = new ArrayList<IResourceBytesCallback>();
+	private IResource resource;
+	private byte[] data;
+	private Throwable cause;
+
+	/**
+	 * Registers a callback to be notified once the request finished.
+	 * The callback is called immediately if the request already finished.
+	 */
+	public void addCallback(IResourceBytesCallback callback) {
+		synchronized (this) {
+			if (callbacks != null) {
+				callbacks.add(callback);
+				return;
+			}
+		}
+		notifyCallback(callback);
+	}
+
+	/**
+	 * Waits for the request to finish.
+	 *
+	 * @return the shared data (may be null if the resource wasn't found)
+	 * @throws IOException if the shared request failed, the exception of the shared request itself
+	 * if it was one (e.g. a {@link java.io.FileNotFoundException})
+	 */
+	public byte[] await() throws IOException {
+		try {
+			doneLatch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for pending request");
+		}
+		synchronized (this) {
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause != null) {
+				throw new IOException("shared request failed - " + cause, cause);
+			}
+			return data;
+		}
+	}
+
+	public void complete(IResource resource, byte[] data) {
+		finish(resource, data, null);
+	}
+
+	public void fail(IResource resource, Throwable cause) {
+		finish(resource, null, cause);
+	}
+
+	private void finish(IResource resource, byte[] data, Throwable cause) {
+		List<IResourceBytesCallback> callbacks;
+		synchronized (this) {
+			if (this.callbacks == null) {
+				throw new IllegalStateException("pending request already finished");
+			}
+			this.resource = resource;
+			this.data = data;
+			this.cause = cause;
+			callbacks = this.callbacks;
+			this.callbacks = null;
+		}
+		doneLatch.countDown();
+		RuntimeException callbackException = null;
+		for (IResourceBytesCallback callback: callbacks) {
+			// a failing callback must not keep the others from being notified
+			try {
+				notifyCallback(callback);
+			} catch (RuntimeException e) {
+				log.error("pending request callback failed - " + e, e);
+				if (callbackException == null) {
+					callbackException = e;
+				}
+			}
+		}
+		if (callbackException != null) {
+			throw callbackException;
+		}
+	}
+
+	private void notifyCallback(IResourceBytesCallback callback) {
+		IResource resource;
+		byte[] data;
+		Throwable cause;
+		synchronized (this) {
+			resource = this.resource;
+			data = this.data;
+			cause = this.cause;
+		}
+		if (cause != null) {
+			callback.onFailedResourceBytes(resource, cause);
+		} else {
+			callback.onCompleteResourceBytes(resource, data);
+		}
+	}
+
+}
@@ -0,0 +1,180 @@
+package de.siteof.resource.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compresses cached payloads using a fast deflate level. Whether a payload is compressed is decided
+ * per entry: payloads below the minimum size are stored raw, larger payloads are only compressed if
+ * a sample from the start of the payload compresses well (already compressed content like images
+ * usually won't) and the complete result is actually smaller.
+ */
+public class ResourceCompressor {
+
+	public static final int DEFAULT_MIN_SIZE	= 512;
+	public static final int DEFAULT_SAMPLE_SIZE	= 4 * 1024;
+	public static final float DEFAULT_MAX_RATIO	= 0.9f;
+
+	private final int minSize;
+	private final int sampleSize;
+	private final float maxRatio;
+
+	public ResourceCompressor() {
+		this(DEFAULT_MIN_SIZE, DEFAULT_SAMPLE_SIZE, DEFAULT_MAX_RATIO);
+	}
+
+	/**
+	 * @param minSize the minimum payload length to consider compressing
+	 * @param sampleSize the number of bytes used to estimate the compression ratio
+	 * @param maxRatio the maximum ratio of compressed to raw length for the compressed form to be kept
+	 */
+	public ResourceCompressor(int minSize, int sampleSize, float maxRatio) {
+		if ((sampleSize <= 0) || (maxRatio <= 0) || (maxRatio > 1)) {
+			throw new IllegalArgumentException("invalid sample size or ratio, sampleSize=" + sampleSize +
+					", maxRatio=" + maxRatio);
+		}
+		this.minSize = minSize;
+		this.sampleSize = sampleSize;
+		this.maxRatio = maxRatio;
+	}
+
+	/**
+	 * @return the compressed payload, or null if the payload should be stored raw
+	 */
+	public byte[] compress(byte[] data) {
+		if (data.length < minSize) {
+			return null;
+		}
+		if ((data.length > sampleSize) && (!isCompressible(data, sampleSize))) {
+			return null;
+		}
+		int maxLength = (int) (data.length * maxRatio);
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(maxLength, 64 * 1024));
+			byte[] buffer = new byte[4096];
+			while (!deflater.finished()) {
+				int count = deflater.deflate(buffer);
+				out.write(buffer, 0, count);
+				if (out.size() > maxLength) {
+					return null;
+				}
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Decides whether to compress a payload of unknown length while it is being written, based on its
+	 * first chunk. Unlike {@link #compress(byte[])} the final size can't be checked.
+	 *
+	 * @return a stream compressing into the given stream, or null if the payload should be stored raw
+	 */
+	public DeflaterOutputStream compress(OutputStream out, byte[] firstChunk) {
+		if ((firstChunk.length < minSize) || (!isCompressible(firstChunk, Math.min(firstChunk.length, sampleSize)))) {
+			return null;
+		}
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		return new DeflaterOutputStream(out, deflater) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					deflater.end();
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return true if the first bytes of the data compress within the ratio
+	 */
+	private boolean isCompressible(byte[] data, int length) {
+		int maxLength = (int) (length * maxRatio);
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			byte[] buffer = new byte[4096];
+			int compressedLength = 0;
+			while (!deflater.finished()) {
+				compressedLength += deflater.deflate(buffer);
+				if (compressedLength > maxLength) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * @param length the length of the raw payload
+	 * @return the raw payload
+	 */
+	public static byte[] decompress(byte[] compressed, int length) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed);
+			byte[] result = new byte[length];
+			int offset = 0;
+			while ((offset < length) && (!inflater.finished())) {
+				int count = inflater.inflate(result, offset, length - offset);
+				if ((count == 0) && (inflater.needsInput())) {
+					break;
+				}
+				offset += count;
+			}
+			if (offset != length) {
+				throw new IOException("compressed payload truncated, expected " + length + " bytes, got " + offset);
+			}
+			return result;
+		} catch (DataFormatException e) {
+			throw new IOException("compressed payload corrupt - " + e, e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * @return a stream decompressing the given stream while it is being read
+	 */
+	public static InputStream decompress(InputStream in) {
+		return new InflaterInputStream(in);
+	}
+
+	/**
+	 * @return the minSize
+	 */
+	public int getMinSize() {
+		return minSize;
+	}
+
+	/**
+	 * @return the sampleSize
+	 */
+	public int getSampleSize() {
+		return sampleSize;
+	}
+
+	/**
+	 * @return the maxRatio
+	 */
+	public float getMaxRatio() {
+		return maxRatio;
+	}
+
+}
@@ -0,0 +1,126 @@
+package de.siteof.resource.util;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import de.siteof.resource.IResource;
+
+/**
+ * Registry of the resource handles created by a loader, returning one canonical handle per name.
+ * Lookups don't lock, creating a missing handle locks only one of several stripes, so that
+ * concurrent callers asking for the same name never create two handles.
+ * Handles may be held softly, in which case they are removed once collected.
+ */
+public class ResourceHandleMap {
+
+	public static interface IResourceFactory {
+
+		/**
+		 * @return the handle for the given name (may be null)
+		 */
+		IResource createResource(String name) throws IOException;
+
+	}
+
+	public static interface ICollectionListener {
+
+		/**
+		 * Called when a softly held handle was collected by the garbage collector.
+		 */
+		void onCollected(String name);
+
+	}
+
+	private static class HandleReference extends SoftReference<IResource> {
+
+		private final String name;
+		private final IResource strongReferent;
+
+		public HandleReference(String name, IResource resource, boolean soft, ReferenceQueue<IResource> queue) {
+			super(resource, queue);
+			this.name = name;
+			this.strongReferent = (soft ? null : resource);
+		}
+
+		@Override
+		public IResource get() {
+			return (strongReferent != null ? strongReferent : super.get());
+		}
+
+	}
+
+	private static final int STRIPE_COUNT	= 64;
+
+	private final ConcurrentMap<String, HandleReference> handles = new ConcurrentHashMap<String, HandleReference>();
+	private final ReferenceQueue<IResource> collectedHandles = new ReferenceQueue<IResource>();
+	private final Object[] stripes = new Object[STRIPE_COUNT];
+	private final boolean soft;
+	private final ICollectionListener collectionListener;
+
+	/**
+	 * @param soft true if the handles should be held softly
+	 * @param collectionListener notified about collected handles (may be null)
+	 */
+	public ResourceHandleMap(boolean soft, ICollectionListener collectionListener) {
+		this.soft = soft;
+		this.collectionListener = collectionListener;
+		for (int i = 0; i < STRIPE_COUNT; i++) {
+			stripes[i] = new Object();
+		}
+	}
+
+	/**
+	 * @return the registered handle, or null
+	 */
+	public IResource get(String name) {
+		HandleReference reference = handles.get(name);
+		return (reference != null ? reference.get() : null);
+	}
+
+	/**
+	 * Returns the registered handle, or creates and registers it using the factory.
+	 * The factory is called at most once at a time per name.
+	 */
+	public IResource getOrCreate(String name, IResourceFactory factory) throws IOException {
+		IResource resource = get(name);
+		if (resource != null) {
+			return resource;
+		}
+		expungeCollected();
+		synchronized (stripes[(name.hashCode() & 0x7fffffff) % STRIPE_COUNT]) {
+			resource = get(name);
+			if (resource == null) {
+				resource = factory.createResource(name);
+				if (resource != null) {
+					handles.put(name, new HandleReference(name, resource, soft, collectedHandles));
+				}
+			}
+		}
+		return resource;
+	}
+
+	public void remove(String name) {
+		handles.remove(name);
+	}
+
+	public int size() {
+		expungeCollected();
+		return handles.size();
+	}
+
+	private void expungeCollected() {
+		while (true) {
+			HandleReference reference = (HandleReference) collectedHandles.poll();
+			if (reference == null) {
+				break;
+			}
+			if ((handles.remove(reference.name, reference)) && (collectionListener != null)) {
+				collectionListener.onCollected(reference.name);
+			}
+		}
+	}
+
+}
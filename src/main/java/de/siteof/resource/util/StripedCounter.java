@@ -0,0 +1,54 @@
+package de.siteof.resource.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter which spreads concurrent updates over several cells to avoid contention,
+ * the value is the sum of all cells. Reads are therefore more expensive than updates.
+ */
+public class StripedCounter {
+
+	/**
+	 * Distance between two cells (in longs) so that they don't share a cache line.
+	 */
+	private static final int CELL_SPACING = 8;
+
+	private static final int STRIPE_COUNT = getStripeCount();
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPE_COUNT * CELL_SPACING);
+
+	private static int getStripeCount() {
+		int processors = Runtime.getRuntime().availableProcessors();
+		int result = 1;
+		while (result < processors * 2) {
+			result <<= 1;
+		}
+		return result;
+	}
+
+	private static int getCellIndex() {
+		long id = Thread.currentThread().getId();
+		int hash = (int) (id ^ (id >>> 32));
+		hash ^= (hash >>> 16);
+		hash *= 0x85ebca6b;
+		hash ^= (hash >>> 13);
+		return (hash & (STRIPE_COUNT - 1)) * CELL_SPACING;
+	}
+
+	public void add(long delta) {
+		cells.addAndGet(getCellIndex(), delta);
+	}
+
+	public void increment() {
+		add(1);
+	}
+
+	public long sum() {
+		long result = 0;
+		for (int i = 0; i < STRIPE_COUNT; i++) {
+			result += cells.get(i * CELL_SPACING);
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,102 @@
+package de.siteof.resource.util;
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import de.siteof.resource.event.IResourceListener;
+import de.siteof.resource.event.MetaResourceLoaderEvent;
+import de.siteof.resource.event.NotModifiedResourceLoaderEvent;
+import de.siteof.resource.event.RedirectResourceLoaderEvent;
+import de.siteof.resource.event.ResourceLoaderEvent;
+
+/**
+ * Forwards the events of an asynchronous resource request while writing every chunk to a sink.
+ * The sink is only committed once the request completed, failed requests abort the sink.
+ * If the sink itself fails, the events are still forwarded but nothing is committed.
+ * A not-modified response carries no data, the sink is discarded and the response is left to the
+ * listener handling it.
+ */
+public class TeeResourceBytesListener implements IResourceListener<ResourceLoaderEvent<byte[]>> {
+
+	private static final Log log = LogFactory.getLog(TeeResourceBytesListener.class);
+
+	private final IResourceListener<ResourceLoaderEvent<byte[]>> listener;
+	private final IResourceBytesSink sink;
+	private boolean sinkClosed;
+
+	/**
+	 * @param listener the listener to forward the events to (may be null)
+	 * @param sink the sink receiving the chunks
+	 */
+	public TeeResourceBytesListener(IResourceListener<ResourceLoaderEvent<byte[]>> listener,
+			IResourceBytesSink sink) {
+		this.listener = listener;
+		this.sink = sink;
+	}
+
+	@Override
+	public void onResourceEvent(ResourceLoaderEvent<byte[]> event) {
+		if (event instanceof MetaResourceLoaderEvent) {
+			if (!sinkClosed) {
+				sink.setMetaData(((MetaResourceLoaderEvent<?>) event).getMetaData());
+			}
+		} else if (event instanceof NotModifiedResourceLoaderEvent) {
+			discardSink();
+		} else if ((event instanceof RedirectResourceLoaderEvent) || (event.hasStatusMessage())) {
+			// no data
+		} else if (event.isFailed()) {
+			abortSink(event.getCause());
+		} else {
+			byte[] chunk = event.getResult();
+			if (chunk != null) {
+				writeSink(chunk);
+			}
+			if (event.isComplete()) {
+				commitSink();
+			}
+		}
+		if (listener != null) {
+			listener.onResourceEvent(event);
+		}
+	}
+
+	private void writeSink(byte[] chunk) {
+		if (!sinkClosed) {
+			try {
+				sink.write(chunk);
+			} catch (IOException e) {
+				log.warn("failed to write chunk to sink - " + e, e);
+				abortSink(e);
+			}
+		}
+	}
+
+	private void commitSink() {
+		if (!sinkClosed) {
+			sinkClosed = true;
+			try {
+				sink.commit();
+			} catch (IOException e) {
+				log.warn("failed to commit sink - " + e, e);
+				sink.abort(e);
+			}
+		}
+	}
+
+	private void discardSink() {
+		if (!sinkClosed) {
+			sinkClosed = true;
+			sink.discard();
+		}
+	}
+
+	private void abortSink(Throwable cause) {
+		if (!sinkClosed) {
+			sinkClosed = true;
+			sink.abort(cause);
+		}
+	}
+
+}
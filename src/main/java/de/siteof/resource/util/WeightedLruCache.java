@@ -0,0 +1,200 @@
+package de.siteof.resource.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Size bounded cache which accounts an explicit weight per entry (e.g. the payload length in bytes)
+ * and evicts the least recently used entries once the total weight exceeds the configured maximum.
+ * The eviction listener is always notified outside of the internal lock.
+ */
+public class WeightedLruCache<K, V> {
+
+	public static interface IEvictionListener<K, V> {
+
+		void onEviction(K key, V value);
+
+	}
+
+	private static class Entry<K, V> {
+
+		private final K key;
+		private final V value;
+		private final long weight;
+
+		public Entry(K key, V value, long weight) {
+			this.key = key;
+			this.value = value;
+			this.weight = weight;
+		}
+
+	}
+
+	private final Map<K, Entry<K, V>> entryMap = new LinkedHashMap<K, Entry<K, V>>(16, 0.75f, true);
+	private final IEvictionListener<K, V> evictionListener;
+	private long maxWeight;
+	private long weight;
+
+	public WeightedLruCache(long maxWeight, IEvictionListener<K, V> evictionListener) {
+		if (maxWeight <= 0) {
+			throw new IllegalArgumentException("maxWeight must be positive, maxWeight=" + maxWeight);
+		}
+		this.maxWeight = maxWeight;
+		this.evictionListener = evictionListener;
+	}
+
+	/**
+	 * Returns the value for the given key and marks it as the most recently used entry.
+	 */
+	public V get(K key) {
+		synchronized (this) {
+			Entry<K, V> entry = entryMap.get(key);
+			return (entry != null ? entry.value : null);
+		}
+	}
+
+	/**
+	 * Adds or replaces the value for the given key. Entries heavier than the maximum weight
+	 * are evicted straight away.
+	 */
+	public void put(K key, V value, long weight) {
+		List<Entry<K, V>> evicted;
+		synchronized (this) {
+			Entry<K, V> previous = entryMap.put(key, new Entry<K, V>(key, value, weight));
+			if (previous != null) {
+				this.weight -= previous.weight;
+			}
+			this.weight += weight;
+			evicted = evict();
+			if ((previous != null) && (previous.value != value)) {
+				evicted.add(previous);
+			}
+		}
+		notifyEvicted(evicted);
+	}
+
+	/**
+	 * Accounts a new weight for the given entry, as long as the key still maps to an equal value.
+	 * Evicts entries if the cache is now over budget.
+	 *
+	 * @return false if the key doesn't map to the value (anymore)
+	 */
+	public boolean updateWeight(K key, V value, long weight) {
+		List<Entry<K, V>> evicted;
+		synchronized (this) {
+			Entry<K, V> entry = entryMap.get(key);
+			if ((entry == null) || (!entry.value.equals(value))) {
+				return false;
+			}
+			entryMap.put(key, new Entry<K, V>(key, entry.value, weight));
+			this.weight += weight - entry.weight;
+			evicted = evict();
+		}
+		notifyEvicted(evicted);
+		return true;
+	}
+
+	public V remove(K key) {
+		synchronized (this) {
+			Entry<K, V> entry = entryMap.remove(key);
+			if (entry != null) {
+				this.weight -= entry.weight;
+				return entry.value;
+			}
+			return null;
+		}
+	}
+
+	public void clear() {
+		synchronized (this) {
+			entryMap.clear();
+			weight = 0;
+		}
+	}
+
+	/**
+	 * Evicts the least recently used entry, e.g. to make room in an external store.
+	 *
+	 * @return false if the cache was empty
+	 */
+	public boolean evictEldest() {
+		Entry<K, V> entry;
+		synchronized (this) {
+			Iterator<Entry<K, V>> it = entryMap.values().iterator();
+			if (!it.hasNext()) {
+				return false;
+			}
+			entry = it.next();
+			it.remove();
+			weight -= entry.weight;
+		}
+		if (evictionListener != null) {
+			evictionListener.onEviction(entry.key, entry.value);
+		}
+		return true;
+	}
+
+	private List<Entry<K, V>> evict() {
+		List<Entry<K, V>> result = new ArrayList<Entry<K, V>>();
+		Iterator<Entry<K, V>> it = entryMap.values().iterator();
+		while ((weight > maxWeight) && (it.hasNext())) {
+			Entry<K, V> entry = it.next();
+			it.remove();
+			weight -= entry.weight;
+			result.add(entry);
+		}
+		return result;
+	}
+
+	private void notifyEvicted(List<Entry<K, V>> evicted) {
+		if (evictionListener != null) {
+			for (Entry<K, V> entry: evicted) {
+				evictionListener.onEviction(entry.key, entry.value);
+			}
+		}
+	}
+
+	public int size() {
+		synchronized (this) {
+			return entryMap.size();
+		}
+	}
+
+	/**
+	 * @return the current total weight of all entries
+	 */
+	public long getWeight() {
+		synchronized (this) {
+			return weight;
+		}
+	}
+
+	/**
+	 * @return the maxWeight
+	 */
+	public long getMaxWeight() {
+		synchronized (this) {
+			return maxWeight;
+		}
+	}
+
+	/**
+	 * Changes the maximum weight, evicting entries if the cache is now over budget.
+	 * @param maxWeight the maxWeight to set
+	 */
+	public void setMaxWeight(long maxWeight) {
+		if (maxWeight <= 0) {
+			throw new IllegalArgumentException("maxWeight must be positive, maxWeight=" + maxWeight);
+		}
+		List<Entry<K, V>> evicted;
+		synchronized (this) {
+			this.maxWeight = maxWeight;
+			evicted = evict();
+		}
+		notifyEvicted(evicted);
+	}
+
+}
@@ -0,0 +1,161 @@
+package de.siteof.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.siteof.resource.test.TemporaryDirectory;
+import de.siteof.resource.util.CacheStatisticsCounter;
+
+public class FileCacheGarbageCollectorTest {
+
+	private TemporaryDirectory directory;
+	private FileCacheGarbageCollector garbageCollector;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = new TemporaryDirectory("file-cache-gc-");
+	}
+
+	@After
+	public void tearDown() {
+		closeGarbageCollector();
+		directory.delete();
+	}
+
+	private void closeGarbageCollector() {
+		if (garbageCollector != null) {
+			garbageCollector.close();
+			garbageCollector = null;
+		}
+	}
+
+	private FileCacheGarbageCollector createGarbageCollector(int maxFileCount) {
+		return createGarbageCollector(maxFileCount, false);
+	}
+
+	private FileCacheGarbageCollector createGarbageCollector(int maxFileCount, boolean shared) {
+		closeGarbageCollector();
+		garbageCollector = new FileCacheGarbageCollector(directory.getPath(), 0, maxFileCount,
+				new CacheStatisticsCounter());
+		garbageCollector.setShared(shared);
+		return garbageCollector;
+	}
+
+	private void write(String name) throws IOException {
+		garbageCollector.triggerBeforeWrite(name, 10);
+		createFile(name);
+		garbageCollector.triggerAfterWrite(name, 10);
+	}
+
+	private void createFile(String name) throws IOException {
+		FileOutputStream out = new FileOutputStream(directory.getFile(name));
+		try {
+			out.write(new byte[10]);
+		} finally {
+			out.close();
+		}
+	}
+
+	private void assertFiles(String... names) {
+		for (String name: new String[] { "f0", "f1", "f2", "f3", "f4", "w" }) {
+			assertEquals(name, Arrays.asList(names).contains(name), directory.getFile(name).exists());
+		}
+	}
+
+	@Test
+	public void testLeastRecentlyUsedFilesAreEvicted() throws IOException {
+		createGarbageCollector(4);
+		for (int i = 0; i < 4; i++) {
+			write("f" + i);
+		}
+		garbageCollector.triggerAccess("f0");
+		write("f4");
+		garbageCollector.reclaim();
+		assertEquals(3, garbageCollector.getEntryCount());
+		// waits for the reclaimer
+		closeGarbageCollector();
+		assertFiles("f0", "f3", "f4");
+	}
+
+	@Test
+	public void testFileBeingWrittenIsNotEvicted() throws IOException {
+		createGarbageCollector(3);
+		garbageCollector.triggerBeforeWrite("w", 10);
+		createFile("w");
+		for (int i = 0; i < 3; i++) {
+			write("f" + i);
+		}
+		garbageCollector.reclaim();
+		garbageCollector.triggerAfterWrite("w", 10);
+		closeGarbageCollector();
+		assertFiles("w", "f2");
+	}
+
+	@Test
+	public void testIndexIsLoadedFromJournal() throws IOException {
+		createGarbageCollector(0);
+		for (int i = 0; i < 3; i++) {
+			write("f" + i);
+		}
+		closeGarbageCollector();
+		// not accounted, as the directory isn't scanned
+		createFile("f3");
+		createGarbageCollector(0);
+		assertEquals(3, garbageCollector.getEntryCount());
+		closeGarbageCollector();
+
+		// recovered by scanning the directory without a checkpoint
+		assertTrue(directory.getFile(FileCacheJournal.CHECKPOINT_FILE_NAME).delete());
+		createGarbageCollector(0);
+		assertEquals(4, garbageCollector.getEntryCount());
+		assertEquals(40, garbageCollector.getTotalSize());
+	}
+
+	@Test
+	public void testSharedAccessIsRecordedWithNextWrite() throws IOException {
+		createGarbageCollector(0, true);
+		for (int i = 0; i < 3; i++) {
+			write("f" + i);
+		}
+		File journalFile = directory.getFile(FileCacheJournal.JOURNAL_FILE_NAME);
+		long journalLength = journalFile.length();
+		garbageCollector.triggerAccess("f0");
+		assertEquals("hits don't write the journal", journalLength, journalFile.length());
+		write("f3");
+
+		Map<String, FileCacheJournal.Entry> entries = new LinkedHashMap<String, FileCacheJournal.Entry>(16, 0.75f, true);
+		assertTrue(new FileCacheJournal(directory.getDirectory()).load(entries));
+		assertEquals(Arrays.asList("f1", "f2", "f0", "f3"), new ArrayList<String>(entries.keySet()));
+	}
+
+	@Test
+	public void testSharedFileWrittenElsewhereIsNotEvicted() throws IOException {
+		createGarbageCollector(3, true);
+		for (int i = 0; i < 3; i++) {
+			write("f" + i);
+		}
+		// another process starts writing w
+		FileCacheJournal journal = new FileCacheJournal(directory.getDirectory());
+		journal.recordWrite("w", 10, System.currentTimeMillis());
+		journal.close();
+		createFile("w");
+
+		write("f3");
+		write("f4");
+		garbageCollector.reclaim();
+		assertFiles("w", "f4");
+	}
+
+}
@@ -0,0 +1,230 @@
+package de.siteof.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.siteof.resource.test.TemporaryDirectory;
+
+public class FileCacheJournalTest {
+
+	private TemporaryDirectory directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = new TemporaryDirectory("file-cache-journal-");
+	}
+
+	@After
+	public void tearDown() {
+		directory.delete();
+	}
+
+	private static Map<String, FileCacheJournal.Entry> createEntries() {
+		return new LinkedHashMap<String, FileCacheJournal.Entry>(16, 0.75f, true);
+	}
+
+	private Map<String, FileCacheJournal.Entry> load() throws IOException {
+		Map<String, FileCacheJournal.Entry> entries = createEntries();
+		assertTrue("checkpoint expected", new FileCacheJournal(directory.getDirectory()).load(entries));
+		return entries;
+	}
+
+	/**
+	 * Writes an empty checkpoint and the records a to e.
+	 */
+	private void writeJournal() throws IOException {
+		FileCacheJournal journal = new FileCacheJournal(directory.getDirectory());
+		journal.writeCheckpoint(createEntries());
+		for (String name: new String[] { "a", "b", "c", "d", "e" }) {
+			journal.recordPut(name, name.charAt(0), 1000);
+		}
+		journal.close();
+	}
+
+	private File getJournalFile() {
+		return directory.getFile(FileCacheJournal.JOURNAL_FILE_NAME);
+	}
+
+	private List<String> getFileNames() {
+		List<String> names = new ArrayList<String>(Arrays.asList(directory.getDirectory().list()));
+		Collections.sort(names);
+		return names;
+	}
+
+	private static void flipByte(File file, long position) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.seek(position);
+			int b = randomAccessFile.read();
+			randomAccessFile.seek(position);
+			randomAccessFile.write(b ^ 0xff);
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	@Test
+	public void testReplayKeepsAccessOrder() throws IOException {
+		FileCacheJournal journal = new FileCacheJournal(directory.getDirectory());
+		journal.writeCheckpoint(createEntries());
+		journal.recordPut("a", 10, 1000);
+		journal.recordPut("b", 20, 1001);
+		journal.recordPut("c", 30, 1002);
+		journal.recordAccess("a", 1003);
+		journal.recordRemove("b");
+		journal.close();
+
+		Map<String, FileCacheJournal.Entry> entries = load();
+		assertEquals(Arrays.asList("c", "a"), new ArrayList<String>(entries.keySet()));
+		assertEquals(10, entries.get("a").size);
+		assertEquals(1003, entries.get("a").lastAccess);
+	}
+
+	@Test
+	public void testCheckpointReplacesJournal() throws IOException {
+		writeJournal();
+		Map<String, FileCacheJournal.Entry> entries = load();
+		FileCacheJournal journal = new FileCacheJournal(directory.getDirectory());
+		journal.writeCheckpoint(entries);
+		journal.close();
+		assertEquals(0, getJournalFile().length());
+		assertEquals(Arrays.asList("a", "b", "c", "d", "e"), new ArrayList<String>(load().keySet()));
+		// the temporary checkpoint replaced the previous one
+		assertEquals(Arrays.asList(FileCacheJournal.CHECKPOINT_FILE_NAME, FileCacheJournal.JOURNAL_FILE_NAME),
+				getFileNames());
+	}
+
+	@Test
+	public void testTruncatedTailIsIgnored() throws IOException {
+		writeJournal();
+		RandomAccessFile journalFile = new RandomAccessFile(getJournalFile(), "rw");
+		try {
+			journalFile.setLength(journalFile.length() - 3);
+		} finally {
+			journalFile.close();
+		}
+		FileCacheJournal journal = new FileCacheJournal(directory.getDirectory());
+		Map<String, FileCacheJournal.Entry> entries = createEntries();
+		assertTrue(journal.load(entries));
+		assertEquals(Arrays.asList("a", "b", "c", "d"), new ArrayList<String>(entries.keySet()));
+		assertTrue(journal.isCheckpointRequired());
+	}
+
+	@Test
+	public void testCorruptTailIsIgnored() throws IOException {
+		writeJournal();
+		// within the last record
+		flipByte(getJournalFile(), getJournalFile().length() - 22);
+		FileCacheJournal journal = new FileCacheJournal(directory.getDirectory());
+		Map<String, FileCacheJournal.Entry> entries = createEntries();
+		assertTrue(journal.load(entries));
+		assertEquals(Arrays.asList("a", "b", "c", "d"), new ArrayList<String>(entries.keySet()));
+		assertTrue(journal.isCheckpointRequired());
+	}
+
+	@Test
+	public void testCorruptCheckpointIsRejected() throws IOException {
+		writeJournal();
+		Map<String, FileCacheJournal.Entry> entries = load();
+		FileCacheJournal journal = new FileCacheJournal(directory.getDirectory());
+		journal.writeCheckpoint(entries);
+		journal.close();
+		// within the size of the first entry
+		flipByte(directory.getFile(FileCacheJournal.CHECKPOINT_FILE_NAME), 18);
+		entries = createEntries();
+		assertFalse(new FileCacheJournal(directory.getDirectory()).load(entries));
+		assertTrue(entries.isEmpty());
+	}
+
+	@Test
+	public void testMissingCheckpoint() throws IOException {
+		assertFalse(new FileCacheJournal(directory.getDirectory()).load(createEntries()));
+	}
+
+	@Test
+	public void testCommitKeepsRecordsAppendedMeanwhile() throws IOException {
+		writeJournal();
+		FileCacheJournal journal = new FileCacheJournal(directory.getDirectory());
+		Map<String, FileCacheJournal.Entry> entries = createEntries();
+		assertTrue(journal.load(entries));
+		long position = journal.getPosition();
+		int recordCount = journal.getRecordCount();
+		File tempFile = journal.writeCheckpointFile(entries);
+		journal.recordPut("f", 60, 1000);
+		journal.recordRemove("a");
+		journal.commitCheckpoint(tempFile, position, recordCount);
+		assertEquals(2, journal.getRecordCount());
+		journal.close();
+		assertFalse(tempFile.exists());
+
+		entries = load();
+		assertEquals(Arrays.asList("b", "c", "d", "e", "f"), new ArrayList<String>(entries.keySet()));
+	}
+
+	@Test
+	public void testWriteMarker() throws IOException {
+		FileCacheJournal journal = new FileCacheJournal(directory.getDirectory());
+		journal.writeCheckpoint(createEntries());
+		journal.recordWrite("a", 10, 1000);
+		journal.recordWrite("b", 20, 1001);
+		journal.recordPut("b", 20, 1002);
+		journal.close();
+
+		Map<String, FileCacheJournal.Entry> entries = load();
+		assertEquals(1000, entries.get("a").writingSince);
+		assertEquals(0, entries.get("b").writingSince);
+
+		// kept by the checkpoint
+		journal = new FileCacheJournal(directory.getDirectory());
+		journal.writeCheckpoint(entries);
+		journal.close();
+		assertEquals(1000, load().get("a").writingSince);
+	}
+
+	@Test
+	public void testVersion1Checkpoint() throws IOException {
+		CRC32 checksum = new CRC32();
+		DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+				new FileOutputStream(directory.getFile(FileCacheJournal.CHECKPOINT_FILE_NAME)), checksum));
+		try {
+			out.writeInt(0x53524349);
+			out.writeInt(1);
+			out.writeInt(1);
+			out.writeUTF("a");
+			out.writeLong(10);
+			out.writeLong(1000);
+			out.flush();
+			out.writeLong(checksum.getValue());
+		} finally {
+			out.close();
+		}
+		Map<String, FileCacheJournal.Entry> entries = load();
+		FileCacheJournal.Entry entry = entries.get("a");
+		assertNotNull(entry);
+		assertEquals(10, entry.size);
+		assertEquals(0, entry.writingSince);
+		assertNull(entries.get("b"));
+	}
+
+}
@@ -0,0 +1,246 @@
+package de.siteof.resource;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.siteof.resource.test.TemporaryDirectory;
+import de.siteof.resource.util.CacheStatisticsCounter;
+import de.siteof.resource.util.MappedFileReader;
+
+public class FileCacheSegmentStoreTest {
+
+	/**
+	 * The length of the records written by {@link #publish(FileCacheSegmentStore, String, byte[])}
+	 * for the keys k0 to k9 and 1000 bytes of content.
+	 */
+	private static final int RECORD_LENGTH = 1025;
+
+	private TemporaryDirectory directory;
+	private CacheStatisticsCounter statistics;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = new TemporaryDirectory("file-cache-segments-");
+		statistics = new CacheStatisticsCounter();
+	}
+
+	@After
+	public void tearDown() {
+		directory.delete();
+	}
+
+	private FileCacheSegmentStore createStore(long segmentSize, long maxTotalSize) {
+		return new FileCacheSegmentStore(directory.getDirectory(), segmentSize, maxTotalSize, 0, statistics);
+	}
+
+	private static byte[] getData(String key, int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (i * 7 + key.hashCode());
+		}
+		return data;
+	}
+
+	private static void publish(FileCacheSegmentStore store, String key, byte[] data) throws IOException {
+		IFileCacheOutput output = store.createOutput(key);
+		output.getOutputStream().write(data);
+		output.publish();
+	}
+
+	private static byte[] read(FileCacheSegmentStore store, String key, MappedFileReader mappedFileReader)
+			throws IOException {
+		InputStream in = store.openStream(key, mappedFileReader);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int count;
+			while ((count = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, count);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void flipByte(File file, long position) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.seek(position);
+			int b = randomAccessFile.read();
+			randomAccessFile.seek(position);
+			randomAccessFile.write(b ^ 0xff);
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	private String[] getSegmentFileNames() {
+		String[] names = directory.getDirectory().list();
+		Arrays.sort(names);
+		return names;
+	}
+
+	@Test
+	public void testIndexIsRebuiltOnRestart() throws IOException {
+		FileCacheSegmentStore store = createStore(1024 * 1024, 0);
+		for (int i = 0; i < 3; i++) {
+			publish(store, "k" + i, getData("k" + i, 1000));
+		}
+		assertTrue(store.delete("k1"));
+		store.close();
+
+		store = createStore(1024 * 1024, 0);
+		assertEquals(2, store.getEntryCount());
+		assertArrayEquals(getData("k0", 1000), read(store, "k0", null));
+		assertArrayEquals(getData("k2", 1000), read(store, "k2", null));
+		assertEquals(1000, store.getLength("k2"));
+		assertFalse("removed by the tombstone", store.exists("k1"));
+	}
+
+	@Test
+	public void testTornTailIsTruncated() throws IOException {
+		FileCacheSegmentStore store = createStore(1024 * 1024, 0);
+		publish(store, "k0", getData("k0", 1000));
+		publish(store, "k1", getData("k1", 1000));
+		store.close();
+		File segmentFile = directory.getFile(getSegmentFileNames()[0]);
+		RandomAccessFile file = new RandomAccessFile(segmentFile, "rw");
+		try {
+			file.setLength(file.length() - 5);
+		} finally {
+			file.close();
+		}
+
+		store = createStore(1024 * 1024, 0);
+		assertTrue(store.exists("k0"));
+		assertFalse(store.exists("k1"));
+		assertEquals(RECORD_LENGTH, segmentFile.length());
+		publish(store, "k2", getData("k2", 1000));
+		store.close();
+
+		store = createStore(1024 * 1024, 0);
+		assertArrayEquals(getData("k2", 1000), read(store, "k2", null));
+		assertEquals(2, store.getEntryCount());
+	}
+
+	@Test
+	public void testCompactionKeepsAccessedEntries() throws IOException {
+		// two records per segment
+		FileCacheSegmentStore store = createStore(2 * RECORD_LENGTH + 50, 5000);
+		for (int i = 0; i < 4; i++) {
+			publish(store, "k" + i, getData("k" + i, 1000));
+		}
+		store.triggerAccess("k0");
+		assertEquals(2, getSegmentFileNames().length);
+		publish(store, "k4", getData("k4", 1000));
+
+		// the first segment was compacted, k0 got a second chance
+		assertEquals(4, store.getEntryCount());
+		assertTrue(store.exists("k0"));
+		assertFalse(store.exists("k1"));
+		assertEquals(4 * RECORD_LENGTH, store.getTotalSize());
+		assertEquals(1, statistics.snapshot(0, 0).getEvictionCount(CacheEvictionCause.SIZE));
+		assertFalse(Arrays.asList(getSegmentFileNames()).contains("00000001.seg"));
+		assertArrayEquals(getData("k0", 1000), read(store, "k0", null));
+		store.close();
+
+		store = createStore(2 * RECORD_LENGTH + 50, 5000);
+		assertEquals(4, store.getEntryCount());
+		assertArrayEquals(getData("k0", 1000), read(store, "k0", null));
+	}
+
+	@Test
+	public void testCorruptEntryIsDroppedByCompaction() throws IOException {
+		FileCacheSegmentStore store = createStore(2 * RECORD_LENGTH + 50, 5000);
+		for (int i = 0; i < 4; i++) {
+			publish(store, "k" + i, getData("k" + i, 1000));
+		}
+		store.triggerAccess("k0");
+		// within the content of k0, which isn't verified when the first segment is read
+		flipByte(directory.getFile("00000001.seg"), 100);
+		publish(store, "k4", getData("k4", 1000));
+
+		assertFalse("not copied", store.exists("k0"));
+		assertFalse(store.exists("k1"));
+		assertEquals(3, store.getEntryCount());
+		assertEquals(3 * RECORD_LENGTH, store.getTotalSize());
+		store.close();
+
+		store = createStore(2 * RECORD_LENGTH + 50, 5000);
+		assertEquals(3, store.getEntryCount());
+		assertFalse(store.exists("k0"));
+	}
+
+	@Test
+	public void testClosedStoreIsRejected() throws IOException {
+		FileCacheSegmentStore store = createStore(1024 * 1024, 0);
+		publish(store, "k0", getData("k0", 1000));
+		assertArrayEquals(getData("k0", 1000), read(store, "k0", null));
+		store.close();
+		store.close();
+		assertFalse(store.exists("k0"));
+		assertFalse(store.delete("k0"));
+		try {
+			store.openStream("k0", null);
+			fail("closed");
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			store.createOutput("k1");
+			fail("closed");
+		} catch (IOException e) {
+			// expected
+		}
+
+		store = createStore(1024 * 1024, 0);
+		assertArrayEquals(getData("k0", 1000), read(store, "k0", null));
+		store.close();
+	}
+
+	@Test
+	public void testLargeEntry() throws IOException {
+		FileCacheSegmentStore store = createStore(1024 * 1024, 0);
+		byte[] data = getData("large", 3 * 1024 * 1024 / 2);
+		publish(store, "large", data);
+		assertArrayEquals(data, read(store, "large", null));
+		assertEquals("no temporary file left", 1, getSegmentFileNames().length);
+	}
+
+	@Test
+	public void testMappedRead() throws IOException {
+		FileCacheSegmentStore store = createStore(1024 * 1024, 0);
+		publish(store, "k0", getData("k0", 1000));
+		publish(store, "k1", getData("k1", 100));
+		MappedFileReader mappedFileReader = new MappedFileReader(512, 4);
+		assertArrayEquals(getData("k0", 1000), read(store, "k0", mappedFileReader));
+		assertArrayEquals(getData("k1", 100), read(store, "k1", mappedFileReader));
+	}
+
+	@Test
+	public void testDiscardedOutput() throws IOException {
+		FileCacheSegmentStore store = createStore(1024 * 1024, 0);
+		publish(store, "k0", getData("k0", 1000));
+		IFileCacheOutput output = store.createOutput("k0");
+		output.getOutputStream().write(getData("k1", 1000));
+		output.discard();
+		assertArrayEquals(getData("k0", 1000), read(store, "k0", null));
+		assertEquals(RECORD_LENGTH, store.getTotalSize());
+	}
+
+}
@@ -0,0 +1,297 @@
+package de.siteof.resource;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.siteof.resource.event.IResourceListener;
+import de.siteof.resource.event.MetaResourceLoaderEvent;
+import de.siteof.resource.event.NotModifiedResourceLoaderEvent;
+import de.siteof.resource.event.ResourceLoaderEvent;
+import de.siteof.resource.test.OriginResourceLoader;
+import de.siteof.resource.test.TemporaryDirectory;
+import de.siteof.resource.util.ExpiryPolicy;
+import de.siteof.task.SynchronousTaskManager;
+
+public class FileCachedResourceTest {
+
+	private static final String NAME = "http://origin/resource";
+
+	/**
+	 * Collects the events of an asynchronous request (completed in the calling thread).
+	 */
+	private static class EventCollector implements IResourceListener<ResourceLoaderEvent<byte[]>> {
+
+		private final List<ResourceLoaderEvent<byte[]>> events = new ArrayList<ResourceLoaderEvent<byte[]>>();
+
+		@Override
+		public void onResourceEvent(ResourceLoaderEvent<byte[]> event) {
+			events.add(event);
+		}
+
+		public IResourceMetaData getMetaData() {
+			for (ResourceLoaderEvent<byte[]> event: events) {
+				if (event instanceof MetaResourceLoaderEvent) {
+					return ((MetaResourceLoaderEvent<?>) event).getMetaData();
+				}
+			}
+			return null;
+		}
+
+		public ResourceLoaderEvent<byte[]> getLastEvent() {
+			return events.get(events.size() - 1);
+		}
+
+		public byte[] getData() {
+			ResourceLoaderEvent<byte[]> event = getLastEvent();
+			assertTrue("complete", event.isComplete());
+			assertFalse("failed", event.isFailed());
+			return event.getResult();
+		}
+
+	}
+
+	private TemporaryDirectory directory;
+	private OriginResourceLoader origin;
+	private OriginResourceLoader.OriginResource originResource;
+	private FileCachedResourceLoader loader;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = new TemporaryDirectory("file-cached-resource-");
+		origin = new OriginResourceLoader();
+		originResource = origin.put(NAME, "version 1".getBytes("UTF-8"));
+		ResourceMetaData metaData = new ResourceMetaData();
+		metaData.setName("resource.txt");
+		metaData.setContentType("text/plain");
+		metaData.setLength(originResource.getData().length);
+		metaData.setLastModified(1000000);
+		metaData.setETag("\"v1\"");
+		originResource.setMetaData(metaData);
+	}
+
+	@After
+	public void tearDown() {
+		closeLoader();
+		directory.delete();
+	}
+
+	private void closeLoader() {
+		if (loader != null) {
+			loader.close();
+			loader = null;
+		}
+	}
+
+	private FileCachedResourceLoader createLoader() {
+		return createLoader(origin);
+	}
+
+	private FileCachedResourceLoader createLoader(IResourceLoader parent) {
+		closeLoader();
+		loader = new FileCachedResourceLoader(parent, directory.getPath(), 1024 * 1024, 100, null);
+		return loader;
+	}
+
+	private EventCollector request() throws IOException {
+		EventCollector collector = new EventCollector();
+		loader.getResource(NAME).getResourceBytes(collector);
+		return collector;
+	}
+
+	private File getCacheFile() {
+		return directory.getFile(FileCacheLayout.getFileName(NAME));
+	}
+
+	/**
+	 * Writes the cache file of the resource the way older versions did, without a header.
+	 */
+	private File writeFlatFile() throws IOException {
+		File flatFile = directory.getFile(FileCacheLayout.getFlatFileName(NAME));
+		FileOutputStream out = new FileOutputStream(flatFile);
+		try {
+			out.write(originResource.getData());
+		} finally {
+			out.close();
+		}
+		return flatFile;
+	}
+
+	@Test
+	public void testMetaDataIsKept() throws IOException {
+		createLoader();
+		assertArrayEquals(originResource.getData(), request().getData());
+		createLoader();
+		EventCollector collector = request();
+		assertArrayEquals(originResource.getData(), collector.getData());
+		assertEquals("served from the cache file", 1, originResource.getRequestCount());
+		IResourceMetaData metaData = collector.getMetaData();
+		assertNotNull(metaData);
+		assertEquals("resource.txt", metaData.getName());
+		assertEquals("text/plain", metaData.getContentType());
+		assertTrue(metaData instanceof IVersionedResourceMetaData);
+		assertEquals(1000000, ((IVersionedResourceMetaData) metaData).getLastModified());
+		assertEquals("\"v1\"", ((IVersionedResourceMetaData) metaData).getETag());
+	}
+
+	@Test
+	public void testCacheFileIsPublished() throws IOException {
+		createLoader();
+		assertArrayEquals(originResource.getData(), loader.getResourceBytes(NAME));
+		// the temporary file was moved into place
+		assertEquals(Arrays.asList(getCacheFile().getName()),
+				Arrays.asList(getCacheFile().getParentFile().list()));
+		createLoader();
+		assertArrayEquals(originResource.getData(), loader.getResourceBytes(NAME));
+		assertEquals(1, originResource.getRequestCount());
+	}
+
+	@Test
+	public void testStreamedCacheFileIsPublished() throws IOException {
+		createLoader();
+		assertArrayEquals(originResource.getData(), request().getData());
+		assertTrue(getCacheFile().exists());
+		createLoader();
+		assertArrayEquals(originResource.getData(), loader.getResourceBytes(NAME));
+		assertEquals(1, originResource.getRequestCount());
+	}
+
+	@Test
+	public void testTruncatedCacheFileIsReloaded() throws IOException {
+		createLoader();
+		assertArrayEquals(originResource.getData(), loader.getResourceBytes(NAME));
+		RandomAccessFile file = new RandomAccessFile(getCacheFile(), "rw");
+		try {
+			file.setLength(file.length() - 1);
+		} finally {
+			file.close();
+		}
+		createLoader();
+		assertArrayEquals(originResource.getData(), loader.getResourceBytes(NAME));
+		assertEquals(2, originResource.getRequestCount());
+		assertArrayEquals(originResource.getData(), loader.getResourceBytes(NAME));
+		assertEquals(2, originResource.getRequestCount());
+	}
+
+	@Test
+	public void testCorruptCacheFileIsRemovedByScrub() throws IOException {
+		createLoader();
+		assertArrayEquals(originResource.getData(), loader.getResourceBytes(NAME));
+		RandomAccessFile file = new RandomAccessFile(getCacheFile(), "rw");
+		try {
+			file.seek(file.length() - 1);
+			file.write('X');
+		} finally {
+			file.close();
+		}
+		createLoader();
+		assertEquals(1, loader.scrubCache());
+		assertFalse(getCacheFile().exists());
+		assertArrayEquals(originResource.getData(), loader.getResourceBytes(NAME));
+		assertEquals(2, originResource.getRequestCount());
+	}
+
+	@Test
+	public void testReadsAreBoundedWithTaskManager() throws IOException {
+		assertEquals("without a task manager", 0, createLoader().getMaxConcurrentReads());
+		closeLoader();
+		loader = new FileCachedResourceLoader(origin, directory.getPath(), 1024 * 1024, 100,
+				SynchronousTaskManager.getInstance());
+		assertEquals(FileCachedResourceLoader.DEFAULT_MAX_CONCURRENT_READS, loader.getMaxConcurrentReads());
+		assertArrayEquals(originResource.getData(), loader.getResourceBytes(NAME));
+		loader.setMaxConcurrentReads(0);
+		assertEquals(0, loader.getMaxConcurrentReads());
+		assertArrayEquals(originResource.getData(), loader.getResourceBytes(NAME));
+		assertEquals(1, originResource.getRequestCount());
+	}
+
+	@Test
+	public void testExpiredCacheFileIsRevalidated() throws IOException {
+		createLoader();
+		loader.setExpiryPolicy(new ExpiryPolicy(60000, 0));
+		request();
+		long expiredTime = System.currentTimeMillis() - 120000;
+		assertTrue(getCacheFile().setLastModified(expiredTime));
+
+		// not modified
+		assertArrayEquals(originResource.getData(), request().getData());
+		assertEquals(1, originResource.getConditionalRequestCount());
+		assertTrue("renewed", getCacheFile().lastModified() > expiredTime);
+		request();
+		assertEquals(2, originResource.getRequestCount());
+
+		// modified
+		assertTrue(getCacheFile().setLastModified(expiredTime));
+		byte[] data = "version 2".getBytes("UTF-8");
+		originResource.setData(data);
+		originResource.getMetaData().setLength(data.length);
+		originResource.getMetaData().setLastModified(2000000);
+		originResource.getMetaData().setETag("\"v2\"");
+		assertArrayEquals(data, request().getData());
+		assertEquals(2, originResource.getConditionalRequestCount());
+		EventCollector collector = request();
+		assertArrayEquals(data, collector.getData());
+		assertEquals("\"v2\"", ((IVersionedResourceMetaData) collector.getMetaData()).getETag());
+		assertEquals(3, originResource.getRequestCount());
+	}
+
+	@Test
+	public void testRevalidationPassesThroughProxy() throws IOException {
+		createLoader(new AlternativeResourceLoader(origin));
+		loader.setExpiryPolicy(new ExpiryPolicy(60000, 0));
+		request();
+		assertTrue(getCacheFile().setLastModified(System.currentTimeMillis() - 120000));
+		assertArrayEquals(originResource.getData(), request().getData());
+		assertEquals(1, originResource.getConditionalRequestCount());
+		request();
+		assertEquals(2, originResource.getRequestCount());
+	}
+
+	@Test
+	public void testConditionalRequestIsAnsweredFromCacheFile() throws IOException {
+		createLoader();
+		request();
+		ResourceRequestParameters parameters = new ResourceRequestParameters();
+		parameters.setIfNoneMatch("\"v1\"");
+		EventCollector collector = new EventCollector();
+		loader.getResource(NAME).getResourceBytes(collector, parameters);
+		assertTrue(collector.getLastEvent() instanceof NotModifiedResourceLoaderEvent);
+		assertEquals(1, originResource.getRequestCount());
+	}
+
+	@Test
+	public void testFlatLayoutIsMigrated() throws IOException {
+		File flatFile = writeFlatFile();
+		createLoader();
+		assertEquals(1, loader.migrateFlatLayout());
+		assertFalse(flatFile.exists());
+		assertTrue(getCacheFile().exists());
+		assertArrayEquals(originResource.getData(), loader.getResourceBytes(NAME));
+		assertEquals(0, originResource.getRequestCount());
+	}
+
+	@Test
+	public void testFlatFileIsMigratedOnRequest() throws IOException {
+		File flatFile = writeFlatFile();
+		createLoader();
+		assertArrayEquals(originResource.getData(), loader.getResourceBytes(NAME));
+		assertFalse(flatFile.exists());
+		assertTrue(getCacheFile().exists());
+		assertEquals(0, originResource.getRequestCount());
+	}
+
+}
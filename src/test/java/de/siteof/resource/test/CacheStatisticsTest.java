@@ -0,0 +1,78 @@
+package de.siteof.resource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.siteof.resource.CacheEvictionCause;
+import de.siteof.resource.CacheStatistics;
+import de.siteof.resource.FileCachedResourceLoader;
+import de.siteof.resource.MemoryCachedResourceLoader;
+
+public class CacheStatisticsTest {
+
+	private OriginResourceLoader origin;
+
+	@Before
+	public void setUp() {
+		origin = new OriginResourceLoader();
+		origin.put("http://origin/a", new byte[6]);
+		origin.put("http://origin/b", new byte[6]);
+		origin.put("http://origin/c", new byte[6]).setFailure(new FileNotFoundException("c"));
+	}
+
+	@Test
+	public void testMemoryCacheCounts() throws IOException {
+		MemoryCachedResourceLoader loader = new MemoryCachedResourceLoader(origin, 10);
+		loader.getResourceBytes("http://origin/a");
+		loader.getResourceBytes("http://origin/a");
+		// evicts a
+		loader.getResourceBytes("http://origin/b");
+		try {
+			loader.getResourceBytes("http://origin/c");
+			fail("not found expected");
+		} catch (FileNotFoundException e) {
+			// expected
+		}
+		loader.getResource("http://origin/b").clearCache();
+
+		CacheStatistics statistics = loader.getCacheStatistics();
+		assertEquals(1, statistics.getHitCount());
+		assertEquals(6, statistics.getHitBytes());
+		assertEquals(3, statistics.getMissCount());
+		assertEquals(2, statistics.getLoadSuccessCount());
+		assertEquals(1, statistics.getLoadFailureCount());
+		assertEquals(1, statistics.getEvictionCount(CacheEvictionCause.SIZE));
+		assertEquals(1, statistics.getEvictionCount(CacheEvictionCause.EXPLICIT));
+		assertEquals(2, statistics.getEvictionCount());
+		assertEquals(0, statistics.getEntryCount());
+		assertEquals(0, statistics.getWeight());
+	}
+
+	@Test
+	public void testFileCacheCounts() throws IOException {
+		TemporaryDirectory directory = new TemporaryDirectory("cache-statistics-");
+		try {
+			FileCachedResourceLoader loader = new FileCachedResourceLoader(origin, directory.getPath(),
+					1024 * 1024, 100, null);
+			loader.getResourceBytes("http://origin/a");
+			loader.getResourceBytes("http://origin/a");
+			loader.close();
+
+			CacheStatistics statistics = loader.getCacheStatistics();
+			assertEquals(1, statistics.getHitCount());
+			assertEquals(6, statistics.getHitBytes());
+			assertEquals(1, statistics.getMissCount());
+			assertEquals(1, statistics.getLoadSuccessCount());
+			assertEquals(1, statistics.getEntryCount());
+		} finally {
+			directory.delete();
+		}
+	}
+
+}
@@ -0,0 +1,157 @@
+package de.siteof.resource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import de.siteof.resource.AbstractResource;
+import de.siteof.resource.AbstractResourceLoader;
+import de.siteof.resource.IResource;
+import de.siteof.resource.MemoryCachedResourceLoader;
+import de.siteof.resource.ResourceRequestParameters;
+import de.siteof.resource.event.IResourceListener;
+import de.siteof.resource.event.ResourceLoaderEvent;
+import de.siteof.resource.util.CacheWarmUp;
+
+public class CacheWarmUpTest {
+
+	/**
+	 * Answers every request asynchronously after the given delay, names starting with "hang"
+	 * are never answered.
+	 */
+	private static class DelayedResourceLoader extends AbstractResourceLoader {
+
+		private final long delay;
+		private final AtomicInteger inProgressCount = new AtomicInteger();
+		private final AtomicInteger maxInProgressCount = new AtomicInteger();
+
+		public DelayedResourceLoader(long delay) {
+			super(null);
+			this.delay = delay;
+		}
+
+		@Override
+		public IResource getResource(final String name) throws IOException {
+			return new AbstractResource(name) {
+				@Override
+				public long getSize() {
+					return 0;
+				}
+
+				@Override
+				public InputStream getResourceAsStream() throws IOException {
+					throw new UnsupportedOperationException();
+				}
+
+				@Override
+				public void getResourceBytes(final IResourceListener<ResourceLoaderEvent<byte[]>> listener,
+						ResourceRequestParameters parameters) {
+					final IResource resource = this;
+					int count = inProgressCount.incrementAndGet();
+					while (true) {
+						int max = maxInProgressCount.get();
+						if ((count <= max) || (maxInProgressCount.compareAndSet(max, count))) {
+							break;
+						}
+					}
+					if (name.startsWith("hang")) {
+						return;
+					}
+					new Thread(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								Thread.sleep(delay);
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+							}
+							inProgressCount.decrementAndGet();
+							listener.onResourceEvent(new ResourceLoaderEvent<byte[]>(resource, new byte[0], true));
+						}}).start();
+				}};
+		}
+
+	}
+
+	private static List<String> getNames(int count) {
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			names.add("resource" + i);
+		}
+		return names;
+	}
+
+	@Test
+	public void testParallelismIsLimited() throws InterruptedException {
+		DelayedResourceLoader resourceLoader = new DelayedResourceLoader(30);
+		CacheWarmUp warmUp = new CacheWarmUp(resourceLoader, getNames(20).iterator(), 3, 0, null);
+		warmUp.run();
+		assertTrue(warmUp.isDone());
+		assertEquals(20, warmUp.getRequestedCount());
+		assertEquals(20, warmUp.getWarmedCount());
+		assertEquals(0, warmUp.getFailedCount());
+		assertEquals(3, resourceLoader.maxInProgressCount.get());
+		assertTrue(warmUp.await(0, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testRequestRateIsLimited() {
+		CacheWarmUp warmUp = new CacheWarmUp(new DelayedResourceLoader(0), getNames(5).iterator(), 5, 20, null);
+		long startTime = System.nanoTime();
+		warmUp.run();
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+		assertEquals(5, warmUp.getWarmedCount());
+		// 50 ms between the requests
+		assertTrue("elapsed=" + elapsed, elapsed >= 190);
+	}
+
+	@Test
+	public void testTimedOutRequestReleasesItsSlot() {
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		CacheWarmUp warmUp = new CacheWarmUp(new DelayedResourceLoader(0),
+				Arrays.asList("hang", "resource").iterator(), 1, 0, new CacheWarmUp.IWarmUpListener() {
+					@Override
+					public void onResourceWarmed(String name) {
+					}
+
+					@Override
+					public void onResourceFailed(String name, Throwable cause) {
+						failures.add(cause);
+					}
+
+					@Override
+					public void onWarmUpFinished(CacheWarmUp warmUp) {
+					}});
+		warmUp.setRequestTimeout(200);
+		warmUp.run();
+		assertEquals(2, warmUp.getRequestedCount());
+		assertEquals(1, warmUp.getWarmedCount());
+		assertEquals(1, warmUp.getFailedCount());
+		assertTrue(failures.get(0) instanceof TimeoutException);
+	}
+
+	@Test
+	public void testMemoryCacheIsPopulated() throws IOException {
+		OriginResourceLoader origin = new OriginResourceLoader();
+		OriginResourceLoader.OriginResource resource = origin.put("http://origin/a", new byte[] { 1, 2, 3 });
+		MemoryCachedResourceLoader loader = new MemoryCachedResourceLoader(origin, 1024 * 1024);
+		// performed in the calling thread without a task manager
+		CacheWarmUp warmUp = loader.warmUp(Arrays.asList("http://origin/a"), 2, 0, null);
+		assertTrue(warmUp.isDone());
+		assertEquals(1, warmUp.getWarmedCount());
+		assertEquals(1, resource.getRequestCount());
+		assertEquals(3, loader.getResourceBytes("http://origin/a").length);
+		assertEquals(1, resource.getRequestCount());
+	}
+
+}
@@ -0,0 +1,114 @@
+package de.siteof.resource.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+
+import org.junit.Test;
+
+import de.siteof.resource.FileCachedResourceLoader;
+import de.siteof.resource.MemoryCachedResourceLoader;
+import de.siteof.resource.util.IOUtil;
+import de.siteof.resource.util.ResourceCompressor;
+
+public class CompressionTest {
+
+	private static byte[] getText(int length) {
+		byte[] data = new byte[length];
+		byte[] text = "the quick brown fox jumps over the lazy dog ".getBytes();
+		for (int i = 0; i < length; i++) {
+			data[i] = text[i % text.length];
+		}
+		return data;
+	}
+
+	private static byte[] getRandom(int length) {
+		byte[] data = new byte[length];
+		new Random(1).nextBytes(data);
+		return data;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		try {
+			return IOUtil.readAllFromStream(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void testCompressionDecision() {
+		ResourceCompressor compressor = new ResourceCompressor();
+		assertNull("below the minimum size", compressor.compress(getText(100)));
+		assertNull("incompressible", compressor.compress(getRandom(10000)));
+		byte[] compressed = compressor.compress(getText(10000));
+		assertNotNull(compressed);
+		assertTrue(compressed.length < 10000 * ResourceCompressor.DEFAULT_MAX_RATIO);
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		ResourceCompressor compressor = new ResourceCompressor();
+		byte[] data = getText(10000);
+		assertArrayEquals(data, ResourceCompressor.decompress(compressor.compress(data), data.length));
+		assertArrayEquals(data, readAll(ResourceCompressor.decompress(
+				new ByteArrayInputStream(compressor.compress(data)))));
+	}
+
+	@Test
+	public void testStreamedRoundTrip() throws IOException {
+		ResourceCompressor compressor = new ResourceCompressor();
+		byte[] data = getText(10000);
+		assertNull(compressor.compress(new ByteArrayOutputStream(), getRandom(1000)));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DeflaterOutputStream compressedOut = compressor.compress(out, data);
+		assertNotNull(compressedOut);
+		compressedOut.write(data);
+		compressedOut.close();
+		assertArrayEquals(data, readAll(ResourceCompressor.decompress(new ByteArrayInputStream(out.toByteArray()))));
+	}
+
+	@Test
+	public void testMemoryCacheAccountsCompressedSize() throws IOException {
+		OriginResourceLoader origin = new OriginResourceLoader();
+		byte[] data = getText(10000);
+		origin.put("http://origin/text", data);
+		MemoryCachedResourceLoader loader = new MemoryCachedResourceLoader(origin, 1024 * 1024);
+		loader.setCompressor(new ResourceCompressor());
+		assertArrayEquals(data, loader.getResourceBytes("http://origin/text"));
+		assertTrue(loader.getWeight() < data.length / 2);
+		assertArrayEquals(data, loader.getResourceBytes("http://origin/text"));
+		assertArrayEquals(data, readAll(loader.getResourceAsStream("http://origin/text")));
+	}
+
+	@Test
+	public void testFileCacheRoundTrip() throws IOException {
+		OriginResourceLoader origin = new OriginResourceLoader();
+		byte[] data = getText(10000);
+		OriginResourceLoader.OriginResource resource = origin.put("http://origin/text", data);
+		TemporaryDirectory directory = new TemporaryDirectory("compressed-file-cache-");
+		try {
+			FileCachedResourceLoader loader = new FileCachedResourceLoader(origin, directory.getPath(),
+					1024 * 1024, 100, null);
+			loader.setCompressor(new ResourceCompressor());
+			assertArrayEquals(data, loader.getResourceBytes("http://origin/text"));
+			assertTrue(loader.getCacheStatistics().getWeight() < data.length / 2);
+			assertArrayEquals(data, loader.getResourceBytes("http://origin/text"));
+			assertArrayEquals(data, readAll(loader.getResourceAsStream("http://origin/text")));
+			assertEquals(1, resource.getRequestCount());
+			loader.close();
+		} finally {
+			directory.delete();
+		}
+	}
+
+}
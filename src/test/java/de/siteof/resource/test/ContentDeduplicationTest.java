@@ -0,0 +1,69 @@
+package de.siteof.resource.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.siteof.resource.MemoryCachedResourceLoader;
+import de.siteof.resource.util.ContentAddressedStore;
+
+public class ContentDeduplicationTest {
+
+	private static final byte[] DATA = "the same payload served by two mirrors".getBytes();
+
+	private MemoryCachedResourceLoader loader;
+	private ContentAddressedStore store;
+
+	@Before
+	public void setUp() {
+		OriginResourceLoader origin = new OriginResourceLoader();
+		origin.put("http://mirror1/file", DATA);
+		origin.put("http://mirror2/file", DATA);
+		origin.put("http://mirror1/other", "another payload".getBytes());
+		loader = new MemoryCachedResourceLoader(origin, 1024 * 1024);
+		loader.setContentDeduplication(true);
+		store = loader.getContentStore();
+	}
+
+	@Test
+	public void testIdenticalPayloadIsSharedAndAccountedOnce() throws IOException {
+		assertArrayEquals(DATA, loader.getResourceBytes("http://mirror1/file"));
+		long weight = loader.getWeight();
+		assertArrayEquals(DATA, loader.getResourceBytes("http://mirror2/file"));
+		assertEquals(1, store.getBlobCount());
+		assertEquals(1, store.getSharedCount());
+		assertEquals(DATA.length, store.getSharedBytes());
+		assertEquals(weight, loader.getWeight());
+
+		loader.getResourceBytes("http://mirror1/other");
+		assertEquals(2, store.getBlobCount());
+	}
+
+	@Test
+	public void testPayloadIsReleasedWithLastReference() throws IOException {
+		loader.getResourceBytes("http://mirror1/file");
+		loader.getResourceBytes("http://mirror2/file");
+		loader.getResource("http://mirror1/file").clearCache();
+		assertEquals(1, store.getBlobCount());
+		assertArrayEquals(DATA, loader.getResourceBytes("http://mirror2/file"));
+		loader.getResource("http://mirror2/file").clearCache();
+		assertEquals(0, store.getBlobCount());
+		assertEquals(0, loader.getWeight());
+	}
+
+	@Test
+	public void testChargeMovesToRemainingReference() throws IOException {
+		loader.getResourceBytes("http://mirror1/file");
+		long weight = loader.getWeight();
+		loader.getResourceBytes("http://mirror2/file");
+		// the first name was charged with the payload
+		loader.getResource("http://mirror1/file").clearCache();
+		assertEquals(weight, loader.getWeight());
+		assertEquals(1, loader.getCacheStatistics().getEntryCount());
+	}
+
+}
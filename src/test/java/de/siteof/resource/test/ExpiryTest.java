@@ -0,0 +1,95 @@
+package de.siteof.resource.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.siteof.resource.CacheEvictionCause;
+import de.siteof.resource.MemoryCachedResourceLoader;
+import de.siteof.resource.util.ExpiryPolicy;
+
+public class ExpiryTest {
+
+	private static final String NAME = "http://origin/resource";
+	private static final byte[] DATA = { 1, 2, 3 };
+	private static final byte[] UPDATED_DATA = { 4, 5, 6, 7 };
+
+	private OriginResourceLoader.OriginResource resource;
+	private MemoryCachedResourceLoader loader;
+
+	@Before
+	public void setUp() {
+		OriginResourceLoader origin = new OriginResourceLoader();
+		resource = origin.put(NAME, DATA);
+		// without a task manager, refreshes are executed synchronously
+		loader = new MemoryCachedResourceLoader(origin, 1024 * 1024);
+	}
+
+	@Test
+	public void testPolicy() {
+		ExpiryPolicy policy = new ExpiryPolicy(100, 50, 0.5f);
+		assertFalse(policy.isExpired(1000, 1000, 1049));
+		assertTrue("idle", policy.isExpired(1000, 1000, 1050));
+		assertFalse(policy.isExpired(1000, 1060, 1099));
+		assertTrue("time to live", policy.isExpired(1000, 1090, 1100));
+		assertFalse(policy.isRefreshDue(1000, 1049));
+		assertTrue(policy.isRefreshDue(1000, 1050));
+		assertFalse(new ExpiryPolicy(100, 0).isRefreshDue(1000, 1099));
+		assertFalse(new ExpiryPolicy(0, 0).isExpired(0, 0, Long.MAX_VALUE));
+		try {
+			new ExpiryPolicy(0, 0, 0.5f);
+			fail("refresh-ahead without time to live");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testEntryExpiresAfterTimeToLive() throws IOException, InterruptedException {
+		loader.setExpiryPolicy(new ExpiryPolicy(50, 0));
+		assertArrayEquals(DATA, loader.getResourceBytes(NAME));
+		resource.setData(UPDATED_DATA);
+		assertArrayEquals(DATA, loader.getResourceBytes(NAME));
+		Thread.sleep(100);
+		assertArrayEquals(UPDATED_DATA, loader.getResourceBytes(NAME));
+		assertEquals(2, resource.getRequestCount());
+		assertEquals(1, loader.getCacheStatistics().getEvictionCount(CacheEvictionCause.EXPIRED));
+	}
+
+	@Test
+	public void testEntryExpiresAfterTimeToIdle() throws IOException, InterruptedException {
+		loader.setExpiryPolicy(new ExpiryPolicy(0, 200));
+		assertArrayEquals(DATA, loader.getResourceBytes(NAME));
+		resource.setData(UPDATED_DATA);
+		for (int i = 0; i < 5; i++) {
+			// kept while accessed, even beyond the time to idle in total
+			Thread.sleep(60);
+			assertArrayEquals(DATA, loader.getResourceBytes(NAME));
+		}
+		Thread.sleep(300);
+		assertArrayEquals(UPDATED_DATA, loader.getResourceBytes(NAME));
+		assertEquals(2, resource.getRequestCount());
+	}
+
+	@Test
+	public void testEntryIsRefreshedAhead() throws IOException, InterruptedException {
+		loader.setExpiryPolicy(new ExpiryPolicy(500, 0, 0.2f));
+		assertArrayEquals(DATA, loader.getResourceBytes(NAME));
+		resource.setData(UPDATED_DATA);
+		Thread.sleep(150);
+		// still served from the cache while refreshing
+		assertArrayEquals(DATA, loader.getResourceBytes(NAME));
+		assertEquals(2, resource.getRequestCount());
+		assertArrayEquals(UPDATED_DATA, loader.getResourceBytes(NAME));
+		assertEquals(2, resource.getRequestCount());
+		assertEquals(0, loader.getCacheStatistics().getEvictionCount(CacheEvictionCause.EXPIRED));
+	}
+
+}
@@ -0,0 +1,90 @@
+package de.siteof.resource.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileNotFoundException;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.siteof.resource.MemoryCachedResourceLoader;
+
+public class MemoryCachedResourceCoalescingTest {
+
+	private static final String NAME = "http://origin/resource";
+	private static final int THREAD_COUNT = 8;
+
+	private OriginResourceLoader.OriginResource resource;
+	private MemoryCachedResourceLoader loader;
+	private CountDownLatch gate;
+
+	@Before
+	public void setUp() {
+		OriginResourceLoader origin = new OriginResourceLoader();
+		resource = origin.put(NAME, new byte[] { 1, 2, 3 });
+		gate = new CountDownLatch(1);
+		resource.setGate(gate);
+		loader = new MemoryCachedResourceLoader(origin, 1024 * 1024);
+	}
+
+	/**
+	 * Requests the resource from several threads while the origin holds back the answer,
+	 * until all of them are waiting (either for the origin or for the shared request).
+	 *
+	 * @return the results of the threads, the data or the exception thrown
+	 */
+	private Object[] requestConcurrently() throws InterruptedException {
+		final Object[] results = new Object[THREAD_COUNT];
+		Thread[] threads = new Thread[THREAD_COUNT];
+		for (int i = 0; i < THREAD_COUNT; i++) {
+			final int index = i;
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						results[index] = loader.getResourceBytes(NAME);
+					} catch (Throwable e) {
+						results[index] = e;
+					}
+				}});
+			threads[i].start();
+		}
+		long timeout = System.currentTimeMillis() + 10000;
+		for (Thread thread: threads) {
+			while (thread.getState() != Thread.State.WAITING) {
+				assertTrue("request not waiting", System.currentTimeMillis() < timeout);
+				Thread.sleep(1);
+			}
+		}
+		gate.countDown();
+		for (Thread thread: threads) {
+			thread.join();
+		}
+		return results;
+	}
+
+	@Test
+	public void testConcurrentMissesLoadOnce() throws InterruptedException {
+		Object[] results = requestConcurrently();
+		assertEquals(1, resource.getRequestCount());
+		for (Object result: results) {
+			assertArrayEquals(resource.getData(), (byte[]) result);
+		}
+	}
+
+	@Test
+	public void testFailureReachesEveryWaiter() throws InterruptedException {
+		FileNotFoundException failure = new FileNotFoundException("gone");
+		resource.setFailure(failure);
+		Object[] results = requestConcurrently();
+		assertEquals(1, resource.getRequestCount());
+		for (Object result: results) {
+			assertSame(failure, result);
+		}
+	}
+
+}
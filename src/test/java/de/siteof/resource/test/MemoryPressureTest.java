@@ -0,0 +1,102 @@
+package de.siteof.resource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.siteof.resource.CacheEvictionCause;
+import de.siteof.resource.MemoryCachedResourceLoader;
+import de.siteof.resource.util.MemoryPressureMonitor;
+
+public class MemoryPressureTest {
+
+	private OriginResourceLoader.OriginResource[] resources = new OriginResourceLoader.OriginResource[4];
+	private MemoryCachedResourceLoader loader;
+
+	@Before
+	public void setUp() throws IOException {
+		OriginResourceLoader origin = new OriginResourceLoader();
+		loader = new MemoryCachedResourceLoader(origin, 400);
+		for (int i = 0; i < resources.length; i++) {
+			resources[i] = origin.put("http://origin/" + i, new byte[100]);
+			loader.getResourceBytes("http://origin/" + i);
+		}
+		assertEquals(400, loader.getWeight());
+	}
+
+	/**
+	 * @return true if the resource was still cached (requesting it caches it again otherwise)
+	 */
+	private boolean isCached(int index) throws IOException {
+		int requestCount = resources[index].getRequestCount();
+		loader.getResourceBytes("http://origin/" + index);
+		return (resources[index].getRequestCount() == requestCount);
+	}
+
+	@Test
+	public void testBudgetShrinksUnderPressure() throws IOException {
+		loader.onMemoryPressure(0.5f);
+		assertEquals(200, loader.getMaxWeight());
+		assertEquals(200, loader.getWeight());
+		assertEquals(2, loader.getCacheStatistics().getEvictionCount(CacheEvictionCause.SIZE));
+		// the least recently used entries were evicted
+		assertTrue(isCached(3));
+		assertTrue(isCached(2));
+		assertFalse(isCached(0));
+	}
+
+	@Test
+	public void testBudgetIsRestoredWithoutPressure() throws IOException {
+		loader.onMemoryPressure(0.25f);
+		assertEquals(100, loader.getWeight());
+		loader.onMemoryPressure(1f);
+		assertEquals(400, loader.getMaxWeight());
+		for (int i = 0; i < resources.length; i++) {
+			loader.getResourceBytes("http://origin/" + i);
+		}
+		assertEquals(400, loader.getWeight());
+		assertTrue(isCached(0));
+	}
+
+	@Test
+	public void testConfiguredBudgetIsScaledUnderPressure() {
+		loader.onMemoryPressure(0.5f);
+		loader.setMaxWeight(100);
+		assertEquals(50, loader.getMaxWeight());
+		loader.onMemoryPressure(1f);
+		assertEquals(100, loader.getMaxWeight());
+	}
+
+	@Test
+	public void testSoftCacheIsNotAffected() {
+		MemoryCachedResourceLoader softLoader = new MemoryCachedResourceLoader(new OriginResourceLoader());
+		softLoader.onMemoryPressure(0.25f);
+		assertEquals(0, softLoader.getMaxWeight());
+	}
+
+	@Test
+	public void testMonitorRejectsInvalidLevels() {
+		try {
+			new MemoryPressureMonitor(new float[] { 0.8f, 0.7f }, new float[] { 0.5f, 0.25f }, 1000);
+			fail("decreasing thresholds");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			new MemoryPressureMonitor(new float[] { 0.8f }, new float[] { 0.5f, 0.25f }, 1000);
+			fail("factor count");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		MemoryPressureMonitor monitor = new MemoryPressureMonitor();
+		assertEquals(0, monitor.getLevel());
+		assertTrue(monitor.getBudgetFactor() == 1f);
+	}
+
+}
@@ -0,0 +1,83 @@
+package de.siteof.resource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.siteof.resource.MemoryCachedResourceLoader;
+import de.siteof.resource.util.NegativeResultCache;
+
+public class NegativeResultCachingTest {
+
+	private static final String NAME = "http://origin/missing";
+
+	private OriginResourceLoader.OriginResource resource;
+	private MemoryCachedResourceLoader loader;
+
+	@Before
+	public void setUp() {
+		OriginResourceLoader origin = new OriginResourceLoader();
+		resource = origin.put(NAME, new byte[] { 1, 2, 3 });
+		resource.setFailure(new FileNotFoundException(NAME));
+		loader = new MemoryCachedResourceLoader(origin, 1024 * 1024);
+	}
+
+	private void assertNotFound() throws IOException {
+		try {
+			loader.getResourceBytes(NAME);
+			fail("not found expected");
+		} catch (FileNotFoundException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testMissingResourceIsRemembered() throws IOException {
+		assertNotFound();
+		assertNull(loader.getResourceBytes(NAME));
+		assertFalse(loader.getResource(NAME).exists());
+		assertEquals(1, resource.getRequestCount());
+	}
+
+	@Test
+	public void testMissingResourceIsRequestedAgainAfterTimeToLive() throws IOException, InterruptedException {
+		loader.setNegativeCacheTimeToLive(50);
+		assertNotFound();
+		Thread.sleep(100);
+		resource.setFailure(null);
+		assertEquals(3, loader.getResourceBytes(NAME).length);
+		assertEquals(2, resource.getRequestCount());
+	}
+
+	@Test
+	public void testInvalidatedResourceIsRequestedAgain() throws IOException {
+		assertNotFound();
+		loader.invalidateNegativeResult(NAME);
+		assertNotFound();
+		assertEquals(2, resource.getRequestCount());
+	}
+
+	@Test
+	public void testOldestNamesAreDropped() {
+		NegativeResultCache cache = new NegativeResultCache(60000, 2);
+		cache.markMissing("a");
+		cache.markMissing("b");
+		cache.markMissing("c");
+		assertFalse(cache.isMissing("a"));
+		assertTrue(cache.isMissing("b"));
+		assertTrue(cache.isMissing("c"));
+		cache.setTimeToLive(0);
+		assertEquals(0, cache.size());
+		cache.markMissing("a");
+		assertFalse("disabled", cache.isMissing("a"));
+	}
+
+}
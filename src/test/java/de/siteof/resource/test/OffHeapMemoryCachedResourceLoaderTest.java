@@ -0,0 +1,43 @@
+package de.siteof.resource.test;
+
+import java.io.IOException;
+import java.util.Collection;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized.Parameters;
+
+import de.siteof.resource.IResourceLoader;
+import de.siteof.resource.MemoryCachedResourceLoader;
+import de.siteof.resource.util.OffHeapSlabAllocator;
+import de.siteof.resource.util.test.ResourceLoaderTestParameter;
+import de.siteof.resource.util.test.ResourceLoaderTester;
+import de.siteof.test.LabelledParameterized;
+
+@RunWith(LabelledParameterized.class)
+public class OffHeapMemoryCachedResourceLoaderTest {
+
+	private static ResourceLoaderTester tester = new ResourceLoaderTester() {
+		@Override
+		protected IResourceLoader createResourceLoader(IResourceLoader parent) {
+			return new MemoryCachedResourceLoader(parent, new OffHeapSlabAllocator(4 * 1024 * 1024));
+		}
+	};
+
+	private final ResourceLoaderTestParameter test;
+
+	public OffHeapMemoryCachedResourceLoaderTest(ResourceLoaderTestParameter test) {
+		this.test = test;
+	}
+
+	@Parameters
+    public static Collection<Object[]> getTests() {
+    	return tester.allTestsArrays();
+    }
+
+	@Test
+	public void test() throws IOException {
+		tester.test(test);
+	}
+
+}
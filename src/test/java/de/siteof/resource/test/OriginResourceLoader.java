@@ -0,0 +1,174 @@
+package de.siteof.resource.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.siteof.resource.AbstractResource;
+import de.siteof.resource.AbstractResourceLoader;
+import de.siteof.resource.IResource;
+import de.siteof.resource.ResourceMetaData;
+import de.siteof.resource.ResourceRequestParameters;
+import de.siteof.resource.event.IResourceListener;
+import de.siteof.resource.event.MetaResourceLoaderEvent;
+import de.siteof.resource.event.NotModifiedResourceLoaderEvent;
+import de.siteof.resource.event.ResourceLoaderEvent;
+import de.siteof.resource.util.IOUtil;
+
+/**
+ * Parent loader serving resources held in memory, counting the requests reaching it.
+ */
+public class OriginResourceLoader extends AbstractResourceLoader {
+
+	public static class OriginResource extends AbstractResource {
+
+		private volatile byte[] data;
+		private volatile IOException failure;
+		private volatile CountDownLatch gate;
+		private volatile ResourceMetaData metaData;
+		private final AtomicInteger requestCount = new AtomicInteger();
+		private final AtomicInteger conditionalRequestCount = new AtomicInteger();
+
+		public OriginResource(String name, byte[] data) {
+			super(name);
+			this.data = data;
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+
+		public void setData(byte[] data) {
+			this.data = data;
+		}
+
+		/**
+		 * @param failure thrown by the following requests, null to serve the data again
+		 */
+		public void setFailure(IOException failure) {
+			this.failure = failure;
+		}
+
+		/**
+		 * @param gate the latch the following requests wait for before they are answered (may be null)
+		 */
+		public void setGate(CountDownLatch gate) {
+			this.gate = gate;
+		}
+
+		public ResourceMetaData getMetaData() {
+			return metaData;
+		}
+
+		/**
+		 * @param metaData sent before the content by asynchronous requests, its version is used to
+		 * answer conditional requests (may be null)
+		 */
+		public void setMetaData(ResourceMetaData metaData) {
+			this.metaData = metaData;
+		}
+
+		/**
+		 * @return the number of requests for the content (exists() isn't counted)
+		 */
+		public int getRequestCount() {
+			return requestCount.get();
+		}
+
+		/**
+		 * @return the number of conditional requests, whether answered as not modified or not
+		 */
+		public int getConditionalRequestCount() {
+			return conditionalRequestCount.get();
+		}
+
+		@Override
+		public boolean exists() {
+			return !(failure instanceof FileNotFoundException);
+		}
+
+		@Override
+		public long getSize() {
+			byte[] data = this.data;
+			return (data != null ? data.length : 0);
+		}
+
+		@Override
+		public InputStream getResourceAsStream() throws IOException {
+			requestCount.incrementAndGet();
+			CountDownLatch gate = this.gate;
+			if (gate != null) {
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted while waiting for the gate");
+				}
+			}
+			IOException failure = this.failure;
+			if (failure != null) {
+				throw failure;
+			}
+			return new ByteArrayInputStream(data);
+		}
+
+		/**
+		 * Answers in the calling thread, with the metadata (if any) before the content.
+		 * Conditional requests are answered as not modified if the version of the metadata matches.
+		 */
+		@Override
+		public void getResourceBytes(IResourceListener<ResourceLoaderEvent<byte[]>> listener,
+				ResourceRequestParameters parameters) {
+			ResourceMetaData metaData = this.metaData;
+			if (parameters.isConditional()) {
+				conditionalRequestCount.incrementAndGet();
+				if ((metaData != null) && (parameters.isNotModified(metaData.getLastModified(), metaData.getETag()))) {
+					requestCount.incrementAndGet();
+					listener.onResourceEvent(new NotModifiedResourceLoaderEvent<byte[]>(this));
+					return;
+				}
+			}
+			byte[] data;
+			try {
+				InputStream in = getResourceAsStream();
+				try {
+					data = IOUtil.readAllFromStream(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				listener.onResourceEvent(new ResourceLoaderEvent<byte[]>(this, e));
+				return;
+			}
+			if (metaData != null) {
+				listener.onResourceEvent(new MetaResourceLoaderEvent<byte[]>(this, metaData));
+			}
+			listener.onResourceEvent(new ResourceLoaderEvent<byte[]>(this, data, true));
+		}
+
+	}
+
+	private final Map<String, OriginResource> resourceMap = new ConcurrentHashMap<String, OriginResource>();
+
+	public OriginResourceLoader() {
+		super(null);
+	}
+
+	public OriginResource put(String name, byte[] data) {
+		OriginResource resource = new OriginResource(name, data);
+		resourceMap.put(name, resource);
+		return resource;
+	}
+
+	@Override
+	public IResource getResource(String name) throws IOException {
+		return resourceMap.get(name);
+	}
+
+}
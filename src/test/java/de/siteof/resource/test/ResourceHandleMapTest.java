@@ -0,0 +1,108 @@
+package de.siteof.resource.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import de.siteof.resource.IResource;
+import de.siteof.resource.MemoryCachedResourceLoader;
+import de.siteof.resource.util.ResourceHandleMap;
+
+public class ResourceHandleMapTest {
+
+	private static final int THREAD_COUNT = 8;
+
+	/**
+	 * Creates origin resources slowly, counting the handles created.
+	 */
+	private static class CountingFactory implements ResourceHandleMap.IResourceFactory {
+
+		private final AtomicInteger createCount = new AtomicInteger();
+
+		@Override
+		public IResource createResource(String name) throws IOException {
+			createCount.incrementAndGet();
+			if (name.startsWith("missing")) {
+				return null;
+			}
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return new OriginResourceLoader.OriginResource(name, new byte[0]);
+		}
+
+	}
+
+	@Test
+	public void testConcurrentCallersReceiveOneHandle() throws InterruptedException {
+		final ResourceHandleMap handles = new ResourceHandleMap(false, null);
+		final CountingFactory factory = new CountingFactory();
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		final IResource[] results = new IResource[THREAD_COUNT];
+		Thread[] threads = new Thread[THREAD_COUNT];
+		for (int i = 0; i < THREAD_COUNT; i++) {
+			final int index = i;
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						startLatch.await();
+						results[index] = handles.getOrCreate("resource", factory);
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}});
+			threads[i].start();
+		}
+		startLatch.countDown();
+		for (Thread thread: threads) {
+			thread.join();
+		}
+		assertEquals(1, factory.createCount.get());
+		for (IResource result: results) {
+			assertSame(results[0], result);
+		}
+		assertEquals(1, handles.size());
+	}
+
+	@Test
+	public void testMissingHandleIsNotRegistered() throws IOException {
+		ResourceHandleMap handles = new ResourceHandleMap(true, null);
+		CountingFactory factory = new CountingFactory();
+		assertNull(handles.getOrCreate("missing", factory));
+		assertNull(handles.getOrCreate("missing", factory));
+		assertEquals(2, factory.createCount.get());
+		assertEquals(0, handles.size());
+	}
+
+	@Test
+	public void testRemovedHandleIsCreatedAgain() throws IOException {
+		ResourceHandleMap handles = new ResourceHandleMap(false, null);
+		CountingFactory factory = new CountingFactory();
+		IResource resource = handles.getOrCreate("resource", factory);
+		assertSame(resource, handles.get("resource"));
+		handles.remove("resource");
+		assertNull(handles.get("resource"));
+		IResource created = handles.getOrCreate("resource", factory);
+		assertEquals(2, factory.createCount.get());
+		assertSame(created, handles.getOrCreate("resource", factory));
+	}
+
+	@Test
+	public void testLoaderReturnsCanonicalHandle() throws IOException {
+		OriginResourceLoader origin = new OriginResourceLoader();
+		origin.put("http://origin/a", new byte[] { 1 });
+		MemoryCachedResourceLoader loader = new MemoryCachedResourceLoader(origin, 1024 * 1024);
+		IResource resource = loader.getResource("http://origin/a");
+		assertSame(resource, loader.getResource("http://origin/a"));
+	}
+
+}
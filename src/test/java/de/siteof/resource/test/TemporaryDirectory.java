@@ -0,0 +1,50 @@
+package de.siteof.resource.test;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A directory created in the directory for temporary files, deleted with its content by {@link #delete()}.
+ */
+public class TemporaryDirectory {
+
+	private final File directory;
+
+	public TemporaryDirectory(String prefix) throws IOException {
+		File file = File.createTempFile(prefix, "");
+		if ((!file.delete()) || (!file.mkdirs())) {
+			throw new IOException("temporary directory could not be created: " + file);
+		}
+		this.directory = file;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public String getPath() {
+		return directory.getPath();
+	}
+
+	/**
+	 * @return the file of the given name within the directory
+	 */
+	public File getFile(String name) {
+		return new File(directory, name);
+	}
+
+	public void delete() {
+		delete(directory);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child: files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
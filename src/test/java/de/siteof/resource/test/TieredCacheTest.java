@@ -0,0 +1,66 @@
+package de.siteof.resource.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.siteof.resource.TieredCacheStatistics;
+import de.siteof.resource.TieredCachedResourceLoader;
+
+public class TieredCacheTest {
+
+	private TemporaryDirectory directory;
+	private OriginResourceLoader origin;
+	private OriginResourceLoader.OriginResource resourceA;
+	private OriginResourceLoader.OriginResource resourceB;
+	private TieredCachedResourceLoader loader;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = new TemporaryDirectory("tiered-cache-");
+		origin = new OriginResourceLoader();
+		resourceA = origin.put("http://origin/a", new byte[] { 1, 2, 3, 4, 5, 6 });
+		resourceB = origin.put("http://origin/b", new byte[] { 6, 5, 4, 3, 2, 1 });
+		// room for a single payload in memory
+		loader = new TieredCachedResourceLoader(origin, 10, directory.getPath(), 1024 * 1024, 100, null);
+	}
+
+	@After
+	public void tearDown() {
+		loader.close();
+		directory.delete();
+	}
+
+	@Test
+	public void testHotResourceIsPromoted() throws IOException {
+		assertArrayEquals(resourceA.getData(), loader.getResourceBytes("http://origin/a"));
+		assertEquals(0, loader.getTieredCacheStatistics().getPromotionCount());
+		assertArrayEquals(resourceA.getData(), loader.getResourceBytes("http://origin/a"));
+		assertArrayEquals(resourceA.getData(), loader.getResourceBytes("http://origin/a"));
+
+		TieredCacheStatistics statistics = loader.getTieredCacheStatistics();
+		assertEquals(1, statistics.getPromotionCount());
+		assertEquals(1, statistics.getMemoryStatistics().getHitCount());
+		assertEquals(1, resourceA.getRequestCount());
+	}
+
+	@Test
+	public void testEvictedPayloadIsDemoted() throws IOException {
+		loader.getResourceBytes("http://origin/a");
+		loader.getResourceBytes("http://origin/a");
+		loader.getResourceBytes("http://origin/b");
+		// promotes b, evicting a from memory
+		loader.getResourceBytes("http://origin/b");
+		assertEquals(1, loader.getTieredCacheStatistics().getDemotionCount());
+
+		assertArrayEquals(resourceA.getData(), loader.getResourceBytes("http://origin/a"));
+		assertEquals("served from disk", 1, resourceA.getRequestCount());
+		assertEquals(1, resourceB.getRequestCount());
+	}
+
+}
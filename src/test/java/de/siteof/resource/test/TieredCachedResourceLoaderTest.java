@@ -0,0 +1,62 @@
+package de.siteof.resource.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized.Parameters;
+
+import de.siteof.resource.IResourceLoader;
+import de.siteof.resource.TieredCachedResourceLoader;
+import de.siteof.resource.util.test.ResourceLoaderTestParameter;
+import de.siteof.resource.util.test.ResourceLoaderTester;
+import de.siteof.test.LabelledParameterized;
+
+@RunWith(LabelledParameterized.class)
+public class TieredCachedResourceLoaderTest {
+
+	private static final List<TemporaryDirectory> directories = new ArrayList<TemporaryDirectory>();
+
+	private static ResourceLoaderTester tester = new ResourceLoaderTester() {
+		@Override
+		protected IResourceLoader createResourceLoader(IResourceLoader parent) {
+			TemporaryDirectory directory;
+			try {
+				directory = new TemporaryDirectory("tiered-cache-");
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			directories.add(directory);
+			return new TieredCachedResourceLoader(parent, 64 * 1024, directory.getPath(), 10 * 1024 * 1024, 100, null);
+		}
+	};
+
+	private final ResourceLoaderTestParameter test;
+
+	public TieredCachedResourceLoaderTest(ResourceLoaderTestParameter test) {
+		this.test = test;
+	}
+
+	@Parameters
+    public static Collection<Object[]> getTests() {
+    	return tester.allTestsArrays();
+    }
+
+	@Test
+	public void test() throws IOException {
+		tester.test(test, "http://dummy/");
+	}
+
+	@AfterClass
+	public static void deleteDirectories() {
+		for (TemporaryDirectory directory: directories) {
+			directory.delete();
+		}
+		directories.clear();
+	}
+
+}